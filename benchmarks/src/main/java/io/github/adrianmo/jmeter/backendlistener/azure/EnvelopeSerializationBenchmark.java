@@ -0,0 +1,110 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.Duration;
+import com.microsoft.applicationinsights.telemetry.JsonTelemetryDataSerializer;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Compares the cost per request of serializing and compressing a batch of envelopes with the SDK and with an
+ * {@link EnvelopeEncoder}. Both batches are compressed with the deflater level of {@link IngestionSink}, so that only
+ * the serialization differs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeSerializationBenchmark {
+
+    private static final int BATCH_SIZE = IngestionSink.BATCH_SIZE;
+    private static final String INSTRUMENTATION_KEY = "00000000-0000-0000-0000-000000000000";
+    private static final String TEST_NAME = "jmeter";
+
+    private final List<RequestTelemetry> requests = new ArrayList<RequestTelemetry>(BATCH_SIZE);
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(256 * 1024);
+    private final EnvelopeEncoder.Output encoded = new EnvelopeEncoder.Output(64 * 1024);
+    private EnvelopeEncoder encoder;
+
+    @Setup
+    public void setup() {
+        Map<String, String> customProperties = Collections.singletonMap("Environment", "staging");
+        encoder = new EnvelopeEncoder(INSTRUMENTATION_KEY, TEST_NAME, customProperties);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            RequestTelemetry request = new RequestTelemetry(TEST_NAME, new Date(1600000000000L + i * 7),
+                    new Duration(20 + i % 300), i % 50 == 0 ? "503" : "200", i % 50 != 0);
+            request.getContext().setInstrumentationKey(INSTRUMENTATION_KEY);
+            request.getContext().getOperation().setName(TEST_NAME);
+            Map<String, String> properties = request.getProperties();
+            properties.putAll(customProperties);
+            properties.put("SampleLabel", "Transaction " + i % 20);
+            properties.put("ThreadName", "Thread Group 1-" + i % 100);
+            properties.put("StartTime", Long.toString(1600000000000L + i * 7));
+            properties.put("EndTime", Long.toString(1600000000020L + i * 7 + i % 300));
+            properties.put("ResponseMessage", i % 50 == 0 ? "Service Unavailable" : "OK");
+            request.getMetrics().put("Bytes", 1024.0 + i);
+            request.getMetrics().put("SentBytes", 256.0);
+            request.getMetrics().put("ConnectTime", (double) (i % 5));
+            request.getMetrics().put("Latency", 10.0 + i % 100);
+            requests.add(request);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int sdk() throws IOException {
+        body.reset();
+        Deflater deflater = new Deflater(IngestionSink.COMPRESSION_LEVEL, true);
+        try (Writer out = new OutputStreamWriter(new IngestionSink.GzipStream(body, deflater),
+                StandardCharsets.UTF_8)) {
+            for (RequestTelemetry request : requests) {
+                StringWriter envelope = new StringWriter();
+                JsonTelemetryDataSerializer serializer = new JsonTelemetryDataSerializer(envelope);
+                request.serialize(serializer);
+                serializer.close();
+                out.write(envelope.toString());
+                out.write('\n');
+            }
+        } finally {
+            deflater.end();
+        }
+        return body.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int encoder() {
+        body.reset();
+        encoded.reset();
+        for (RequestTelemetry request : requests) {
+            encoder.encodeRequest(encoded, request);
+        }
+        IngestionSink.compress(encoded, body);
+        return body.size();
+    }
+}
@@ -0,0 +1,129 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.TelemetryConfiguration;
+
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.visualizers.backend.BackendListenerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost per sample of {@link AzureBackendClient#handleSampleResults(List, BackendListenerContext)} with
+ * the telemetry sent to an in-memory channel. Run with {@code -prof gc} to get the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandleSampleResultsBenchmark {
+
+    /**
+     * Number of samples handed to the listener per call, mirroring a JMeter listener batch.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Number of distinct sampler labels in a batch.
+     */
+    private static final int LABEL_COUNT = 20;
+
+    /**
+     * Every n-th sample of a batch is a failure.
+     */
+    private static final int FAILURE_EVERY = 10;
+
+    private static final String[] HEADER_NAMES = {
+            "content-type", "x-request-id", "server", "cache-control", "x-correlation-id", "etag", "date",
+            "content-length", "connection", "vary", "x-frame-options", "strict-transport-security",
+            "x-content-type-options", "set-cookie", "expires", "pragma", "age", "via", "x-cache", "x-served-by"
+    };
+
+    /**
+     * Samplers filter: none, a list of labels, or the equivalent regular expression.
+     */
+    @Param({"none", "set", "regex"})
+    public String filter;
+
+    @Param({"0", "5", "20"})
+    public int headerCount;
+
+    @Param({"OnFailure", "Always"})
+    public String logResponseData;
+
+    @Param({"1024", "65536", "1048576"})
+    public int bodySize;
+
+    private AzureBackendClient client;
+    private BackendListenerContext context;
+    private List<SampleResult> batch;
+
+    @Setup
+    public void setup() throws Exception {
+        Arguments arguments = new Arguments();
+        arguments.addArgument("testName", "benchmark");
+        arguments.addArgument("connectionString", "InstrumentationKey=00000000-0000-0000-0000-000000000000");
+        arguments.addArgument("liveMetrics", "false");
+        arguments.addArgument("logResponseData", logResponseData);
+        arguments.addArgument("logSampleData", "OnFailure");
+        arguments.addArgument("ai.environment", "benchmark");
+        if ("set".equals(filter)) {
+            StringBuilder samplers = new StringBuilder();
+            for (int i = 0; i < LABEL_COUNT / 2; i++) {
+                samplers.append(i == 0 ? "" : ";").append("label-").append(i);
+            }
+            arguments.addArgument("samplersList", samplers.toString());
+        } else if ("regex".equals(filter)) {
+            arguments.addArgument("samplersList", "label-[0-9]");
+            arguments.addArgument("useRegexForSamplerList", "true");
+        }
+        if (headerCount > 0) {
+            arguments.addArgument("responseHeaders", String.join(";", Arrays.copyOf(HEADER_NAMES, headerCount)));
+        }
+
+        context = new BackendListenerContext(arguments);
+        client = new AzureBackendClient() {
+            @Override
+            TelemetryConfiguration createTelemetryConfiguration(BackendListenerContext context) {
+                TelemetryConfiguration config = super.createTelemetryConfiguration(context);
+                config.setChannel(new InMemoryTelemetryChannel());
+                return config;
+            }
+        };
+        client.setupTest(context);
+
+        batch = new ArrayList<SampleResult>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(SampleResults.sample("label-" + (i % LABEL_COUNT), i % FAILURE_EVERY != 0, bodySize));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.teardownTest(context);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void handleSampleResults() {
+        client.handleSampleResults(batch, context);
+    }
+}
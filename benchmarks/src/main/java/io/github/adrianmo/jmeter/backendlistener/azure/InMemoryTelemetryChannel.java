@@ -0,0 +1,49 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.channel.TelemetryChannel;
+import com.microsoft.applicationinsights.channel.TelemetrySampler;
+import com.microsoft.applicationinsights.telemetry.Telemetry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Telemetry channel that only counts the items it receives, so that benchmarks measure the cost of the listener and
+ * not the cost of serializing and transmitting telemetry.
+ */
+final class InMemoryTelemetryChannel implements TelemetryChannel {
+
+    private final LongAdder received = new LongAdder();
+    private boolean developerMode;
+
+    @Override
+    public boolean isDeveloperMode() {
+        return developerMode;
+    }
+
+    @Override
+    public void setDeveloperMode(boolean developerMode) {
+        this.developerMode = developerMode;
+    }
+
+    @Override
+    public void send(Telemetry item) {
+        received.increment();
+    }
+
+    @Override
+    public void stop(long timeout, TimeUnit timeUnit) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void setSampler(TelemetrySampler telemetrySampler) {
+    }
+
+    long getReceived() {
+        return received.sum();
+    }
+}
@@ -0,0 +1,73 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the precompiled {@link ResponseHeaderExtractor} with the per-sample regular expressions it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseHeaderBenchmark {
+
+    private static final String[] HEADER_NAMES = {
+            "content-type", "x-request-id", "server", "cache-control", "x-correlation-id", "etag", "date",
+            "content-length", "connection", "vary", "x-frame-options", "strict-transport-security",
+            "x-content-type-options", "set-cookie", "expires", "pragma", "age", "via", "x-cache", "x-served-by"
+    };
+
+    @Param({"0", "5", "20"})
+    public int headerCount;
+
+    private String[] headers;
+    private String responseHeaders;
+    private ResponseHeaderExtractor extractor;
+
+    @Setup
+    public void setup() {
+        headers = Arrays.copyOf(HEADER_NAMES, headerCount);
+        responseHeaders = SampleResults.responseHeaders();
+        extractor = new ResponseHeaderExtractor(headers, "aih.");
+    }
+
+    @Benchmark
+    public Map<String, String> regex() {
+        Map<String, String> properties = new HashMap<String, String>();
+        for (String header : headers) {
+            Pattern pattern = Pattern.compile("^".concat(header).concat(":(.*)$"),
+                    Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+            Matcher matcher = pattern.matcher(responseHeaders);
+            if (matcher.find()) {
+                properties.put("aih.".concat(header), matcher.group(1).trim());
+            }
+        }
+        return properties;
+    }
+
+    @Benchmark
+    public Map<String, String> extractor() {
+        Map<String, String> properties = new HashMap<String, String>();
+        extractor.extract(responseHeaders, properties);
+        return properties;
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Factory of realistic sample results for the benchmarks.
+ */
+final class SampleResults {
+
+    private SampleResults() {
+    }
+
+    static String responseHeaders() {
+        return "HTTP/1.1 200 OK\r\n"
+                + "Date: Mon, 06 Mar 2023 10:00:00 GMT\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: 1024\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Server: nginx/1.23.3\r\n"
+                + "Vary: Accept-Encoding\r\n"
+                + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
+                + "Pragma: no-cache\r\n"
+                + "Expires: 0\r\n"
+                + "ETag: \"5d8c72a5edda8d6a\"\r\n"
+                + "Set-Cookie: session=0123456789abcdef; Path=/; HttpOnly\r\n"
+                + "Strict-Transport-Security: max-age=31536000; includeSubDomains\r\n"
+                + "X-Content-Type-Options: nosniff\r\n"
+                + "X-Frame-Options: DENY\r\n"
+                + "X-Request-Id: 7f1c2a9e-5b0d-4d7e-9a57-1e0c3c1d2b3a\r\n"
+                + "X-Correlation-Id: 0b6f3f8e-3f0a-4a55-8f3e-6c1c8b1d9e21\r\n"
+                + "Age: 0\r\n"
+                + "Via: 1.1 varnish\r\n"
+                + "X-Cache: MISS\r\n"
+                + "X-Served-By: cache-ams21000-AMS\r\n"
+                + "\r\n";
+    }
+
+    static SampleResult sample(String label, boolean successful, int bodySize) {
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+
+        SampleResult sr = new SampleResult();
+        sr.setSampleLabel(label);
+        sr.setSuccessful(successful);
+        sr.setResponseCode(successful ? "200" : "500");
+        sr.setResponseMessage(successful ? "OK" : "Internal Server Error");
+        sr.setErrorCount(successful ? 0 : 1);
+        sr.setResponseHeaders(responseHeaders());
+        sr.setResponseData(body);
+        sr.setDataEncoding(StandardCharsets.UTF_8.name());
+        sr.setDataType(SampleResult.TEXT);
+        sr.setSamplerData("GET https://example.com/api/items?page=1");
+        sr.setSampleCount(1);
+        sr.setThreadName("Thread Group 1-1");
+        sr.setStampAndTime(System.currentTimeMillis(), 42);
+        sr.setLatency(30);
+        sr.setConnectTime(5);
+        sr.setBytes((long) bodySize + 512);
+        sr.setSentBytes(256);
+        try {
+            sr.setURL(new URL("https://example.com/api/items?page=1"));
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+        return sr;
+    }
+}
@@ -0,0 +1,178 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Downsamples successful samples so that the telemetry sent stays close to a target number of items per second.
+ *
+ * Failed samples, and samples slower than the latency threshold if one is set, are always kept. The rest of the
+ * budget is shared fairly between labels: labels slower than their share are kept in full and what they leave is
+ * shared by the others. A label is sampled by keeping exactly one sample out of {@code n}, the kept item then stands
+ * for {@code n} samples. The rates are measured, and the ratios adjusted, every evaluation interval. Thread-safe.
+ */
+final class AdaptiveSampler {
+
+    /**
+     * Maximum number of samples a kept item can stand for.
+     */
+    static final int MAX_ITEM_COUNT = 1000;
+
+    /**
+     * Maximum number of labels sampled separately, extra labels share the same ratio.
+     */
+    static final int MAX_LABELS = 1000;
+
+    private static final String OTHER_LABEL = "[other]";
+
+    /**
+     * Weight of the latest measure in the moving average of the rates.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    private final double targetItemsPerSecond;
+    private final long latencyThresholdMillis;
+    private final long evaluationIntervalMillis;
+
+    private final ConcurrentMap<String, LabelState> labels = new ConcurrentHashMap<String, LabelState>();
+    private final LongAdder mandatory = new LongAdder();
+    private final LongAdder seen = new LongAdder();
+    private final LongAdder kept = new LongAdder();
+    private final ReentrantLock evaluation = new ReentrantLock();
+
+    private volatile long nextEvaluation;
+    private long lastEvaluation;
+    private double mandatoryRate;
+
+    /**
+     * @param latencyThresholdMillis samples at least this slow are always kept, 0 to disable
+     */
+    AdaptiveSampler(double targetItemsPerSecond, long latencyThresholdMillis, long evaluationIntervalMillis,
+            long now) {
+        this.targetItemsPerSecond = targetItemsPerSecond;
+        this.latencyThresholdMillis = latencyThresholdMillis;
+        this.evaluationIntervalMillis = evaluationIntervalMillis;
+        this.lastEvaluation = now;
+        this.nextEvaluation = now + evaluationIntervalMillis;
+    }
+
+    /**
+     * Decides whether to keep a sample.
+     *
+     * @return the number of samples the kept item stands for, or 0 if the sample is dropped
+     */
+    public int sample(SampleResult sr) {
+        return sample(sr.getSampleLabel(), sr.isSuccessful(), sr.getTime(), System.currentTimeMillis());
+    }
+
+    int sample(String label, boolean success, long elapsed, long now) {
+        if (now >= nextEvaluation) {
+            evaluate(now);
+        }
+        seen.increment();
+        if (!success || (latencyThresholdMillis > 0 && elapsed >= latencyThresholdMillis)) {
+            mandatory.increment();
+            kept.increment();
+            return 1;
+        }
+
+        LabelState state = state(label);
+        state.seen.increment();
+        int itemCount = state.itemCount;
+        if (itemCount > 1 && state.counter.incrementAndGet() % itemCount != 0) {
+            return 0;
+        }
+        kept.increment();
+        return itemCount;
+    }
+
+    private LabelState state(String label) {
+        String key = label == null ? "" : label;
+        LabelState state = labels.get(key);
+        if (state == null) {
+            if (labels.size() >= MAX_LABELS) {
+                key = OTHER_LABEL;
+            }
+            state = labels.computeIfAbsent(key, k -> new LabelState());
+        }
+        return state;
+    }
+
+    /**
+     * Measures the rates of the last interval and shares the budget between labels. Skipped if another thread is
+     * already evaluating.
+     */
+    private void evaluate(long now) {
+        if (!evaluation.tryLock()) {
+            return;
+        }
+        try {
+            if (now < nextEvaluation) {
+                return;
+            }
+            double seconds = Math.max(1, now - lastEvaluation) / 1000.0;
+            lastEvaluation = now;
+            nextEvaluation = now + evaluationIntervalMillis;
+
+            mandatoryRate = smooth(mandatoryRate, mandatory.sumThenReset() / seconds);
+            List<LabelState> states = new ArrayList<LabelState>(labels.values());
+            for (LabelState state : states) {
+                state.rate = smooth(state.rate, state.seen.sumThenReset() / seconds);
+            }
+            states.sort((a, b) -> Double.compare(a.rate, b.rate));
+
+            double budget = Math.max(0, targetItemsPerSecond - mandatoryRate);
+            int remaining = states.size();
+            for (LabelState state : states) {
+                double share = budget / remaining--;
+                int itemCount;
+                if (state.rate <= share) {
+                    itemCount = 1;
+                } else if (share <= 0) {
+                    itemCount = MAX_ITEM_COUNT;
+                } else {
+                    itemCount = (int) Math.min(MAX_ITEM_COUNT, Math.ceil(state.rate / share));
+                }
+                state.itemCount = itemCount;
+                budget = Math.max(0, budget - state.rate / itemCount);
+            }
+        } finally {
+            evaluation.unlock();
+        }
+    }
+
+    private static double smooth(double average, double latest) {
+        return average == 0 ? latest : average + SMOOTHING * (latest - average);
+    }
+
+    /**
+     * Number of samples submitted to the sampler so far.
+     */
+    public long getSeen() {
+        return seen.sum();
+    }
+
+    /**
+     * Number of samples kept so far.
+     */
+    public long getKept() {
+        return kept.sum();
+    }
+
+    /**
+     * Sampling state of a label. The rate is only accessed while evaluating.
+     */
+    private static final class LabelState {
+        private final LongAdder seen = new LongAdder();
+        private final AtomicLong counter = new AtomicLong();
+        private volatile int itemCount = 1;
+        private double rate;
+    }
+}
@@ -0,0 +1,268 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.TelemetryConfiguration;
+import com.microsoft.applicationinsights.internal.quickpulse.QuickPulse;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Collector of the aggregates streamed by the listeners of several injectors, started with {@link #main(String[])}.
+ *
+ * The aggregates of all injectors are merged per label, response code and success flag, and sent as a single stream
+ * of metrics every window, through one telemetry client and one Live Metrics session.
+ */
+public final class AggregationCollector implements Closeable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(AggregationCollector.class);
+
+    /**
+     * Port listened to when none is given.
+     */
+    public static final int DEFAULT_PORT = 4560;
+
+    private final ServerSocket serverSocket;
+    private final TelemetrySink sink;
+    private final String testName;
+    private final Map<String, String> customProperties;
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final LongAdder receivedFrames = new LongAdder();
+    private final ScheduledExecutorService scheduler;
+    private final Thread acceptor;
+
+    /**
+     * Guards {@link #buckets}: merging connections share the read lock, the flush swaps the map under the write lock.
+     */
+    private final ReadWriteLock bucketsLock = new ReentrantReadWriteLock();
+    private ConcurrentHashMap<SampleAggregator.BucketKey, LatencyHistogram> buckets =
+            new ConcurrentHashMap<SampleAggregator.BucketKey, LatencyHistogram>();
+
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening for injectors.
+     *
+     * @param port         port to listen to, 0 for any free port
+     * @param windowMillis time between two emissions of the merged aggregates, 0 to only emit on {@link #flush}
+     */
+    AggregationCollector(InetAddress bindAddress, int port, TelemetrySink sink, String testName,
+            Map<String, String> customProperties, long windowMillis) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        this.sink = sink;
+        this.testName = testName;
+        this.customProperties = customProperties;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "azure-collector-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (windowMillis > 0) {
+            scheduler.scheduleAtFixedRate(() -> flush(System.currentTimeMillis()), windowMillis, windowMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        this.acceptor = new Thread(this::accept, "azure-collector-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+        log.info("Collecting aggregates on {}", serverSocket.getLocalSocketAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                Thread reader = new Thread(() -> read(socket),
+                        "azure-collector-" + connectionCount.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Cannot accept injector connections", e);
+                }
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        String injector = socket.getRemoteSocketAddress().toString();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            injector = CollectorProtocol.readHello(in) + " (" + injector + ")";
+            log.info("Injector {} connected", injector);
+            while (running) {
+                merge(CollectorProtocol.readFrame(in));
+                receivedFrames.increment();
+            }
+        } catch (EOFException e) {
+            log.info("Injector {} disconnected", injector);
+        } catch (IOException e) {
+            if (running) {
+                log.warn("Dropped the connection of injector {}", injector, e);
+            }
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private void merge(Map<SampleAggregator.BucketKey, LatencyHistogram> frame) {
+        bucketsLock.readLock().lock();
+        try {
+            for (Map.Entry<SampleAggregator.BucketKey, LatencyHistogram> entry : frame.entrySet()) {
+                LatencyHistogram existing = buckets.putIfAbsent(entry.getKey(), entry.getValue());
+                if (existing != null) {
+                    existing.merge(entry.getValue());
+                }
+            }
+        } finally {
+            bucketsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sends the aggregates merged since the previous flush.
+     */
+    void flush(long now) {
+        Map<SampleAggregator.BucketKey, LatencyHistogram> drained;
+        bucketsLock.writeLock().lock();
+        try {
+            drained = buckets;
+            buckets = new ConcurrentHashMap<SampleAggregator.BucketKey, LatencyHistogram>();
+        } finally {
+            bucketsLock.writeLock().unlock();
+        }
+
+        try {
+            Date timestamp = new Date(now);
+            for (Map.Entry<SampleAggregator.BucketKey, LatencyHistogram> entry : drained.entrySet()) {
+                MetricTelemetry metric = SampleAggregator.toMetric(testName, entry.getKey(), entry.getValue(),
+                        customProperties, timestamp);
+                sink.trackMetric(metric);
+            }
+            sink.flush();
+        } catch (RuntimeException e) {
+            // An exception would cancel the next flushes
+            log.error("Cannot send the merged aggregates", e);
+        }
+    }
+
+    /**
+     * Number of injectors currently connected.
+     */
+    public int getConnectedInjectors() {
+        return connections.size();
+    }
+
+    /**
+     * Number of aggregation frames received from all injectors so far.
+     */
+    public long getReceivedFrames() {
+        return receivedFrames.sum();
+    }
+
+    /**
+     * Stops listening, sends the last aggregates and closes the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            flush(System.currentTimeMillis());
+            sink.close(30000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a collector until the process is stopped.
+     *
+     * <pre>
+     * java -cp jmeter.backendlistener.azure.jar io.github.adrianmo.jmeter.backendlistener.azure.AggregationCollector \
+     *     --connectionString "InstrumentationKey=..." [--testName jmeter] [--port 4560] [--bind 0.0.0.0] \
+     *     [--interval 10] [--liveMetrics true] [--ai.property value ...]
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        Map<String, String> customProperties = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (name.startsWith("ai.")) {
+                customProperties.put(name, args[i + 1]);
+            } else {
+                options.put(name, args[i + 1]);
+            }
+        }
+        String connectionString = options.get("connectionString");
+        if (connectionString == null) {
+            System.err.println("Usage: AggregationCollector --connectionString <connection string> "
+                    + "[--testName <name>] [--port <port>] [--bind <address>] [--interval <seconds>] "
+                    + "[--liveMetrics <true|false>] [--ai.<property> <value> ...]");
+            System.exit(2);
+        }
+
+        TelemetryConfiguration config = TelemetryConfiguration.createDefault();
+        config.setConnectionString(connectionString);
+        TelemetryClient telemetryClient = new TelemetryClient(config);
+        if (Boolean.parseBoolean(options.getOrDefault("liveMetrics", "true"))) {
+            QuickPulse.INSTANCE.initialize(config);
+        }
+
+        String bind = options.getOrDefault("bind", "0.0.0.0");
+        int port = Integer.parseInt(options.getOrDefault("port", Integer.toString(DEFAULT_PORT)));
+        long windowMillis = Math.max(1, Integer.parseInt(options.getOrDefault("interval", "10"))) * 1000L;
+        AggregationCollector collector = new AggregationCollector(InetAddress.getByName(bind), port,
+                new ApplicationInsightsSink(telemetryClient), options.getOrDefault("testName", "jmeter"),
+                customProperties, windowMillis);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                collector.close();
+            } catch (IOException e) {
+                log.warn("Cannot close the collector", e);
+            }
+        }, "azure-collector-shutdown"));
+        collector.acceptor.join();
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.channel.TelemetryChannel;
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends telemetry through the Application Insights SDK. Batches of requests are tracked one by one, the telemetry
+ * channel of the SDK buffers them and sends them in batches of its own.
+ *
+ * The SDK does not tell which items it delivered, so the items handed to its channel are counted as sent. If the
+ * channel is still transmitting when the sink is closed, its pending transmissions are abandoned and the sink only
+ * reports that they were.
+ */
+final class ApplicationInsightsSink implements TelemetrySink {
+
+    private final TelemetryClient telemetryClient;
+    private final LongAdder tracked = new LongAdder();
+    private volatile boolean abandoned;
+
+    ApplicationInsightsSink(TelemetryClient telemetryClient) {
+        this.telemetryClient = telemetryClient;
+    }
+
+    @Override
+    public void trackRequest(RequestTelemetry request) {
+        telemetryClient.trackRequest(request);
+        tracked.increment();
+    }
+
+    @Override
+    public void trackMetric(MetricTelemetry metric) {
+        telemetryClient.trackMetric(metric);
+        tracked.increment();
+    }
+
+    @Override
+    public void trackEvent(EventTelemetry event) {
+        telemetryClient.trackEvent(event);
+        tracked.increment();
+    }
+
+    @Override
+    public void flush() {
+        telemetryClient.flush();
+    }
+
+    /**
+     * Flushes the buffer of the telemetry channel and stops the channel, which waits up to {@code timeoutMillis} for
+     * the transmissions in progress. The channel belongs to the configuration of this listener only.
+     */
+    @Override
+    public void close(long timeoutMillis) {
+        telemetryClient.flush();
+        TelemetryChannel channel = telemetryClient.getChannel();
+        if (channel != null) {
+            long start = System.currentTimeMillis();
+            channel.stop(Math.max(1, timeoutMillis), TimeUnit.MILLISECONDS);
+            abandoned = System.currentTimeMillis() - start >= timeoutMillis;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "ApplicationInsights";
+    }
+
+    /**
+     * Number of items handed to the channel of the SDK.
+     */
+    @Override
+    public long getSent() {
+        return tracked.sum();
+    }
+
+    /**
+     * Always zero, the SDK does not tell which items it could not send.
+     */
+    @Override
+    public long getFailed() {
+        return 0;
+    }
+
+    @Override
+    public String describe() {
+        return getName() + ": " + getSent() + " handed to the SDK channel"
+                + (abandoned ? ", which was stopped before its transmissions completed" : "");
+    }
+}
@@ -0,0 +1,256 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hands samples over from the JMeter backend listener thread to a pool of worker threads through a bounded
+ * {@link RingBuffer}, so that building and sending telemetry never blocks the listener queue of JMeter.
+ *
+ * What happens when the buffer is full is decided by the {@link BackpressurePolicy}. Every sample that is not handed
+ * to a worker is counted, so the caller can tell whether the listener distorted the results.
+ */
+final class AsyncSampleDispatcher {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(AsyncSampleDispatcher.class);
+
+    /**
+     * Time a producer or an idle worker parks before retrying.
+     */
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * Time between two progress reports while the buffer is drained.
+     */
+    static final long PROGRESS_INTERVAL_MS = 5000;
+
+    /**
+     * Part of the shutdown timeout given to the workers to finish their batch once they stop draining the buffer,
+     * before they are interrupted.
+     */
+    private static final long STOP_GRACE_MS = 1000;
+
+    private final RingBuffer<SampleResult> buffer;
+    private final BackpressurePolicy policy;
+    private final int batchSize;
+    private final Consumer<List<SampleResult>> handler;
+    private final List<Thread> workers;
+
+    /**
+     * Size of the batch each worker is handling, 0 when it is idle and -1 once its batch was given up.
+     */
+    private final AtomicIntegerArray inProgress;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+
+    /**
+     * @param batchSize maximum number of samples handed to the handler at once
+     * @param handler   handler of the batches of samples, it must not keep a reference to the list, which is reused
+     */
+    AsyncSampleDispatcher(int workerCount, int capacity, int batchSize, BackpressurePolicy policy,
+            Consumer<List<SampleResult>> handler) {
+        this.buffer = new RingBuffer<SampleResult>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.policy = policy;
+        this.handler = handler;
+        this.workers = new ArrayList<Thread>(workerCount);
+        this.inProgress = new AtomicIntegerArray(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            int index = i;
+            Thread worker = new Thread(() -> work(index), "azure-backend-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the sample for the workers, applying the backpressure policy if the buffer is full.
+     */
+    public void submit(SampleResult sr) {
+        if (!accepting) {
+            dropped.increment();
+            return;
+        }
+        submitted.increment();
+
+        if (policy == BackpressurePolicy.Sample && !admit(sr)) {
+            dropped.increment();
+            return;
+        }
+
+        if (buffer.offer(sr)) {
+            return;
+        }
+        overflows.increment();
+
+        switch (policy) {
+            case Block:
+                while (!buffer.offer(sr)) {
+                    if (!accepting) {
+                        dropped.increment();
+                        return;
+                    }
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                break;
+            case DropOldest:
+                while (!buffer.offer(sr)) {
+                    if (buffer.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                break;
+            default:
+                dropped.increment();
+                break;
+        }
+    }
+
+    /**
+     * Once the buffer is more than half full, successful samples are admitted with a probability that decreases
+     * linearly to zero as the buffer fills up. Failures are always admitted.
+     */
+    private boolean admit(SampleResult sr) {
+        int half = buffer.capacity() / 2;
+        int free = buffer.capacity() - buffer.size();
+        if (free >= half || !sr.isSuccessful()) {
+            return true;
+        }
+        return ThreadLocalRandom.current().nextInt(half) < free;
+    }
+
+    private void work(int index) {
+        List<SampleResult> batch = new ArrayList<SampleResult>(batchSize);
+        while (running) {
+            SampleResult sr;
+            while (batch.size() < batchSize && (sr = buffer.poll()) != null) {
+                batch.add(sr);
+            }
+            if (batch.isEmpty()) {
+                if (!accepting) {
+                    return;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+                continue;
+            }
+            int size = batch.size();
+            inProgress.set(index, size);
+            try {
+                handler.accept(batch);
+                // Unless the batch was given up by shutdown, which counted it as dropped
+                if (inProgress.compareAndSet(index, size, 0)) {
+                    handled.add(size);
+                }
+            } catch (Exception e) {
+                log.error("Failed to send a batch of {} samples", size, e);
+                if (inProgress.compareAndSet(index, size, 0)) {
+                    dropped.add(size);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops accepting samples and waits up to {@code timeoutMillis} for the workers to drain the buffer, reporting
+     * the progress every {@link #PROGRESS_INTERVAL_MS}. The last {@link #STOP_GRACE_MS} of the timeout are left to the
+     * workers to finish their current batch, then the ones still busy are all interrupted at once without waiting for
+     * them. Their batches, and the samples still queued, are counted as dropped.
+     *
+     * @return whether the buffer was fully drained
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        accepting = false;
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        long drainDeadline = deadline - Math.min(STOP_GRACE_MS, timeoutMillis / 2);
+        long nextReport = start + PROGRESS_INTERVAL_MS;
+        for (Thread worker : workers) {
+            long now = System.currentTimeMillis();
+            while (worker.isAlive() && now < drainDeadline) {
+                if (now >= nextReport) {
+                    log.info("Draining the async queue: {} samples sent, {} left, {} ms before giving up",
+                            getHandled(), buffer.size(), deadline - now);
+                    nextReport = now + PROGRESS_INTERVAL_MS;
+                }
+                worker.join(Math.max(1, Math.min(drainDeadline, nextReport) - now));
+                now = System.currentTimeMillis();
+            }
+        }
+        running = false;
+        List<Thread> busy = new ArrayList<Thread>();
+        for (int i = 0; i < workers.size(); i++) {
+            Thread worker = workers.get(i);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                worker.join(remaining);
+            }
+            if (worker.isAlive()) {
+                busy.add(worker);
+                dropped.add(Math.max(0, inProgress.getAndSet(i, -1)));
+            }
+        }
+        if (!busy.isEmpty()) {
+            log.warn("Interrupting {} workers still sending after the deadline", busy.size());
+            for (Thread worker : busy) {
+                worker.interrupt();
+            }
+        }
+
+        boolean drained = true;
+        while (buffer.poll() != null) {
+            dropped.increment();
+            drained = false;
+        }
+        return drained;
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * Number of samples handed to the handler.
+     */
+    public long getHandled() {
+        return handled.sum();
+    }
+
+    /**
+     * Number of times a sample found the buffer full.
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    /**
+     * Number of samples that were discarded and never sent.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getQueueDepth() {
+        return buffer.size();
+    }
+}
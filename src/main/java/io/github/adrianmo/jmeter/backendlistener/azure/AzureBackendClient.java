@@ -1,285 +1,916 @@
-package io.github.adrianmo.jmeter.backendlistener.azure;
-
-import com.microsoft.applicationinsights.TelemetryClient;
-import com.microsoft.applicationinsights.TelemetryConfiguration;
-import com.microsoft.applicationinsights.internal.quickpulse.QuickPulse;
-import com.microsoft.applicationinsights.internal.util.MapUtil;
-import com.microsoft.applicationinsights.telemetry.Duration;
-import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
-
-import org.apache.jmeter.config.Arguments;
-import org.apache.jmeter.samplers.SampleResult;
-import org.apache.jmeter.threads.JMeterContextService;
-import org.apache.jmeter.visualizers.backend.AbstractBackendListenerClient;
-import org.apache.jmeter.visualizers.backend.BackendListenerContext;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-
-public class AzureBackendClient extends AbstractBackendListenerClient {
-
-    /**
-     * Logger.
-     */
-    private static final Logger log = LoggerFactory.getLogger(AzureBackendClient.class);
-
-    /**
-     * Argument keys.
-     */
-    private static final String KEY_TEST_NAME = "testName";
-    private static final String KEY_INSTRUMENTATION_KEY = "instrumentationKey";
-    private static final String KEY_CONNECTION_STRING = "connectionString";
-    private static final String KEY_LIVE_METRICS = "liveMetrics";
-    private static final String KEY_SAMPLERS_LIST = "samplersList";
-    private static final String KEY_USE_REGEX_FOR_SAMPLER_LIST = "useRegexForSamplerList";
-    private static final String KEY_CUSTOM_PROPERTIES_PREFIX = "ai.";
-    private static final String KEY_HEADERS_PREFIX = "aih.";
-    private static final String KEY_RESPONSE_HEADERS = "responseHeaders";
-    private static final String KEY_LOG_RESPONSE_DATA = "logResponseData";
-    private static final String KEY_LOG_SAMPLE_DATA = "logSampleData";
-
-    /**
-     * Default argument values.
-     */
-    private static final String DEFAULT_TEST_NAME = "jmeter";
-    private static final String DEFAULT_CONNECTION_STRING = "";
-    private static final boolean DEFAULT_LIVE_METRICS = true;
-    private static final String DEFAULT_SAMPLERS_LIST = "";
-    private static final boolean DEFAULT_USE_REGEX_FOR_SAMPLER_LIST = false;
-    private static final DataLoggingOption DEFAULT_LOG_RESPONSE_DATA = DataLoggingOption.OnFailure;
-    private static final DataLoggingOption DEFAULT_LOG_SAMPLE_DATA = DataLoggingOption.OnFailure;
-
-    /**
-     * Separator for samplers list.
-     */
-    private static final String SEPARATOR = ";";
-
-    /**
-     * Truncated length of the request and response data.
-     */
-    private static final int MAX_DATA_LENGTH = 1024;
-
-    /**
-     * Application Insights telemetry client.
-     */
-    private TelemetryClient telemetryClient;
-
-    /**
-     * Name of the test.
-     */
-    private String testName;
-
-    /**
-     * Custom properties.
-     */
-    private Map<String, String> customProperties = new HashMap<String, String>();
-
-    /**
-     * Recording response headers.
-     */
-    private String[] responseHeaders = {};
-
-    /**
-     * Whether to send metrics to the Live Metrics Stream.
-     */
-    private boolean liveMetrics;
-
-    /**
-     * List of samplers to record.
-     */
-    private String samplersList = "";
-
-    /**
-     * Regex if samplers are defined through regular expression.
-     */
-    private Boolean useRegexForSamplerList;
-
-    /**
-     * Set of samplers to record.
-     */
-    private Set<String> samplersToFilter;
-
-    /**
-     * Whether to log the response data to the backend
-     */
-    private DataLoggingOption logResponseData;
-
-    /**
-     * Whether to log the sample data to the backend
-     */
-    private DataLoggingOption logSampleData;
-
-    public AzureBackendClient() {
-        super();
-    }
-
-    @Override
-    public Arguments getDefaultParameters() {
-        Arguments arguments = new Arguments();
-        arguments.addArgument(KEY_TEST_NAME, DEFAULT_TEST_NAME);
-        arguments.addArgument(KEY_CONNECTION_STRING, DEFAULT_CONNECTION_STRING);
-        arguments.addArgument(KEY_LIVE_METRICS, Boolean.toString(DEFAULT_LIVE_METRICS));
-        arguments.addArgument(KEY_SAMPLERS_LIST, DEFAULT_SAMPLERS_LIST);
-        arguments.addArgument(KEY_USE_REGEX_FOR_SAMPLER_LIST, Boolean.toString(DEFAULT_USE_REGEX_FOR_SAMPLER_LIST));
-        arguments.addArgument(KEY_LOG_RESPONSE_DATA, DEFAULT_LOG_RESPONSE_DATA.getValue());
-        arguments.addArgument(KEY_LOG_SAMPLE_DATA, DEFAULT_LOG_SAMPLE_DATA.getValue());
-
-        return arguments;
-    }
-
-    @Override
-    public void setupTest(BackendListenerContext context) throws Exception {
-        testName = context.getParameter(KEY_TEST_NAME, DEFAULT_TEST_NAME);
-        liveMetrics = context.getBooleanParameter(KEY_LIVE_METRICS, DEFAULT_LIVE_METRICS);
-        samplersList = context.getParameter(KEY_SAMPLERS_LIST, DEFAULT_SAMPLERS_LIST).trim();
-        useRegexForSamplerList = context.getBooleanParameter(KEY_USE_REGEX_FOR_SAMPLER_LIST,
-                DEFAULT_USE_REGEX_FOR_SAMPLER_LIST);
-        logResponseData = DataLoggingOption
-                .fromString(context.getParameter(KEY_LOG_RESPONSE_DATA, DEFAULT_LOG_RESPONSE_DATA.getValue()));
-        logSampleData = DataLoggingOption
-                .fromString(context.getParameter(KEY_LOG_SAMPLE_DATA, DEFAULT_LOG_SAMPLE_DATA.getValue()));
-
-        Iterator<String> iterator = context.getParameterNamesIterator();
-        while (iterator.hasNext()) {
-            String paramName = iterator.next();
-            if (paramName.startsWith(KEY_CUSTOM_PROPERTIES_PREFIX)) {
-                customProperties.put(paramName, context.getParameter(paramName));
-            } else if (paramName.equals(KEY_RESPONSE_HEADERS)) {
-                responseHeaders = context.getParameter(KEY_RESPONSE_HEADERS).trim().toLowerCase()
-                        .split("\\s*".concat(SEPARATOR).concat("\\s*"));
-            }
-        }
-
-        TelemetryConfiguration config = TelemetryConfiguration.createDefault();
-        String instrumentationKey = context.getParameter(KEY_INSTRUMENTATION_KEY);
-        if (instrumentationKey != null) {
-            log.warn("'instrumentationKey' is deprecated, use 'connectionString' instead");
-            config.setInstrumentationKey(instrumentationKey);
-        }
-
-        String connectionString = context.getParameter(KEY_CONNECTION_STRING);
-        if (connectionString != null) {
-            config.setConnectionString(connectionString);
-        }
-
-        telemetryClient = new TelemetryClient(config);
-        if (liveMetrics) {
-            QuickPulse.INSTANCE.initialize(config);
-        }
-
-        samplersToFilter = new HashSet<String>();
-        if (!useRegexForSamplerList) {
-            String[] samplers = samplersList.split(SEPARATOR);
-            samplersToFilter = new HashSet<String>();
-            for (String samplerName : samplers) {
-                samplersToFilter.add(samplerName);
-            }
-        }
-    }
-
-    private void trackRequest(String name, SampleResult sr) {
-        Map<String, String> properties = new HashMap<String, String>();
-        properties.putAll(customProperties);
-        properties.put("Bytes", Long.toString(sr.getBytesAsLong()));
-        properties.put("SentBytes", Long.toString(sr.getSentBytes()));
-        properties.put("ConnectTime", Long.toString(sr.getConnectTime()));
-        properties.put("ErrorCount", Integer.toString(sr.getErrorCount()));
-        properties.put("IdleTime", Double.toString(sr.getIdleTime()));
-        properties.put("Latency", Double.toString(sr.getLatency()));
-        properties.put("BodySize", Long.toString(sr.getBodySizeAsLong()));
-        properties.put("TestStartTime", Long.toString(JMeterContextService.getTestStartTime()));
-        properties.put("SampleStartTime", Long.toString(sr.getStartTime()));
-        properties.put("SampleEndTime", Long.toString(sr.getEndTime()));
-        properties.put("SampleLabel", sr.getSampleLabel());
-        properties.put("ThreadName", sr.getThreadName());
-        properties.put("URL", sr.getUrlAsString());
-        properties.put("ResponseCode", sr.getResponseCode());
-        properties.put("GrpThreads", Integer.toString(sr.getGroupThreads()));
-        properties.put("AllThreads", Integer.toString(sr.getAllThreads()));
-        properties.put("SampleCount", Integer.toString(sr.getSampleCount()));
-
-        for (String header : responseHeaders) {
-            Pattern pattern = Pattern.compile("^".concat(header).concat(":(.*)$"),
-                    Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(sr.getResponseHeaders());
-            if (matcher.find()) {
-                properties.put(KEY_HEADERS_PREFIX.concat(header), matcher.group(1).trim());
-            }
-        }
-
-        Date timestamp = new Date(sr.getTimeStamp());
-        Duration duration = new Duration(sr.getTime());
-        RequestTelemetry req = new RequestTelemetry(name, timestamp, duration, sr.getResponseCode(),
-                sr.isSuccessful());
-        req.getContext().getOperation().setName(name);
-
-        if (sr.getURL() != null) {
-            req.setUrl(sr.getURL());
-        }
-
-        if (sr.getSamplerData() != null && ((logSampleData == DataLoggingOption.Always) ||
-                (logSampleData == DataLoggingOption.OnFailure && !sr.isSuccessful()))) {
-
-            if (sr.getDataType() == SampleResult.TEXT) {
-                String samplerData;
-                if (sr.getSamplerData().length() > MAX_DATA_LENGTH) {
-                    log.warn("Sample data is too long, truncating it to {} characters", MAX_DATA_LENGTH);
-                    samplerData = sr.getSamplerData().substring(0, MAX_DATA_LENGTH) + "...[TRUNCATED]";
-                } else {
-                    samplerData = sr.getSamplerData();
-                }
-                properties.put("SampleData", samplerData);
-            } else {
-                log.warn("Sample data is in binary format, cannot log it");
-                properties.put("SampleData", "[BINARY DATA]");
-            }
-        }
-
-        if (logResponseData == DataLoggingOption.Always ||
-                (logResponseData == DataLoggingOption.OnFailure && !sr.isSuccessful())) {
-            String responseData;
-            if (sr.getResponseDataAsString().length() > MAX_DATA_LENGTH) {
-                log.warn("Response data is too long, truncating it to {} characters", MAX_DATA_LENGTH);
-                responseData = sr.getResponseDataAsString().substring(0, MAX_DATA_LENGTH) + "...[TRUNCATED]";
-            } else {
-                responseData = sr.getResponseDataAsString();
-            }
-            properties.put("ResponseData", responseData);
-        }
-
-        MapUtil.copy(properties, req.getProperties());
-        telemetryClient.trackRequest(req);
-    }
-
-    @Override
-    public void handleSampleResults(List<SampleResult> results, BackendListenerContext context) {
-
-        boolean samplersToFilterMatch;
-        for (SampleResult sr : results) {
-
-            samplersToFilterMatch = samplersList.isEmpty() ||
-                    (useRegexForSamplerList && sr.getSampleLabel().matches(samplersList)) ||
-                    (!useRegexForSamplerList && samplersToFilter.contains(sr.getSampleLabel()));
-
-            if (samplersToFilterMatch) {
-                trackRequest(testName, sr);
-            }
-        }
-    }
-
-    @Override
-    public void teardownTest(BackendListenerContext context) throws Exception {
-        samplersToFilter.clear();
-        telemetryClient.flush();
-        super.teardownTest(context);
-    }
-}
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.TelemetryConfiguration;
+import com.microsoft.applicationinsights.internal.quickpulse.QuickPulse;
+import com.microsoft.applicationinsights.telemetry.Duration;
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.engine.StandardJMeterEngine;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.visualizers.backend.AbstractBackendListenerClient;
+import org.apache.jmeter.visualizers.backend.BackendListenerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class AzureBackendClient extends AbstractBackendListenerClient {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(AzureBackendClient.class);
+
+    /**
+     * Argument keys.
+     */
+    static final String KEY_TEST_NAME = "testName";
+    static final String KEY_INSTRUMENTATION_KEY = "instrumentationKey";
+    static final String KEY_CONNECTION_STRING = "connectionString";
+    static final String KEY_LIVE_METRICS = "liveMetrics";
+    static final String KEY_SAMPLERS_LIST = "samplersList";
+    static final String KEY_USE_REGEX_FOR_SAMPLER_LIST = "useRegexForSamplerList";
+    static final String KEY_EXCLUDED_SAMPLERS_LIST = "excludedSamplersList";
+    static final String KEY_USE_GLOB_FOR_SAMPLER_LIST = "useGlobForSamplerList";
+    static final String KEY_CUSTOM_PROPERTIES_PREFIX = "ai.";
+    static final String KEY_HEADERS_PREFIX = "aih.";
+    static final String KEY_RESPONSE_HEADERS = "responseHeaders";
+    static final String KEY_LOG_RESPONSE_DATA = "logResponseData";
+    static final String KEY_LOG_SAMPLE_DATA = "logSampleData";
+    static final String KEY_AGGREGATE_SAMPLES = "aggregateSamples";
+    static final String KEY_AGGREGATION_INTERVAL = "aggregationInterval";
+    static final String KEY_RAW_SAMPLE_FRACTION = "rawSampleFraction";
+    static final String KEY_BATCH_SIZE = "batchSize";
+    static final String KEY_ASYNC_WORKERS = "asyncWorkers";
+    static final String KEY_ASYNC_QUEUE_SIZE = "asyncQueueSize";
+    static final String KEY_BACKPRESSURE_POLICY = "backpressurePolicy";
+    static final String KEY_SHUTDOWN_TIMEOUT = "shutdownTimeout";
+    static final String KEY_MAX_DATA_LENGTH = "maxDataLength";
+    static final String KEY_FIELDS = "fields";
+    static final String KEY_NUMERIC_FIELDS_AS_MEASUREMENTS = "numericFieldsAsMeasurements";
+    static final String KEY_SINKS = "sinks";
+    static final String KEY_SINK_FILE = "sinkFile";
+    static final String KEY_SINK_FILE_GZIP = "sinkFileGzip";
+    static final String KEY_INGESTION_MAX_IN_FLIGHT = "ingestionMaxInFlight";
+    static final String KEY_INGESTION_MAX_ATTEMPTS = "ingestionMaxAttempts";
+    static final String KEY_INGESTION_RETRY_BACKOFF = "ingestionRetryBackoff";
+    static final String KEY_SPOOL_DIRECTORY = "spoolDirectory";
+    static final String KEY_SPOOL_MAX_SIZE = "spoolMaxSize";
+    static final String KEY_COLLECTOR_ADDRESS = "collectorAddress";
+    static final String KEY_SAMPLING_TARGET = "samplingTarget";
+    static final String KEY_SAMPLING_LATENCY_THRESHOLD = "samplingLatencyThreshold";
+    static final String KEY_PERCENTILE_METRICS = "percentileMetrics";
+    static final String KEY_PERCENTILE_INTERVAL = "percentileInterval";
+    static final String KEY_TIMING_BREAKDOWN = "timingBreakdown";
+    static final String KEY_TIMING_BREAKDOWN_INTERVAL = "timingBreakdownInterval";
+    static final String KEY_DEDUPLICATE_PAYLOADS = "deduplicatePayloads";
+    static final String KEY_DEDUPLICATION_WINDOW = "deduplicationWindow";
+    static final String KEY_LISTENER_METRICS = "listenerMetrics";
+    static final String KEY_LISTENER_METRICS_INTERVAL = "listenerMetricsInterval";
+    static final String KEY_SLA_THRESHOLDS = "slaThresholds";
+    static final String KEY_SLA_WINDOW = "slaWindow";
+    static final String KEY_SLA_MIN_SAMPLES = "slaMinSamples";
+    static final String KEY_SLA_STOP_TEST = "slaStopTest";
+
+    /**
+     * Default argument values.
+     */
+    static final String DEFAULT_TEST_NAME = "jmeter";
+    static final String DEFAULT_CONNECTION_STRING = "";
+    static final boolean DEFAULT_LIVE_METRICS = true;
+    static final String DEFAULT_SAMPLERS_LIST = "";
+    static final boolean DEFAULT_USE_REGEX_FOR_SAMPLER_LIST = false;
+    static final String DEFAULT_EXCLUDED_SAMPLERS_LIST = "";
+    static final boolean DEFAULT_USE_GLOB_FOR_SAMPLER_LIST = false;
+    static final DataLoggingOption DEFAULT_LOG_RESPONSE_DATA = DataLoggingOption.OnFailure;
+    static final DataLoggingOption DEFAULT_LOG_SAMPLE_DATA = DataLoggingOption.OnFailure;
+    static final boolean DEFAULT_AGGREGATE_SAMPLES = false;
+    static final int DEFAULT_AGGREGATION_INTERVAL = 60;
+    static final String DEFAULT_RAW_SAMPLE_FRACTION = "0";
+    static final int DEFAULT_BATCH_SIZE = 100;
+    static final int DEFAULT_ASYNC_WORKERS = 0;
+    static final int DEFAULT_ASYNC_QUEUE_SIZE = 16384;
+    static final BackpressurePolicy DEFAULT_BACKPRESSURE_POLICY = BackpressurePolicy.Block;
+    static final int DEFAULT_SHUTDOWN_TIMEOUT = 30;
+    static final int DEFAULT_MAX_DATA_LENGTH = 1024;
+    static final String DEFAULT_FIELDS = "";
+    static final boolean DEFAULT_NUMERIC_FIELDS_AS_MEASUREMENTS = false;
+    static final String DEFAULT_SINKS = SinkType.ApplicationInsights.getValue();
+    static final String DEFAULT_SINK_FILE = "jmeter-telemetry.ndjson";
+    static final boolean DEFAULT_SINK_FILE_GZIP = false;
+    static final int DEFAULT_INGESTION_MAX_IN_FLIGHT = 8;
+    static final int DEFAULT_INGESTION_MAX_ATTEMPTS = 5;
+    static final int DEFAULT_INGESTION_RETRY_BACKOFF = 1000;
+    static final String DEFAULT_SPOOL_DIRECTORY = "";
+    static final int DEFAULT_SPOOL_MAX_SIZE = 256;
+    static final String DEFAULT_COLLECTOR_ADDRESS = "";
+    static final String DEFAULT_SAMPLING_TARGET = "0";
+    static final int DEFAULT_SAMPLING_LATENCY_THRESHOLD = 0;
+    static final boolean DEFAULT_PERCENTILE_METRICS = false;
+    static final int DEFAULT_PERCENTILE_INTERVAL = 10;
+    static final TimingBreakdownMode DEFAULT_TIMING_BREAKDOWN = TimingBreakdownMode.Properties;
+    static final int DEFAULT_TIMING_BREAKDOWN_INTERVAL = 60;
+    static final boolean DEFAULT_DEDUPLICATE_PAYLOADS = false;
+    static final int DEFAULT_DEDUPLICATION_WINDOW = 60;
+    static final boolean DEFAULT_LISTENER_METRICS = false;
+    static final int DEFAULT_LISTENER_METRICS_INTERVAL = 60;
+    static final String DEFAULT_SLA_THRESHOLDS = "";
+    static final int DEFAULT_SLA_WINDOW = 60;
+    static final int DEFAULT_SLA_MIN_SAMPLES = 20;
+    static final boolean DEFAULT_SLA_STOP_TEST = false;
+
+    /**
+     * Separator for samplers list.
+     */
+    private static final String SEPARATOR = ";";
+
+    /**
+     * Minimum time between two warnings about the same recurring condition.
+     */
+    private static final long WARNING_INTERVAL_MS = 60000;
+
+    /**
+     * Time between two adjustments of the adaptive sampling ratios.
+     */
+    private static final long SAMPLING_EVALUATION_INTERVAL_MS = 1000;
+
+    /**
+     * Application Insights telemetry client.
+     */
+    private TelemetryClient telemetryClient;
+
+    /**
+     * Destination of the telemetry, sends through {@link #telemetryClient} unless other sinks are configured.
+     */
+    private TelemetrySink sink;
+
+    /**
+     * Name of the test.
+     */
+    private String testName;
+
+    /**
+     * Custom properties.
+     */
+    private Map<String, String> customProperties = new HashMap<String, String>();
+
+    /**
+     * Sample result fields sent with every request.
+     */
+    private FieldProjection fieldProjection = FieldProjection.ALL;
+
+    /**
+     * Extractor of the recorded response headers.
+     */
+    private ResponseHeaderExtractor responseHeaderExtractor = new ResponseHeaderExtractor(new String[0],
+            KEY_HEADERS_PREFIX);
+
+    /**
+     * Whether to send metrics to the Live Metrics Stream.
+     */
+    private boolean liveMetrics;
+
+    /**
+     * Filter of the samplers to record.
+     */
+    private SamplerFilter samplerFilter = SamplerFilter.ACCEPT_ALL;
+
+    /**
+     * Whether to log the response data to the backend
+     */
+    private DataLoggingOption logResponseData;
+
+    /**
+     * Whether to log the sample data to the backend
+     */
+    private DataLoggingOption logSampleData;
+
+    /**
+     * Truncator of the request and response data.
+     */
+    private PayloadTruncator payloadTruncator = new PayloadTruncator(DEFAULT_MAX_DATA_LENGTH);
+
+    /**
+     * Warnings about request and response data that could not be logged in full.
+     */
+    private final RateLimitedWarning truncatedSampleData = new RateLimitedWarning(log,
+            "Sample data is too long, {} samples truncated so far", WARNING_INTERVAL_MS);
+    private final RateLimitedWarning truncatedResponseData = new RateLimitedWarning(log,
+            "Response data is too long, {} samples truncated so far", WARNING_INTERVAL_MS);
+    private final RateLimitedWarning binarySampleData = new RateLimitedWarning(log,
+            "Sample data is in binary format, cannot log it ({} samples so far)", WARNING_INTERVAL_MS);
+
+    /**
+     * Deduplicators of the sample and response data, null unless deduplication is enabled.
+     */
+    private PayloadDeduplicator sampleDataDeduplicator;
+    private PayloadDeduplicator responseDataDeduplicator;
+
+    /**
+     * Aggregator of samples, null unless aggregation is enabled.
+     */
+    private SampleAggregator aggregator;
+
+    /**
+     * Fraction of successful samples still sent as request telemetry when aggregation is enabled.
+     */
+    private double rawSampleFraction;
+
+    /**
+     * Client of the aggregation collector, null unless the listener streams its aggregates to a collector.
+     */
+    private CollectorClient collectorClient;
+
+    /**
+     * Adaptive sampler of the request telemetry, null unless a sampling target is set.
+     */
+    private AdaptiveSampler sampler;
+
+    /**
+     * Maximum number of requests handed to the sink at once.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Dispatcher to the async workers, null if samples are sent from the listener thread.
+     */
+    private AsyncSampleDispatcher dispatcher;
+
+    /**
+     * Time given to the whole teardown to send the pending telemetry, after which it is dropped.
+     */
+    private long shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT * 1000L;
+
+    /**
+     * Tracker of the duration percentiles per sampler, null unless percentile metrics are enabled.
+     */
+    private PercentileTracker percentileTracker;
+
+    /**
+     * Tracker of the timing components per sampler, null unless timing breakdown metrics are enabled.
+     */
+    private TimingBreakdownTracker timingBreakdownTracker;
+
+    /**
+     * Counters of the work done by the listener itself.
+     */
+    private final ListenerStats stats = new ListenerStats();
+
+    /**
+     * Whether to report the counters of the listener as custom metrics.
+     */
+    private boolean listenerMetrics;
+
+    /**
+     * Evaluator of the SLA thresholds, null unless thresholds are set.
+     */
+    private SlaEvaluator slaEvaluator;
+
+    /**
+     * Whether to stop the test when an SLA threshold is breached.
+     */
+    private boolean slaStopTest;
+
+    /**
+     * Whether the test was stopped after an SLA breach.
+     */
+    private boolean stoppedOnSlaBreach;
+
+    /**
+     * Scheduler of the periodic metrics and evaluations, null unless one of them is enabled.
+     */
+    private ScheduledExecutorService reporter;
+
+    public AzureBackendClient() {
+        super();
+    }
+
+    @Override
+    public Arguments getDefaultParameters() {
+        Arguments arguments = new Arguments();
+        arguments.addArgument(KEY_TEST_NAME, DEFAULT_TEST_NAME);
+        arguments.addArgument(KEY_CONNECTION_STRING, DEFAULT_CONNECTION_STRING);
+        arguments.addArgument(KEY_LIVE_METRICS, Boolean.toString(DEFAULT_LIVE_METRICS));
+        arguments.addArgument(KEY_SAMPLERS_LIST, DEFAULT_SAMPLERS_LIST);
+        arguments.addArgument(KEY_USE_REGEX_FOR_SAMPLER_LIST, Boolean.toString(DEFAULT_USE_REGEX_FOR_SAMPLER_LIST));
+        arguments.addArgument(KEY_EXCLUDED_SAMPLERS_LIST, DEFAULT_EXCLUDED_SAMPLERS_LIST);
+        arguments.addArgument(KEY_USE_GLOB_FOR_SAMPLER_LIST, Boolean.toString(DEFAULT_USE_GLOB_FOR_SAMPLER_LIST));
+        arguments.addArgument(KEY_LOG_RESPONSE_DATA, DEFAULT_LOG_RESPONSE_DATA.getValue());
+        arguments.addArgument(KEY_LOG_SAMPLE_DATA, DEFAULT_LOG_SAMPLE_DATA.getValue());
+        arguments.addArgument(KEY_AGGREGATE_SAMPLES, Boolean.toString(DEFAULT_AGGREGATE_SAMPLES));
+        arguments.addArgument(KEY_AGGREGATION_INTERVAL, Integer.toString(DEFAULT_AGGREGATION_INTERVAL));
+        arguments.addArgument(KEY_RAW_SAMPLE_FRACTION, DEFAULT_RAW_SAMPLE_FRACTION);
+        arguments.addArgument(KEY_COLLECTOR_ADDRESS, DEFAULT_COLLECTOR_ADDRESS);
+        arguments.addArgument(KEY_SAMPLING_TARGET, DEFAULT_SAMPLING_TARGET);
+        arguments.addArgument(KEY_SAMPLING_LATENCY_THRESHOLD, Integer.toString(DEFAULT_SAMPLING_LATENCY_THRESHOLD));
+        arguments.addArgument(KEY_PERCENTILE_METRICS, Boolean.toString(DEFAULT_PERCENTILE_METRICS));
+        arguments.addArgument(KEY_PERCENTILE_INTERVAL, Integer.toString(DEFAULT_PERCENTILE_INTERVAL));
+        arguments.addArgument(KEY_TIMING_BREAKDOWN, DEFAULT_TIMING_BREAKDOWN.getValue());
+        arguments.addArgument(KEY_TIMING_BREAKDOWN_INTERVAL, Integer.toString(DEFAULT_TIMING_BREAKDOWN_INTERVAL));
+        arguments.addArgument(KEY_LISTENER_METRICS, Boolean.toString(DEFAULT_LISTENER_METRICS));
+        arguments.addArgument(KEY_LISTENER_METRICS_INTERVAL, Integer.toString(DEFAULT_LISTENER_METRICS_INTERVAL));
+        arguments.addArgument(KEY_SLA_THRESHOLDS, DEFAULT_SLA_THRESHOLDS);
+        arguments.addArgument(KEY_SLA_WINDOW, Integer.toString(DEFAULT_SLA_WINDOW));
+        arguments.addArgument(KEY_SLA_MIN_SAMPLES, Integer.toString(DEFAULT_SLA_MIN_SAMPLES));
+        arguments.addArgument(KEY_SLA_STOP_TEST, Boolean.toString(DEFAULT_SLA_STOP_TEST));
+        arguments.addArgument(KEY_FIELDS, DEFAULT_FIELDS);
+        arguments.addArgument(KEY_NUMERIC_FIELDS_AS_MEASUREMENTS,
+                Boolean.toString(DEFAULT_NUMERIC_FIELDS_AS_MEASUREMENTS));
+        arguments.addArgument(KEY_MAX_DATA_LENGTH, Integer.toString(DEFAULT_MAX_DATA_LENGTH));
+        arguments.addArgument(KEY_DEDUPLICATE_PAYLOADS, Boolean.toString(DEFAULT_DEDUPLICATE_PAYLOADS));
+        arguments.addArgument(KEY_DEDUPLICATION_WINDOW, Integer.toString(DEFAULT_DEDUPLICATION_WINDOW));
+        arguments.addArgument(KEY_SINKS, DEFAULT_SINKS);
+        arguments.addArgument(KEY_SINK_FILE, DEFAULT_SINK_FILE);
+        arguments.addArgument(KEY_SINK_FILE_GZIP, Boolean.toString(DEFAULT_SINK_FILE_GZIP));
+        arguments.addArgument(KEY_INGESTION_MAX_IN_FLIGHT, Integer.toString(DEFAULT_INGESTION_MAX_IN_FLIGHT));
+        arguments.addArgument(KEY_INGESTION_MAX_ATTEMPTS, Integer.toString(DEFAULT_INGESTION_MAX_ATTEMPTS));
+        arguments.addArgument(KEY_INGESTION_RETRY_BACKOFF, Integer.toString(DEFAULT_INGESTION_RETRY_BACKOFF));
+        arguments.addArgument(KEY_SPOOL_DIRECTORY, DEFAULT_SPOOL_DIRECTORY);
+        arguments.addArgument(KEY_SPOOL_MAX_SIZE, Integer.toString(DEFAULT_SPOOL_MAX_SIZE));
+        arguments.addArgument(KEY_BATCH_SIZE, Integer.toString(DEFAULT_BATCH_SIZE));
+        arguments.addArgument(KEY_ASYNC_WORKERS, Integer.toString(DEFAULT_ASYNC_WORKERS));
+        arguments.addArgument(KEY_ASYNC_QUEUE_SIZE, Integer.toString(DEFAULT_ASYNC_QUEUE_SIZE));
+        arguments.addArgument(KEY_BACKPRESSURE_POLICY, DEFAULT_BACKPRESSURE_POLICY.getValue());
+        arguments.addArgument(KEY_SHUTDOWN_TIMEOUT, Integer.toString(DEFAULT_SHUTDOWN_TIMEOUT));
+
+        return arguments;
+    }
+
+    @Override
+    public void setupTest(BackendListenerContext context) throws Exception {
+        testName = context.getParameter(KEY_TEST_NAME, DEFAULT_TEST_NAME);
+        liveMetrics = context.getBooleanParameter(KEY_LIVE_METRICS, DEFAULT_LIVE_METRICS);
+        String samplersList = context.getParameter(KEY_SAMPLERS_LIST, DEFAULT_SAMPLERS_LIST).trim();
+        String excludedSamplersList = context.getParameter(KEY_EXCLUDED_SAMPLERS_LIST,
+                DEFAULT_EXCLUDED_SAMPLERS_LIST).trim();
+        boolean useRegexForSamplerList = context.getBooleanParameter(KEY_USE_REGEX_FOR_SAMPLER_LIST,
+                DEFAULT_USE_REGEX_FOR_SAMPLER_LIST);
+        boolean useGlobForSamplerList = context.getBooleanParameter(KEY_USE_GLOB_FOR_SAMPLER_LIST,
+                DEFAULT_USE_GLOB_FOR_SAMPLER_LIST);
+        if (useRegexForSamplerList && useGlobForSamplerList) {
+            log.warn("Both '{}' and '{}' are enabled, evaluating samplers lists as regular expressions",
+                    KEY_USE_REGEX_FOR_SAMPLER_LIST, KEY_USE_GLOB_FOR_SAMPLER_LIST);
+        }
+        samplerFilter = SamplerFilter.create(samplersList, excludedSamplersList, useRegexForSamplerList,
+                useGlobForSamplerList, SEPARATOR);
+        logResponseData = DataLoggingOption
+                .fromString(context.getParameter(KEY_LOG_RESPONSE_DATA, DEFAULT_LOG_RESPONSE_DATA.getValue()));
+        logSampleData = DataLoggingOption
+                .fromString(context.getParameter(KEY_LOG_SAMPLE_DATA, DEFAULT_LOG_SAMPLE_DATA.getValue()));
+        fieldProjection = FieldProjection.parse(context.getParameter(KEY_FIELDS, DEFAULT_FIELDS),
+                context.getBooleanParameter(KEY_NUMERIC_FIELDS_AS_MEASUREMENTS,
+                        DEFAULT_NUMERIC_FIELDS_AS_MEASUREMENTS), SEPARATOR);
+        TimingBreakdownMode timingBreakdown = TimingBreakdownMode.fromString(
+                context.getParameter(KEY_TIMING_BREAKDOWN, DEFAULT_TIMING_BREAKDOWN.getValue()));
+        if (!timingBreakdown.hasProperties()) {
+            fieldProjection = fieldProjection.without(SampleField.ConnectTime, SampleField.Latency,
+                    SampleField.IdleTime);
+        }
+        payloadTruncator = new PayloadTruncator(
+                Math.max(0, context.getIntParameter(KEY_MAX_DATA_LENGTH, DEFAULT_MAX_DATA_LENGTH)));
+        shutdownTimeoutMillis = Math.max(0, context.getIntParameter(KEY_SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT))
+                * 1000L;
+
+        String collectorAddress = context.getParameter(KEY_COLLECTOR_ADDRESS, DEFAULT_COLLECTOR_ADDRESS).trim();
+        if (context.getBooleanParameter(KEY_AGGREGATE_SAMPLES, DEFAULT_AGGREGATE_SAMPLES)
+                || !collectorAddress.isEmpty()) {
+            int aggregationInterval = context.getIntParameter(KEY_AGGREGATION_INTERVAL, DEFAULT_AGGREGATION_INTERVAL);
+            aggregator = new SampleAggregator(Math.max(1, aggregationInterval) * 1000L);
+            rawSampleFraction = Double.parseDouble(
+                    context.getParameter(KEY_RAW_SAMPLE_FRACTION, DEFAULT_RAW_SAMPLE_FRACTION).trim());
+        }
+
+        Iterator<String> iterator = context.getParameterNamesIterator();
+        while (iterator.hasNext()) {
+            String paramName = iterator.next();
+            if (paramName.startsWith(KEY_CUSTOM_PROPERTIES_PREFIX)) {
+                customProperties.put(paramName, context.getParameter(paramName));
+            } else if (paramName.equals(KEY_RESPONSE_HEADERS)) {
+                String[] responseHeaders = context.getParameter(KEY_RESPONSE_HEADERS).trim().toLowerCase()
+                        .split("\\s*".concat(SEPARATOR).concat("\\s*"));
+                responseHeaderExtractor = new ResponseHeaderExtractor(responseHeaders, KEY_HEADERS_PREFIX);
+            }
+        }
+
+        stats.register(testName);
+
+        if (!collectorAddress.isEmpty()) {
+            // The collector sends the telemetry of all injectors, this listener only streams its aggregates
+            collectorClient = new CollectorClient(CollectorClient.parseAddress(collectorAddress),
+                    ManagementFactory.getRuntimeMXBean().getName());
+            return;
+        }
+
+        sink = createSink(context);
+
+        double samplingTarget = Double.parseDouble(
+                context.getParameter(KEY_SAMPLING_TARGET, DEFAULT_SAMPLING_TARGET).trim());
+        if (samplingTarget > 0) {
+            sampler = new AdaptiveSampler(samplingTarget,
+                    context.getIntParameter(KEY_SAMPLING_LATENCY_THRESHOLD, DEFAULT_SAMPLING_LATENCY_THRESHOLD),
+                    SAMPLING_EVALUATION_INTERVAL_MS, System.currentTimeMillis());
+        }
+
+        if (context.getBooleanParameter(KEY_PERCENTILE_METRICS, DEFAULT_PERCENTILE_METRICS)) {
+            long percentileInterval = Math.max(1,
+                    context.getIntParameter(KEY_PERCENTILE_INTERVAL, DEFAULT_PERCENTILE_INTERVAL));
+            percentileTracker = new PercentileTracker();
+            reporter().scheduleAtFixedRate(this::reportPercentiles, percentileInterval, percentileInterval,
+                    TimeUnit.SECONDS);
+        }
+        if (timingBreakdown.hasMetrics()) {
+            long timingBreakdownInterval = Math.max(1,
+                    context.getIntParameter(KEY_TIMING_BREAKDOWN_INTERVAL, DEFAULT_TIMING_BREAKDOWN_INTERVAL));
+            timingBreakdownTracker = new TimingBreakdownTracker();
+            reporter().scheduleAtFixedRate(this::reportTimingBreakdown, timingBreakdownInterval,
+                    timingBreakdownInterval, TimeUnit.SECONDS);
+        }
+        if (context.getBooleanParameter(KEY_DEDUPLICATE_PAYLOADS, DEFAULT_DEDUPLICATE_PAYLOADS)) {
+            long deduplicationWindow = Math.max(1,
+                    context.getIntParameter(KEY_DEDUPLICATION_WINDOW, DEFAULT_DEDUPLICATION_WINDOW));
+            sampleDataDeduplicator = new PayloadDeduplicator(deduplicationWindow * 1000L);
+            responseDataDeduplicator = new PayloadDeduplicator(deduplicationWindow * 1000L);
+            reporter().scheduleAtFixedRate(this::reportRecurringPayloads, deduplicationWindow, deduplicationWindow,
+                    TimeUnit.SECONDS);
+        }
+        listenerMetrics = context.getBooleanParameter(KEY_LISTENER_METRICS, DEFAULT_LISTENER_METRICS);
+        if (listenerMetrics) {
+            long listenerMetricsInterval = Math.max(1,
+                    context.getIntParameter(KEY_LISTENER_METRICS_INTERVAL, DEFAULT_LISTENER_METRICS_INTERVAL));
+            reporter().scheduleAtFixedRate(this::reportListenerStats, listenerMetricsInterval,
+                    listenerMetricsInterval, TimeUnit.SECONDS);
+        }
+        List<SlaEvaluator.Threshold> slaThresholds = SlaEvaluator.parse(
+                context.getParameter(KEY_SLA_THRESHOLDS, DEFAULT_SLA_THRESHOLDS), SEPARATOR);
+        if (!slaThresholds.isEmpty()) {
+            long slaWindow = Math.max(1, context.getIntParameter(KEY_SLA_WINDOW, DEFAULT_SLA_WINDOW));
+            slaEvaluator = new SlaEvaluator(slaThresholds, slaWindow * 1000L,
+                    context.getIntParameter(KEY_SLA_MIN_SAMPLES, DEFAULT_SLA_MIN_SAMPLES));
+            slaStopTest = context.getBooleanParameter(KEY_SLA_STOP_TEST, DEFAULT_SLA_STOP_TEST);
+            reporter().scheduleAtFixedRate(this::evaluateSla, slaEvaluator.getSlotMillis(),
+                    slaEvaluator.getSlotMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        batchSize = Math.max(1, context.getIntParameter(KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        int asyncWorkers = context.getIntParameter(KEY_ASYNC_WORKERS, DEFAULT_ASYNC_WORKERS);
+        if (asyncWorkers > 0) {
+            int asyncQueueSize = context.getIntParameter(KEY_ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE);
+            BackpressurePolicy backpressurePolicy = BackpressurePolicy.fromString(
+                    context.getParameter(KEY_BACKPRESSURE_POLICY, DEFAULT_BACKPRESSURE_POLICY.getValue()));
+            dispatcher = new AsyncSampleDispatcher(asyncWorkers, asyncQueueSize, batchSize, backpressurePolicy,
+                    this::trackRequests);
+            stats.setDispatcher(dispatcher);
+        }
+    }
+
+    private ScheduledExecutorService reporter() {
+        if (reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "azure-backend-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return reporter;
+    }
+
+    private TelemetrySink createSink(BackendListenerContext context) throws IOException {
+        Set<SinkType> sinkTypes = EnumSet.noneOf(SinkType.class);
+        String[] sinkNames = context.getParameter(KEY_SINKS, DEFAULT_SINKS).trim()
+                .split("\\s*".concat(SEPARATOR).concat("\\s*"));
+        for (String sinkName : sinkNames) {
+            sinkTypes.add(SinkType.fromString(sinkName));
+        }
+
+        List<TelemetrySink> sinks = new ArrayList<TelemetrySink>();
+        if (sinkTypes.contains(SinkType.ApplicationInsights)) {
+            sinks.add(createApplicationInsightsSink(context));
+        }
+        if (sinkTypes.contains(SinkType.File)) {
+            String instrumentationKey;
+            try {
+                instrumentationKey = IngestionEndpoint.resolve(context.getParameter(KEY_CONNECTION_STRING),
+                        context.getParameter(KEY_INSTRUMENTATION_KEY)).getInstrumentationKey();
+            } catch (IllegalArgumentException e) {
+                instrumentationKey = "";
+            }
+            File file = new File(context.getParameter(KEY_SINK_FILE, DEFAULT_SINK_FILE).trim());
+            sinks.add(new FileSink(file, context.getBooleanParameter(KEY_SINK_FILE_GZIP, DEFAULT_SINK_FILE_GZIP),
+                    new EnvelopeEncoder(instrumentationKey, testName, customProperties)));
+        }
+        if (sinkTypes.contains(SinkType.Ingestion)) {
+            IngestionEndpoint endpoint = IngestionEndpoint.resolve(context.getParameter(KEY_CONNECTION_STRING),
+                    context.getParameter(KEY_INSTRUMENTATION_KEY));
+            sinks.add(new IngestionSink(new IngestionClient(endpoint.getTrackUrl()),
+                    new EnvelopeEncoder(endpoint.getInstrumentationKey(), testName, customProperties),
+                    context.getIntParameter(KEY_INGESTION_MAX_IN_FLIGHT, DEFAULT_INGESTION_MAX_IN_FLIGHT),
+                    context.getIntParameter(KEY_INGESTION_MAX_ATTEMPTS, DEFAULT_INGESTION_MAX_ATTEMPTS),
+                    context.getIntParameter(KEY_INGESTION_RETRY_BACKOFF, DEFAULT_INGESTION_RETRY_BACKOFF)));
+            if (liveMetrics && !sinkTypes.contains(SinkType.ApplicationInsights)) {
+                log.info("Live Metrics are only fed by the '{}' sink", SinkType.ApplicationInsights.getValue());
+            }
+        }
+        return sinks.size() == 1 ? sinks.get(0) : new TeeSink(sinks);
+    }
+
+    private TelemetrySink createApplicationInsightsSink(BackendListenerContext context) throws IOException {
+        TelemetryConfiguration config = createTelemetryConfiguration(context);
+        telemetryClient = new TelemetryClient(config);
+        if (liveMetrics) {
+            QuickPulse.INSTANCE.initialize(config);
+        }
+        TelemetrySink applicationInsightsSink = new ApplicationInsightsSink(telemetryClient);
+
+        String spoolDirectory = context.getParameter(KEY_SPOOL_DIRECTORY, DEFAULT_SPOOL_DIRECTORY).trim();
+        if (spoolDirectory.isEmpty()) {
+            return applicationInsightsSink;
+        }
+        IngestionEndpoint endpoint = IngestionEndpoint.resolve(context.getParameter(KEY_CONNECTION_STRING),
+                context.getParameter(KEY_INSTRUMENTATION_KEY));
+        long spoolMaxSize = context.getIntParameter(KEY_SPOOL_MAX_SIZE, DEFAULT_SPOOL_MAX_SIZE) * 1024L * 1024L;
+        DiskSpool spool = new DiskSpool(new File(spoolDirectory), spoolMaxSize);
+        SpoolSender spoolSender = new SpoolSender(spool, new IngestionClient(endpoint.getTrackUrl()),
+                new EnvelopeEncoder(endpoint.getInstrumentationKey()));
+        spoolSender.start();
+        return new SpoolSink(spool, spoolSender, applicationInsightsSink);
+    }
+
+    private TelemetrySink sink() {
+        if (sink == null) {
+            sink = new ApplicationInsightsSink(telemetryClient);
+        }
+        return sink;
+    }
+
+    /**
+     * Creates the Application Insights configuration, can be overridden to plug in another telemetry channel.
+     */
+    TelemetryConfiguration createTelemetryConfiguration(BackendListenerContext context) {
+        TelemetryConfiguration config = TelemetryConfiguration.createDefault();
+        String instrumentationKey = context.getParameter(KEY_INSTRUMENTATION_KEY);
+        if (instrumentationKey != null) {
+            log.warn("'instrumentationKey' is deprecated, use 'connectionString' instead");
+            config.setInstrumentationKey(instrumentationKey);
+        }
+
+        String connectionString = context.getParameter(KEY_CONNECTION_STRING);
+        if (connectionString != null) {
+            config.setConnectionString(connectionString);
+        }
+        return config;
+    }
+
+    /**
+     * Builds the request telemetry of a batch of samples and hands it to the sink {@link #batchSize} requests at a
+     * time.
+     */
+    private void trackRequests(List<SampleResult> samples) {
+        TelemetrySink target = sink();
+
+        List<RequestTelemetry> requests = new ArrayList<RequestTelemetry>(Math.min(samples.size(), batchSize));
+        long buildStart = System.nanoTime();
+        for (SampleResult sr : samples) {
+            RequestTelemetry req = buildRequest(sr);
+            if (req == null) {
+                continue;
+            }
+            requests.add(req);
+            if (requests.size() >= batchSize) {
+                trackRequests(target, requests, buildStart);
+                requests.clear();
+                buildStart = System.nanoTime();
+            }
+        }
+        if (!requests.isEmpty()) {
+            trackRequests(target, requests, buildStart);
+        }
+    }
+
+    /**
+     * Hands a batch of requests to the sink, timing both the build of the batch, started at {@code buildStart}, and
+     * the call to the sink.
+     */
+    private void trackRequests(TelemetrySink target, List<RequestTelemetry> requests, long buildStart) {
+        long start = System.nanoTime();
+        stats.requestsBuilt(buildStart, start);
+        target.trackRequests(requests);
+        stats.sinkCalled(requests.size(), start, System.nanoTime());
+    }
+
+    /**
+     * Builds the request telemetry of a sample, or returns null if the sample is not sent.
+     */
+    private RequestTelemetry buildRequest(SampleResult sr) {
+        int itemCount = 1;
+        if (sampler != null) {
+            itemCount = sampler.sample(sr);
+            if (itemCount == 0) {
+                stats.sampledOut();
+                return null;
+            }
+        }
+
+        Date timestamp = new Date(sr.getTimeStamp());
+        Duration duration = new Duration(sr.getTime());
+        RequestTelemetry req = new RequestTelemetry(testName, timestamp, duration, sr.getResponseCode(),
+                sr.isSuccessful());
+        req.getContext().getOperation().setName(testName);
+        if (sampler != null) {
+            // Lets Application Insights count each kept item as the samples it stands for
+            req.setSamplingPercentage(100.0 / itemCount);
+        }
+
+        if (sr.getURL() != null) {
+            req.setUrl(sr.getURL());
+        }
+
+        Map<String, String> properties = req.getProperties();
+        properties.putAll(customProperties);
+        fieldProjection.apply(sr, properties, req.getMetrics());
+
+        responseHeaderExtractor.extract(sr.getResponseHeaders(), properties);
+
+        if (sr.getSamplerData() != null && ((logSampleData == DataLoggingOption.Always) ||
+                (logSampleData == DataLoggingOption.OnFailure && !sr.isSuccessful()))) {
+
+            if (sr.getDataType() == SampleResult.TEXT) {
+                String samplerData = sr.getSamplerData();
+                if (sampleDataDeduplicator == null || !isDuplicate(sampleDataDeduplicator, "SampleData", sr,
+                        PayloadDeduplicator.hash(samplerData, payloadTruncator.getMaxLength() + 1), properties)) {
+                    if (payloadTruncator.isTooLong(samplerData)) {
+                        truncatedSampleData.increment();
+                        samplerData = payloadTruncator.truncate(samplerData);
+                    }
+                    properties.put("SampleData", samplerData);
+                }
+            } else {
+                binarySampleData.increment();
+                properties.put("SampleData", "[BINARY DATA]");
+            }
+        }
+
+        if (logResponseData == DataLoggingOption.Always ||
+                (logResponseData == DataLoggingOption.OnFailure && !sr.isSuccessful())) {
+            // Only the kept characters are decoded, the text is built if the payload is not a duplicate
+            PayloadTruncator.Result responseData = payloadTruncator.decode(sr.getResponseData(),
+                    sr.getDataEncodingWithDefault());
+            if (responseDataDeduplicator == null || !isDuplicate(responseDataDeduplicator, "ResponseData", sr,
+                    PayloadDeduplicator.hash(responseData), properties)) {
+                if (responseData.isTruncated()) {
+                    truncatedResponseData.increment();
+                }
+                stats.responseDataCaptured(responseData.getBytesDecoded());
+                properties.put("ResponseData", responseData.getText());
+            }
+        }
+
+        return req;
+    }
+
+    /**
+     * Adds the hash of a payload to the properties, along with its number of occurrences if it was already sent in
+     * full during the deduplication window.
+     *
+     * @return whether the payload was already sent and must not be added
+     */
+    private static boolean isDuplicate(PayloadDeduplicator deduplicator, String property, SampleResult sr, long hash,
+            Map<String, String> properties) {
+        long occurrence = deduplicator.occurrence(sr.getSampleLabel(), sr.getResponseCode(), hash,
+                System.currentTimeMillis());
+        properties.put(property + "Hash", PayloadDeduplicator.toHex(hash));
+        if (occurrence == 1) {
+            return false;
+        }
+        properties.put(property + "Occurrences", Long.toString(occurrence));
+        return true;
+    }
+
+    @Override
+    public void handleSampleResults(List<SampleResult> results, BackendListenerContext context) {
+        stats.received(results.size());
+        long now = System.currentTimeMillis();
+        List<SampleResult> accepted = dispatcher == null ? new ArrayList<SampleResult>(results.size()) : null;
+        for (SampleResult sr : results) {
+            if (!samplerFilter.accept(sr.getSampleLabel())) {
+                stats.filtered();
+                continue;
+            }
+            if (collectorClient != null) {
+                aggregator.add(sr);
+                continue;
+            }
+            if (percentileTracker != null) {
+                percentileTracker.record(sr.getSampleLabel(), sr.getTime());
+            }
+            if (timingBreakdownTracker != null) {
+                timingBreakdownTracker.record(sr);
+            }
+            if (slaEvaluator != null) {
+                slaEvaluator.record(sr.getSampleLabel(), sr.getTime(), sr.isSuccessful(), now);
+            }
+
+            if (aggregator == null) {
+                emit(sr, accepted);
+            } else {
+                aggregator.add(sr);
+                if (!sr.isSuccessful() || (rawSampleFraction > 0
+                        && ThreadLocalRandom.current().nextDouble() < rawSampleFraction)) {
+                    emit(sr, accepted);
+                }
+            }
+        }
+        if (accepted != null && !accepted.isEmpty()) {
+            trackRequests(accepted);
+        }
+
+        if (aggregator != null && aggregator.isWindowElapsed(System.currentTimeMillis())) {
+            flushAggregates();
+        }
+    }
+
+    /**
+     * Hands the sample to the async workers, or adds it to the batch sent from the listener thread.
+     */
+    private void emit(SampleResult sr, List<SampleResult> batch) {
+        if (dispatcher != null) {
+            dispatcher.submit(sr);
+        } else {
+            batch.add(sr);
+        }
+    }
+
+    private void flushAggregates() {
+        if (collectorClient != null) {
+            long now = System.currentTimeMillis();
+            collectorClient.send(aggregator.drain(now));
+            return;
+        }
+        for (MetricTelemetry metric : aggregator.flush(testName, customProperties, System.currentTimeMillis())) {
+            sink().trackMetric(metric);
+        }
+    }
+
+    private void reportPercentiles() {
+        try {
+            for (MetricTelemetry metric : percentileTracker.report(testName, customProperties, new Date())) {
+                sink().trackMetric(metric);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the next reports
+            log.error("Cannot report percentile metrics", e);
+        }
+    }
+
+    private void reportTimingBreakdown() {
+        try {
+            for (MetricTelemetry metric : timingBreakdownTracker.report(testName, customProperties, new Date())) {
+                sink().trackMetric(metric);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the next reports
+            log.error("Cannot report timing breakdown metrics", e);
+        }
+    }
+
+    private void reportRecurringPayloads() {
+        try {
+            Date timestamp = new Date();
+            String name = testName + ".recurringPayloads";
+            List<MetricTelemetry> metrics = new ArrayList<MetricTelemetry>();
+            metrics.addAll(sampleDataDeduplicator.report(name, "SampleData", customProperties, timestamp));
+            metrics.addAll(responseDataDeduplicator.report(name, "ResponseData", customProperties, timestamp));
+            for (MetricTelemetry metric : metrics) {
+                sink().trackMetric(metric);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the next reports
+            log.error("Cannot report recurring payloads", e);
+        }
+    }
+
+    private void reportListenerStats() {
+        try {
+            for (MetricTelemetry metric : stats.report(testName, customProperties, new Date())) {
+                sink().trackMetric(metric);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the next reports
+            log.error("Cannot report listener metrics", e);
+        }
+    }
+
+    private void evaluateSla() {
+        try {
+            List<EventTelemetry> breaches = slaEvaluator.evaluate(testName + ".slaBreach", customProperties,
+                    System.currentTimeMillis());
+            for (EventTelemetry breach : breaches) {
+                sink().trackEvent(breach);
+            }
+            if (!breaches.isEmpty() && slaStopTest && !stoppedOnSlaBreach) {
+                stoppedOnSlaBreach = true;
+                log.error("Stopping the test, {} SLA thresholds breached", breaches.size());
+                sink().flush();
+                stopTest();
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the next evaluations
+            log.error("Cannot evaluate SLA thresholds", e);
+        }
+    }
+
+    /**
+     * Stops the test gracefully, letting the running samplers end, can be overridden by tests.
+     */
+    void stopTest() {
+        StandardJMeterEngine.stopEngine();
+    }
+
+    /**
+     * Stops the intake of samples, then drains the async queue, the periodic reports and the sinks one after the other
+     * within a single deadline of {@link #shutdownTimeoutMillis}, so that the end of the test is not delayed further
+     * by a slow or unreachable endpoint.
+     */
+    @Override
+    public void teardownTest(BackendListenerContext context) throws Exception {
+        long start = System.currentTimeMillis();
+        long deadline = start + shutdownTimeoutMillis;
+        if (dispatcher != null) {
+            if (!dispatcher.shutdown(remainingMillis(deadline))) {
+                log.warn("Async workers did not drain their queue within {} ms", shutdownTimeoutMillis);
+            }
+            log.info("Async pipeline: {} samples submitted, {} sent, {} overflows, {} dropped",
+                    dispatcher.getSubmitted(), dispatcher.getHandled(), dispatcher.getOverflows(),
+                    dispatcher.getDropped());
+            if (dispatcher.getDropped() > 0) {
+                log.warn("{} samples were dropped by the async pipeline and not sent", dispatcher.getDropped());
+            }
+        }
+        if (aggregator != null) {
+            flushAggregates();
+        }
+        if (reporter != null) {
+            reporter.shutdown();
+            reporter.awaitTermination(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+            if (percentileTracker != null) {
+                reportPercentiles();
+            }
+            if (timingBreakdownTracker != null) {
+                reportTimingBreakdown();
+            }
+            if (responseDataDeduplicator != null) {
+                reportRecurringPayloads();
+            }
+            if (listenerMetrics) {
+                reportListenerStats();
+            }
+        }
+        if (slaEvaluator != null) {
+            log.info("SLA: {} breaches{}", slaEvaluator.getBreaches(),
+                    stoppedOnSlaBreach ? ", the test was stopped" : "");
+        }
+        if (sampler != null) {
+            log.info("Adaptive sampling kept {} of {} samples", sampler.getKept(), sampler.getSeen());
+        }
+        if (truncatedSampleData.getCount() + truncatedResponseData.getCount() > 0) {
+            log.info("Truncated the sample data of {} samples and the response data of {} samples to {} characters",
+                    truncatedSampleData.getCount(), truncatedResponseData.getCount(),
+                    payloadTruncator.getMaxLength());
+        }
+        log.info("Listener: {} samples received, {} filtered out, {} sampled out, {} requests sent",
+                stats.getReceived(), stats.getFiltered(), stats.getSampledOut(), stats.getEmitted());
+        stats.unregister();
+        String delivery;
+        if (collectorClient != null) {
+            collectorClient.close(remainingMillis(deadline));
+            delivery = "metrics sent to the collector";
+        } else {
+            sink().close(remainingMillis(deadline));
+            delivery = sink().describe();
+        }
+        log.info("Teardown took {} ms: {}; {} samples dropped", System.currentTimeMillis() - start, delivery,
+                dispatcher == null ? 0 : dispatcher.getDropped());
+        super.teardownTest(context);
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
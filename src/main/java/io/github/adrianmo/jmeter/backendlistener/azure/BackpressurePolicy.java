@@ -0,0 +1,36 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public enum BackpressurePolicy {
+    Block("Block"),
+    DropOldest("DropOldest"),
+    DropNewest("DropNewest"),
+    Sample("Sample");
+
+    private final String value;
+    private static final Logger log = LoggerFactory.getLogger(AzureBackendClient.class);
+
+    BackpressurePolicy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static BackpressurePolicy fromString(String value) {
+        for (BackpressurePolicy policy : BackpressurePolicy.values()) {
+            if (policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+
+        if (value != null && !value.isEmpty()) {
+            log.warn("Backpressure policy '{}' is not valid, defaulting to 'Block'", value);
+        }
+
+        return Block;
+    }
+}
@@ -0,0 +1,211 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the aggregates of an injector to an {@link AggregationCollector}.
+ *
+ * Aggregates are handed to a writer thread, so that the listener thread never waits for the network, however slow the
+ * collector is to read them. Aggregates that cannot be sent because the collector is unreachable are merged into the
+ * next window, so nothing is lost while the collector restarts and the memory used stays bounded by the number of
+ * buckets.
+ */
+final class CollectorClient {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(CollectorClient.class);
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long RECONNECT_INTERVAL_MS = 5000;
+
+    private final InetSocketAddress address;
+    private final String injector;
+    private final Thread writer;
+
+    /**
+     * Aggregates not handed to the writer yet, guarded by the client.
+     */
+    private Map<SampleAggregator.BucketKey, LatencyHistogram> pending =
+            new HashMap<SampleAggregator.BucketKey, LatencyHistogram>();
+    private boolean closing;
+
+    /**
+     * Only used by the writer thread, except for the socket which is closed to stop a blocked writer.
+     */
+    private volatile Socket socket;
+    private DataOutputStream out;
+    private long nextConnectAttempt;
+
+    CollectorClient(InetSocketAddress address, String injector) {
+        this.address = address;
+        this.injector = injector;
+        this.writer = new Thread(this::run, "azure-backend-collector-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Parses a {@code host:port} address.
+     *
+     * @throws IllegalArgumentException if the address has no port
+     */
+    static InetSocketAddress parseAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0 || separator == address.length() - 1) {
+            throw new IllegalArgumentException("Collector address '" + address + "' is not of the form host:port");
+        }
+        return InetSocketAddress.createUnresolved(address.substring(0, separator),
+                Integer.parseInt(address.substring(separator + 1)));
+    }
+
+    /**
+     * Hands the aggregates of a window to the writer, merged with the ones that could not be sent before.
+     */
+    public synchronized void send(Map<SampleAggregator.BucketKey, LatencyHistogram> buckets) {
+        merge(pending, buckets);
+        if (!pending.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    private static void merge(Map<SampleAggregator.BucketKey, LatencyHistogram> target,
+            Map<SampleAggregator.BucketKey, LatencyHistogram> buckets) {
+        for (Map.Entry<SampleAggregator.BucketKey, LatencyHistogram> entry : buckets.entrySet()) {
+            LatencyHistogram existing = target.putIfAbsent(entry.getKey(), entry.getValue());
+            if (existing != null) {
+                existing.merge(entry.getValue());
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Map<SampleAggregator.BucketKey, LatencyHistogram> frame;
+                synchronized (this) {
+                    // Once closing, the aggregates left get a last attempt whatever the reconnect interval
+                    while (!closing && (pending.isEmpty() || System.currentTimeMillis() < nextConnectAttempt)) {
+                        wait(pending.isEmpty() ? 0
+                                : Math.max(1, nextConnectAttempt - System.currentTimeMillis()));
+                    }
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    frame = pending;
+                    pending = new HashMap<SampleAggregator.BucketKey, LatencyHistogram>();
+                }
+                if (!write(frame)) {
+                    synchronized (this) {
+                        merge(pending, frame);
+                        if (closing) {
+                            return;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            disconnect();
+        }
+    }
+
+    private boolean write(Map<SampleAggregator.BucketKey, LatencyHistogram> frame) {
+        if (out == null && !connect()) {
+            return false;
+        }
+        try {
+            CollectorProtocol.writeFrame(out, frame);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            log.warn("Lost the connection to the collector {}, will reconnect", address, e);
+            disconnect();
+            nextConnectAttempt = System.currentTimeMillis() + RECONNECT_INTERVAL_MS;
+            return false;
+        }
+    }
+
+    private boolean connect() {
+        Socket candidate = new Socket();
+        // Published before connecting, so that close can abort the connection
+        socket = candidate;
+        try {
+            candidate.setTcpNoDelay(true);
+            candidate.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+            out = new DataOutputStream(new BufferedOutputStream(candidate.getOutputStream(), 64 * 1024));
+            CollectorProtocol.writeHello(out, injector);
+            log.info("Connected to the collector {}", address);
+            return true;
+        } catch (IOException e) {
+            log.warn("Cannot connect to the collector {}, will retry: {}", address, e.toString());
+            disconnect();
+            nextConnectAttempt = System.currentTimeMillis() + RECONNECT_INTERVAL_MS;
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        out = null;
+        abort();
+        socket = null;
+    }
+
+    /**
+     * Closes the socket, failing the connection or write the writer may be blocked in.
+     */
+    private void abort() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.debug("Cannot close the connection to the collector", e);
+            }
+        }
+    }
+
+    /**
+     * Number of buckets waiting to be sent, not counting the ones being written.
+     */
+    public synchronized int getPendingBuckets() {
+        return pending.size();
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for the writer to make a last attempt to send the pending aggregates, then
+     * closes the connection.
+     *
+     * @return whether all the aggregates were sent
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        writer.join(Math.max(1, timeoutMillis));
+        if (writer.isAlive()) {
+            // Fails the write or connection the writer is blocked in, it then keeps its aggregates as pending
+            log.warn("The collector {} did not take the last aggregates within {} ms", address, timeoutMillis);
+            abort();
+            writer.join(CONNECT_TIMEOUT_MS);
+        }
+        int unsent = getPendingBuckets();
+        if (unsent > 0 || writer.isAlive()) {
+            log.warn("{} aggregates could not be sent to the collector {}", unsent, address);
+            return false;
+        }
+        return true;
+    }
+}
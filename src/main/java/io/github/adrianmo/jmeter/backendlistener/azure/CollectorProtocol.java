@@ -0,0 +1,135 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary protocol between injector listeners and the {@link AggregationCollector}.
+ *
+ * A connection starts with a magic number, the protocol version and the name of the injector, then carries one frame
+ * per aggregation window. A frame holds the number of buckets followed by, for every bucket, its label, response code
+ * and success flag, the count, sum, min and max of the durations and the non-zero histogram buckets as index and count
+ * pairs. Strings are their number of UTF-8 bytes followed by the bytes, and are truncated to
+ * {@link #MAX_STRING_LENGTH} characters, so that no label can make a frame impossible to write.
+ */
+final class CollectorProtocol {
+
+    static final int MAGIC = 0x415a4243;
+    static final byte VERSION = 2;
+
+    /**
+     * Maximum number of characters of a string.
+     */
+    static final int MAX_STRING_LENGTH = 1 << 20;
+
+    private CollectorProtocol() {
+    }
+
+    static void writeHello(DataOutputStream out, String injector) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeString(out, injector);
+    }
+
+    /**
+     * Reads the start of a connection.
+     *
+     * @return the name of the injector
+     */
+    static String readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an aggregation stream");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported aggregation protocol version " + version);
+        }
+        return readString(in);
+    }
+
+    static void writeFrame(DataOutputStream out, Map<SampleAggregator.BucketKey, LatencyHistogram> buckets)
+            throws IOException {
+        out.writeInt(buckets.size());
+        for (Map.Entry<SampleAggregator.BucketKey, LatencyHistogram> entry : buckets.entrySet()) {
+            SampleAggregator.BucketKey key = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            writeString(out, key.getLabel());
+            writeString(out, key.getResponseCode());
+            out.writeBoolean(key.isSuccess());
+            out.writeLong(histogram.getSum());
+            out.writeLong(histogram.getMin());
+            out.writeLong(histogram.getMax());
+
+            long[] counts = histogram.getBucketCounts();
+            int nonZero = 0;
+            for (long count : counts) {
+                nonZero += count == 0 ? 0 : 1;
+            }
+            out.writeShort(nonZero);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    out.writeShort(i);
+                    out.writeLong(counts[i]);
+                }
+            }
+        }
+    }
+
+    static Map<SampleAggregator.BucketKey, LatencyHistogram> readFrame(DataInputStream in) throws IOException {
+        int bucketCount = in.readInt();
+        Map<SampleAggregator.BucketKey, LatencyHistogram> buckets =
+                new HashMap<SampleAggregator.BucketKey, LatencyHistogram>();
+        for (int b = 0; b < bucketCount; b++) {
+            SampleAggregator.BucketKey key = new SampleAggregator.BucketKey(readString(in), readString(in),
+                    in.readBoolean());
+            long sum = in.readLong();
+            long min = in.readLong();
+            long max = in.readLong();
+            long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+            int nonZero = in.readUnsignedShort();
+            for (int i = 0; i < nonZero; i++) {
+                int index = in.readUnsignedShort();
+                long count = in.readLong();
+                if (index >= counts.length) {
+                    throw new IOException("Invalid histogram bucket " + index);
+                }
+                counts[index] = count;
+            }
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.merge(counts, sum, min, max);
+            LatencyHistogram existing = buckets.putIfAbsent(key, histogram);
+            if (existing != null) {
+                existing.merge(histogram);
+            }
+        }
+        return buckets;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        String kept = value;
+        if (kept.length() > MAX_STRING_LENGTH) {
+            // Does not split a surrogate pair
+            int end = Character.isHighSurrogate(kept.charAt(MAX_STRING_LENGTH - 1))
+                    ? MAX_STRING_LENGTH - 1 : MAX_STRING_LENGTH;
+            kept = kept.substring(0, end);
+        }
+        byte[] bytes = kept.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        // A character takes at most 3 bytes, or 4 for a surrogate pair
+        if (length < 0 || length > 3 * MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,360 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Write-ahead spool of telemetry records on local disk.
+ *
+ * Records are appended to memory-mapped segment files of a fixed size, each record being its length followed by its
+ * bytes. The header of a segment holds its write and read positions, so records that were not sent yet are replayed
+ * in order after a restart. A record left incomplete by a crash is dropped with the records after it when the segment
+ * is reopened. When the spool exceeds its maximum size, the oldest segment is evicted with its unsent records. A spool
+ * directory can only be used by one listener at a time. Once closed, appending fails and nothing is left to peek, so
+ * a sender that is still stopping cannot touch the unmapped segments.
+ */
+final class DiskSpool implements Closeable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(DiskSpool.class);
+
+    /**
+     * Segment header: magic number, write position and read position.
+     */
+    private static final int MAGIC = 0x415a5350;
+    private static final int WRITE_POSITION_OFFSET = 4;
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Number of segments the maximum size of the spool is split into.
+     */
+    static final int SEGMENT_COUNT = 8;
+
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String LOCK_FILE = "spool.lock";
+
+    private final File directory;
+    private final int segmentSize;
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private long pendingRecords;
+    private long evictedRecords;
+    private long rejectedRecords;
+
+    private Segment peekedSegment;
+    private int peekedEnd;
+    private boolean closed;
+
+    DiskSpool(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(64 * 1024, maxBytes / SEGMENT_COUNT));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        lock = lockFile.getChannel().tryLock();
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Spool directory " + directory + " is already used by another listener");
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = Segment.open(file, sequenceOf(file));
+                if (segment == null) {
+                    log.warn("Discarding unreadable spool segment {}", file);
+                    delete(file);
+                } else {
+                    segments.addLast(segment);
+                    pendingRecords += segment.countUnread();
+                }
+            }
+        }
+        if (pendingRecords > 0) {
+            log.info("Replaying {} spooled records from {}", pendingRecords, directory);
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Appends a record, evicting the oldest segment if the spool is full.
+     *
+     * @return false if the record is larger than a segment and was discarded
+     */
+    public synchronized boolean append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("Spool " + directory + " is closed");
+        }
+        int needed = 4 + record.length;
+        if (needed > segmentSize - HEADER_SIZE) {
+            rejectedRecords++;
+            return false;
+        }
+        Segment current = segments.peekLast();
+        // A segment reopened after a restart has the size of the spool it was created by
+        if (current.getWritePosition() + needed > current.capacity()) {
+            current = roll();
+        }
+        current.write(record);
+        pendingRecords++;
+        return true;
+    }
+
+    /**
+     * Appends several records at once, in order.
+     *
+     * @return the number of records appended, the others were larger than a segment and discarded
+     * @throws IOException if a new segment cannot be created, records appended before the failure are kept
+     */
+    public synchronized int append(List<byte[]> records) throws IOException {
+        int appended = 0;
+        for (byte[] record : records) {
+            if (append(record)) {
+                appended++;
+            }
+        }
+        return appended;
+    }
+
+    private Segment roll() throws IOException {
+        Segment last = segments.peekLast();
+        long sequence = last == null ? 0 : last.sequence + 1;
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        Segment segment = Segment.create(file, sequence, segmentSize);
+        segments.addLast(segment);
+
+        while (segments.size() > SEGMENT_COUNT) {
+            Segment oldest = segments.removeFirst();
+            long unread = oldest.countUnread();
+            evictedRecords += unread;
+            pendingRecords -= unread;
+            delete(oldest.file);
+            log.warn("Spool is full, evicted {} unsent records", unread);
+        }
+        return segment;
+    }
+
+    /**
+     * Returns up to {@code maxRecords} of the oldest records without removing them, they are removed by
+     * {@link #commit()} once they have been sent.
+     */
+    public synchronized List<byte[]> peek(int maxRecords) {
+        if (closed) {
+            return Collections.emptyList();
+        }
+        while (true) {
+            Segment oldest = segments.peekFirst();
+            if (oldest.getReadPosition() < oldest.getWritePosition()) {
+                break;
+            }
+            if (segments.size() == 1) {
+                return Collections.emptyList();
+            }
+            segments.removeFirst();
+            delete(oldest.file);
+        }
+
+        Segment oldest = segments.peekFirst();
+        List<byte[]> records = new ArrayList<byte[]>(Math.min(maxRecords, 1024));
+        int position = oldest.getReadPosition();
+        int end = oldest.getWritePosition();
+        while (position < end && records.size() < maxRecords) {
+            byte[] record = oldest.read(position);
+            records.add(record);
+            position += 4 + record.length;
+        }
+        peekedSegment = oldest;
+        peekedEnd = position;
+        return records;
+    }
+
+    /**
+     * Removes the records returned by the last {@link #peek(int)}, unless they have been evicted meanwhile.
+     */
+    public synchronized void commit() {
+        if (peekedSegment != null && peekedSegment == segments.peekFirst()) {
+            pendingRecords -= peekedSegment.countRecords(peekedSegment.getReadPosition(), peekedEnd);
+            peekedSegment.setReadPosition(peekedEnd);
+        }
+        peekedSegment = null;
+    }
+
+    public synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    public synchronized long getRejectedRecords() {
+        return rejectedRecords;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            log.warn("Cannot delete spool segment {}", file);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        peekedSegment = null;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        lock.release();
+        lockFile.close();
+    }
+
+    /**
+     * Memory-mapped segment file.
+     */
+    private static final class Segment {
+        private final File file;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+
+        private Segment(File file, long sequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file, long sequence, int size) throws IOException {
+            MappedByteBuffer buffer = map(file, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+            buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+            return new Segment(file, sequence, buffer);
+        }
+
+        static Segment open(File file, long sequence) throws IOException {
+            long size = file.length();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = map(file, (int) size);
+            int write = buffer.getInt(WRITE_POSITION_OFFSET);
+            int read = buffer.getInt(READ_POSITION_OFFSET);
+            if (buffer.getInt(0) != MAGIC || write > size || read < HEADER_SIZE || read > write) {
+                return null;
+            }
+            int end = completeRecordsEnd(buffer, read, write);
+            if (end < write) {
+                log.warn("Dropping {} bytes of spool segment {} after offset {}, a record there is incomplete",
+                        write - end, file, end);
+                buffer.putInt(WRITE_POSITION_OFFSET, end);
+            }
+            return new Segment(file, sequence, buffer);
+        }
+
+        /**
+         * Returns the end of the last record between {@code from} and {@code to} whose length field fits in them.
+         */
+        private static int completeRecordsEnd(MappedByteBuffer buffer, int from, int to) {
+            int position = from;
+            while (to - position >= 4) {
+                int length = buffer.getInt(position);
+                if (length < 0 || length > to - position - 4) {
+                    break;
+                }
+                position += 4 + length;
+            }
+            return position;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        int getWritePosition() {
+            return buffer.getInt(WRITE_POSITION_OFFSET);
+        }
+
+        int getReadPosition() {
+            return buffer.getInt(READ_POSITION_OFFSET);
+        }
+
+        void setReadPosition(int position) {
+            buffer.putInt(READ_POSITION_OFFSET, position);
+        }
+
+        void write(byte[] record) {
+            int position = getWritePosition();
+            ByteBuffer target = buffer.duplicate();
+            target.position(position);
+            target.putInt(record.length);
+            target.put(record);
+            // The write position is only moved once the record is complete
+            buffer.putInt(WRITE_POSITION_OFFSET, target.position());
+        }
+
+        byte[] read(int position) {
+            ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            byte[] record = new byte[source.getInt()];
+            source.get(record);
+            return record;
+        }
+
+        long countUnread() {
+            return countRecords(getReadPosition(), getWritePosition());
+        }
+
+        long countRecords(int from, int to) {
+            long count = 0;
+            int position = from;
+            while (position < to) {
+                position += 4 + buffer.getInt(position);
+                count++;
+            }
+            return count;
+        }
+    }
+}
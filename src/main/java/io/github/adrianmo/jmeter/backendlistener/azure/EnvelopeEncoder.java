@@ -0,0 +1,537 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes telemetry straight into UTF-8 JSON envelopes, one envelope per line, as accepted by the track API. This is
+ * the only serializer of the envelopes, used by the ingestion and file sinks and to send the disk spool.
+ *
+ * Requests are encoded without copying them or building intermediate strings, and everything that does not change
+ * between requests is encoded once: the fixed parts of the envelopes, the test name, the custom properties and the
+ * property names. Timestamps and durations are written digit by digit. Thread-safe, every thread encodes into its own
+ * {@link Output}.
+ */
+final class EnvelopeEncoder {
+
+    /**
+     * Maximum number of property names kept encoded.
+     */
+    static final int MAX_CACHED_KEYS = 256;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIME_FIELD = ascii(",\"time\":\"");
+    private static final byte[] SAMPLE_RATE_FIELD = ascii(",\"sampleRate\":");
+    private static final byte[] OPERATION_NAME_TAG = ascii(",\"tags\":{\"ai.operation.name\":");
+    private static final byte[] REQUEST_DATA = ascii("},\"data\":{\"baseType\":\"RequestData\",\"baseData\":{\"ver\":2,"
+            + "\"id\":");
+    private static final byte[] METRIC_DATA = ascii(",\"data\":{\"baseType\":\"MetricData\",\"baseData\":{\"ver\":2,"
+            + "\"metrics\":[{\"name\":");
+    private static final byte[] EVENT_DATA = ascii(",\"data\":{\"baseType\":\"EventData\",\"baseData\":{\"ver\":2,"
+            + "\"name\":");
+    private static final byte[] NAME_FIELD = ascii(",\"name\":");
+    private static final byte[] DURATION_FIELD = ascii(",\"duration\":\"");
+    private static final byte[] RESPONSE_CODE_FIELD = ascii(",\"responseCode\":");
+    private static final byte[] SUCCESS_TRUE = ascii(",\"success\":true");
+    private static final byte[] SUCCESS_FALSE = ascii(",\"success\":false");
+    private static final byte[] URL_FIELD = ascii(",\"url\":");
+    private static final byte[] MEASUREMENT_KIND = ascii(",\"kind\":\"Measurement\"");
+    private static final byte[] AGGREGATION_KIND = ascii(",\"kind\":\"Aggregation\"");
+    private static final byte[] VALUE_FIELD = ascii(",\"value\":");
+    private static final byte[] COUNT_FIELD = ascii(",\"count\":");
+    private static final byte[] MIN_FIELD = ascii(",\"min\":");
+    private static final byte[] MAX_FIELD = ascii(",\"max\":");
+    private static final byte[] STD_DEV_FIELD = ascii(",\"stdDev\":");
+    private static final byte[] PROPERTIES_FIELD = ascii(",\"properties\":{");
+    private static final byte[] MEASUREMENTS_FIELD = ascii(",\"measurements\":{");
+    private static final byte[] END_OF_ENVELOPE = ascii("}}}\n");
+    private static final byte[] NULL = ascii("null");
+
+    private final byte[] requestHeader;
+    private final byte[] metricHeader;
+    private final byte[] eventHeader;
+    private final byte[] instrumentationKeyField;
+    private final String testName;
+    private final byte[] encodedTestName;
+    private final Map<String, CustomProperty> customProperties;
+    private final ConcurrentMap<String, byte[]> keys = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Encoder without test name nor custom properties known in advance.
+     *
+     * @param instrumentationKey instrumentation key of the envelopes, may be empty if they are not sent right away
+     */
+    EnvelopeEncoder(String instrumentationKey) {
+        this(instrumentationKey, "", Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param instrumentationKey instrumentation key of the envelopes, may be empty if they are not sent right away
+     * @param testName           name of the requests and of their operation, encoded once
+     * @param customProperties   properties added to every request, encoded once
+     */
+    EnvelopeEncoder(String instrumentationKey, String testName, Map<String, String> customProperties) {
+        this.requestHeader = encode("{\"name\":", envelopeName(instrumentationKey, "Request"));
+        this.metricHeader = encode("{\"name\":", envelopeName(instrumentationKey, "Metric"));
+        this.eventHeader = encode("{\"name\":", envelopeName(instrumentationKey, "Event"));
+        this.instrumentationKeyField = encode("\",\"iKey\":", instrumentationKey);
+        this.testName = testName;
+        this.encodedTestName = encode("", testName);
+        this.customProperties = new HashMap<String, CustomProperty>();
+        for (Map.Entry<String, String> property : customProperties.entrySet()) {
+            this.customProperties.put(property.getKey(), new CustomProperty(property.getValue(),
+                    encode(encode("", property.getKey()), ':', property.getValue())));
+        }
+    }
+
+    /**
+     * Name of the envelopes of a telemetry type, such as {@code Request}.
+     */
+    static String envelopeName(String instrumentationKey, String type) {
+        return instrumentationKey.isEmpty() ? "Microsoft.ApplicationInsights." + type
+                : "Microsoft.ApplicationInsights." + instrumentationKey.replace("-", "") + "." + type;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes {@code prefix}, which must be ASCII, as is followed by {@code value} as a JSON string.
+     */
+    private static byte[] encode(String prefix, String value) {
+        Output out = new Output(prefix.length() + (value == null ? 4 : value.length() * 2 + 2));
+        out.writeAscii(prefix);
+        writeString(out, value);
+        return Arrays.copyOf(out.array(), out.size());
+    }
+
+    private static byte[] encode(byte[] prefix, char separator, String value) {
+        byte[] encodedValue = encode("", value);
+        byte[] out = Arrays.copyOf(prefix, prefix.length + 1 + encodedValue.length);
+        out[prefix.length] = (byte) separator;
+        System.arraycopy(encodedValue, 0, out, prefix.length + 1, encodedValue.length);
+        return out;
+    }
+
+    /**
+     * Appends the request envelope of {@code request} followed by a new line.
+     */
+    public void encodeRequest(Output out, RequestTelemetry request) {
+        Double samplingPercentage = request.getSamplingPercentage();
+        writeRequest(out, request.getTimestamp().getTime(),
+                samplingPercentage == null ? SpoolRecord.NOT_SAMPLED : samplingPercentage,
+                request.getContext().getOperation().getName(), request.getName(), request.getId(),
+                request.getDuration().getTotalMilliseconds(), request.getResponseCode(), request.isSuccess(),
+                request.getUrlString(), request.getProperties(), request.getMetrics());
+    }
+
+    /**
+     * Appends the request envelope of a spooled request followed by a new line.
+     */
+    public void encodeRequest(Output out, SpoolRecord record) {
+        writeRequest(out, record.getTimestamp(), record.getSamplingPercentage(), record.getOperationName(),
+                record.getName(), record.getId(), record.getDurationMillis(), record.getResponseCode(),
+                record.isSuccess(), record.getUrl(), record.getProperties(), record.getMeasurements());
+    }
+
+    private void writeRequest(Output out, long timestamp, double samplingPercentage, String operationName,
+            String name, String id, long durationMillis, String responseCode, boolean success, String url,
+            Map<String, String> properties, Map<String, Double> measurements) {
+        writeHeader(out, requestHeader, timestamp);
+        if (samplingPercentage < SpoolRecord.NOT_SAMPLED) {
+            out.write(SAMPLE_RATE_FIELD);
+            out.writeAscii(Double.toString(samplingPercentage));
+        }
+        out.write(OPERATION_NAME_TAG);
+        writeName(out, operationName == null ? name : operationName);
+        out.write(REQUEST_DATA);
+        writeString(out, id);
+        out.write(NAME_FIELD);
+        writeName(out, name);
+        out.write(DURATION_FIELD);
+        writeDuration(out, durationMillis);
+        out.write('"');
+        out.write(RESPONSE_CODE_FIELD);
+        writeString(out, responseCode);
+        out.write(success ? SUCCESS_TRUE : SUCCESS_FALSE);
+        if (url != null) {
+            out.write(URL_FIELD);
+            writeString(out, url);
+        }
+        writeProperties(out, properties);
+        writeMeasurements(out, measurements);
+        out.write(END_OF_ENVELOPE);
+    }
+
+    /**
+     * Appends the metric envelope of {@code metric} followed by a new line.
+     */
+    public void encodeMetric(Output out, MetricTelemetry metric) {
+        writeHeader(out, metricHeader, timestampOf(metric.getTimestamp()));
+        out.write(METRIC_DATA);
+        writeName(out, metric.getName());
+        out.write(metric.getCount() == null ? MEASUREMENT_KIND : AGGREGATION_KIND);
+        writeNumber(out, VALUE_FIELD, metric.getValue());
+        if (metric.getCount() != null) {
+            out.write(COUNT_FIELD);
+            out.writeAscii(Integer.toString(metric.getCount()));
+        }
+        if (metric.getMin() != null) {
+            writeNumber(out, MIN_FIELD, metric.getMin());
+        }
+        if (metric.getMax() != null) {
+            writeNumber(out, MAX_FIELD, metric.getMax());
+        }
+        if (metric.getStandardDeviation() != null) {
+            writeNumber(out, STD_DEV_FIELD, metric.getStandardDeviation());
+        }
+        out.write('}');
+        out.write(']');
+        writeProperties(out, metric.getProperties());
+        out.write(END_OF_ENVELOPE);
+    }
+
+    /**
+     * Appends the event envelope of {@code event} followed by a new line.
+     */
+    public void encodeEvent(Output out, EventTelemetry event) {
+        writeHeader(out, eventHeader, timestampOf(event.getTimestamp()));
+        out.write(EVENT_DATA);
+        writeName(out, event.getName());
+        writeProperties(out, event.getProperties());
+        writeMeasurements(out, event.getMetrics());
+        out.write(END_OF_ENVELOPE);
+    }
+
+    private static long timestampOf(Date timestamp) {
+        return timestamp == null ? System.currentTimeMillis() : timestamp.getTime();
+    }
+
+    private void writeHeader(Output out, byte[] header, long timestamp) {
+        out.write(header);
+        out.write(TIME_FIELD);
+        writeTime(out, timestamp);
+        out.write(instrumentationKeyField);
+    }
+
+    private static void writeNumber(Output out, byte[] field, double value) {
+        out.write(field);
+        out.writeAscii(Double.toString(Double.isNaN(value) || Double.isInfinite(value) ? 0 : value));
+    }
+
+    private void writeProperties(Output out, Map<String, String> properties) {
+        if (properties.isEmpty()) {
+            return;
+        }
+        out.write(PROPERTIES_FIELD);
+        boolean first = true;
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            CustomProperty custom = customProperties.get(property.getKey());
+            if (custom != null && custom.value.equals(property.getValue())) {
+                out.write(custom.encoded);
+                continue;
+            }
+            writeKey(out, property.getKey());
+            writeString(out, property.getValue());
+        }
+        out.write('}');
+    }
+
+    /**
+     * Writes the measurements, except the ones that are not finite.
+     */
+    private void writeMeasurements(Output out, Map<String, Double> measurements) {
+        if (measurements.isEmpty()) {
+            return;
+        }
+        out.write(MEASUREMENTS_FIELD);
+        boolean first = true;
+        for (Map.Entry<String, Double> measurement : measurements.entrySet()) {
+            double value = measurement.getValue();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            writeKey(out, measurement.getKey());
+            out.writeAscii(Double.toString(value));
+            first = false;
+        }
+        out.write('}');
+    }
+
+    /**
+     * Writes the name of a property or measurement followed by a colon.
+     */
+    private void writeKey(Output out, String key) {
+        byte[] encoded = keys.get(key);
+        if (encoded == null) {
+            encoded = encode("", key);
+            encoded = Arrays.copyOf(encoded, encoded.length + 1);
+            encoded[encoded.length - 1] = ':';
+            if (keys.size() < MAX_CACHED_KEYS) {
+                keys.putIfAbsent(key, encoded);
+            }
+        }
+        out.write(encoded);
+    }
+
+    private void writeName(Output out, String name) {
+        if (testName.equals(name)) {
+            out.write(encodedTestName);
+        } else {
+            writeString(out, name);
+        }
+    }
+
+    /**
+     * Writes a timestamp as {@link DateTimeFormatter#ISO_INSTANT} does.
+     */
+    static void writeTime(Output out, long timestamp) {
+        long epochDay = Math.floorDiv(timestamp, 86400000L);
+        long millisOfDay = Math.floorMod(timestamp, 86400000L);
+
+        // Civil date of the epoch day, see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        long z = epochDay + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            out.writeAscii(DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(timestamp)));
+            return;
+        }
+
+        out.writeDigits(year, 4);
+        out.write('-');
+        out.writeDigits(month, 2);
+        out.write('-');
+        out.writeDigits(day, 2);
+        out.write('T');
+        out.writeDigits(millisOfDay / 3600000, 2);
+        out.write(':');
+        out.writeDigits(millisOfDay / 60000 % 60, 2);
+        out.write(':');
+        out.writeDigits(millisOfDay / 1000 % 60, 2);
+        if (millisOfDay % 1000 != 0) {
+            out.write('.');
+            out.writeDigits(millisOfDay % 1000, 3);
+        }
+        out.write('Z');
+    }
+
+    /**
+     * Writes a duration as {@code [d.]hh:mm:ss.fffffff}, a negative duration as zero.
+     */
+    static void writeDuration(Output out, long millis) {
+        millis = Math.max(0, millis);
+        long days = millis / 86400000;
+        if (days > 0) {
+            out.writeAscii(Long.toString(days));
+            out.write('.');
+        }
+        out.writeDigits(millis / 3600000 % 24, 2);
+        out.write(':');
+        out.writeDigits(millis / 60000 % 60, 2);
+        out.write(':');
+        out.writeDigits(millis / 1000 % 60, 2);
+        out.write('.');
+        out.writeDigits(millis % 1000, 3);
+        out.writeAscii("0000");
+    }
+
+    /**
+     * Writes a JSON string encoded in UTF-8. Quotes, backslashes and control characters are escaped, other characters
+     * are written as is.
+     */
+    static void writeString(Output out, String value) {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        out.ensureCapacity(value.length() + 2);
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                }
+                out.write(c);
+            } else if (c < 0x20) {
+                writeControl(out, c);
+            } else {
+                i = writeNonAscii(out, value, i);
+            }
+        }
+        out.write('"');
+    }
+
+    private static void writeControl(Output out, char c) {
+        out.write('\\');
+        switch (c) {
+            case '\n':
+                out.write('n');
+                break;
+            case '\r':
+                out.write('r');
+                break;
+            case '\t':
+                out.write('t');
+                break;
+            default:
+                out.write('u');
+                out.write('0');
+                out.write('0');
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xf]);
+        }
+    }
+
+    /**
+     * Writes the character at {@code index} in UTF-8, malformed surrogates are replaced by {@code ?} as
+     * {@link String#getBytes} does.
+     *
+     * @return the index of the last character written
+     */
+    static int writeNonAscii(Output out, CharSequence text, int index) {
+        char c = text.charAt(index);
+        if (c < 0x800) {
+            out.write(0xc0 | c >> 6);
+            out.write(0x80 | c & 0x3f);
+        } else if (!Character.isSurrogate(c)) {
+            out.write(0xe0 | c >> 12);
+            out.write(0x80 | c >> 6 & 0x3f);
+            out.write(0x80 | c & 0x3f);
+        } else if (Character.isHighSurrogate(c) && index + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, text.charAt(index + 1));
+            out.write(0xf0 | codePoint >> 18);
+            out.write(0x80 | codePoint >> 12 & 0x3f);
+            out.write(0x80 | codePoint >> 6 & 0x3f);
+            out.write(0x80 | codePoint & 0x3f);
+            return index + 1;
+        } else {
+            out.write('?');
+        }
+        return index;
+    }
+
+    /**
+     * Value of a custom property and its encoded name and value.
+     */
+    private static final class CustomProperty {
+        private final String value;
+        private final byte[] encoded;
+
+        CustomProperty(String value, byte[] encoded) {
+            this.value = value;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * Growable buffer of encoded envelopes, reused across batches. Not thread-safe.
+     */
+    static final class Output {
+        private byte[] buffer;
+        private int size;
+
+        Output(int initialCapacity) {
+            this.buffer = new byte[initialCapacity];
+        }
+
+        void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        void write(int b) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeAscii(String text) {
+            ensureCapacity(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                buffer[size++] = (byte) text.charAt(i);
+            }
+        }
+
+        void writeUtf8(CharSequence text) {
+            ensureCapacity(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    write(c);
+                } else {
+                    i = writeNonAscii(this, text, i);
+                }
+            }
+        }
+
+        /**
+         * Writes a non-negative number left-padded with zeros to {@code width} digits.
+         */
+        void writeDigits(long value, int width) {
+            ensureCapacity(Math.max(width, 19));
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            int end = size + Math.max(width, digits);
+            for (int i = end - 1; i >= size; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            size = end;
+        }
+
+        public byte[] array() {
+            return buffer;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void reset() {
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Selection of the {@link SampleField sample fields} sent with each request, resolved once so that fields which are
+ * not selected are never computed. Numeric fields can be sent as measurements instead of string properties.
+ */
+final class FieldProjection {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FieldProjection.class);
+
+    /**
+     * Projection of every field as a property.
+     */
+    static final FieldProjection ALL = new FieldProjection(SampleField.values(), new SampleField[0]);
+
+    private final SampleField[] propertyFields;
+    private final SampleField[] measurementFields;
+    private final Measurement[] measurements;
+
+    /**
+     * @param measurementFields numeric fields sent as measurements
+     */
+    private FieldProjection(SampleField[] propertyFields, SampleField[] measurementFields) {
+        this.propertyFields = propertyFields;
+        this.measurementFields = measurementFields;
+        this.measurements = new Measurement[measurementFields.length];
+        for (int i = 0; i < measurementFields.length; i++) {
+            measurements[i] = new Measurement(measurementFields[i].name(), measurementFields[i].numericValue());
+        }
+    }
+
+    /**
+     * Resolves a list of field names, ignoring case. An empty list selects every field. Unknown names are ignored.
+     *
+     * @param numericAsMeasurements whether numeric fields are sent as measurements
+     */
+    static FieldProjection parse(String fields, boolean numericAsMeasurements, String separator) {
+        List<SampleField> selected = new ArrayList<SampleField>();
+        if (fields == null || fields.trim().isEmpty()) {
+            for (SampleField field : SampleField.values()) {
+                selected.add(field);
+            }
+        } else {
+            for (String name : fields.trim().split("\\s*" + Pattern.quote(separator) + "\\s*")) {
+                SampleField field = fieldOf(name);
+                if (field == null) {
+                    log.warn("Field '{}' is not valid, ignoring it", name);
+                } else if (!selected.contains(field)) {
+                    selected.add(field);
+                }
+            }
+        }
+
+        List<SampleField> properties = new ArrayList<SampleField>();
+        List<SampleField> measurements = new ArrayList<SampleField>();
+        for (SampleField field : selected) {
+            if (numericAsMeasurements && field.isNumeric()) {
+                measurements.add(field);
+            } else {
+                properties.add(field);
+            }
+        }
+        return new FieldProjection(properties.toArray(new SampleField[0]), measurements.toArray(new SampleField[0]));
+    }
+
+    /**
+     * Returns a projection of the same fields except {@code excluded}.
+     */
+    FieldProjection without(SampleField... excluded) {
+        return new FieldProjection(except(propertyFields, excluded), except(measurementFields, excluded));
+    }
+
+    private static SampleField[] except(SampleField[] fields, SampleField[] excluded) {
+        List<SampleField> kept = new ArrayList<SampleField>();
+        for (SampleField field : fields) {
+            if (!Arrays.asList(excluded).contains(field)) {
+                kept.add(field);
+            }
+        }
+        return kept.toArray(new SampleField[0]);
+    }
+
+    private static SampleField fieldOf(String name) {
+        for (SampleField field : SampleField.values()) {
+            if (field.name().equalsIgnoreCase(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the selected fields of the sample into the properties and measurements of a telemetry item.
+     */
+    public void apply(SampleResult sr, Map<String, String> properties, Map<String, Double> measurements) {
+        for (SampleField field : propertyFields) {
+            String value = field.render(sr);
+            if (value != null) {
+                properties.put(field.name(), value);
+            }
+        }
+        for (Measurement measurement : this.measurements) {
+            measurements.put(measurement.name, measurement.value.applyAsDouble(sr));
+        }
+    }
+
+    public boolean includes(SampleField field) {
+        for (SampleField propertyField : propertyFields) {
+            if (propertyField == field) {
+                return true;
+            }
+        }
+        for (SampleField measurementField : measurementFields) {
+            if (measurementField == field) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Numeric field sent as a measurement.
+     */
+    private static final class Measurement {
+        private final String name;
+        private final ToDoubleFunction<SampleResult> value;
+
+        Measurement(String name, ToDoubleFunction<SampleResult> value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+}
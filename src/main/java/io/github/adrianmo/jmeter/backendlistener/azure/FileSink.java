@@ -0,0 +1,237 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes telemetry to a local file as Application Insights envelopes, one JSON envelope per line, optionally
+ * compressed with gzip. The file can be sent to the track API later on.
+ *
+ * Envelopes are encoded by the calling thread and buffered in memory, the buffer is written to the file when it is
+ * full and every {@link #FLUSH_INTERVAL_MS} by a background thread. Envelopes are appended to an existing file.
+ */
+final class FileSink implements TelemetrySink {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FileSink.class);
+
+    /**
+     * Size of the buffer in front of the file.
+     */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Time between two background flushes.
+     */
+    static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final long WARNING_INTERVAL_MS = 60000;
+
+    private static final ThreadLocal<EnvelopeEncoder.Output> LINES =
+            ThreadLocal.withInitial(() -> new EnvelopeEncoder.Output(4096));
+
+    private final File file;
+    private final EnvelopeEncoder encoder;
+    private final OutputStream out;
+    private final ScheduledExecutorService flusher;
+    private final LongAdder written = new LongAdder();
+    private final RateLimitedWarning failedWrites;
+
+    private boolean closed;
+
+    FileSink(File file, boolean gzip, EnvelopeEncoder encoder) throws IOException {
+        this.file = file;
+        this.encoder = encoder;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        OutputStream stream = new ChannelOutputStream(channel, BUFFER_SIZE);
+        if (gzip) {
+            // Sync flushes keep the file readable up to the last flush while the test is running
+            stream = new GZIPOutputStream(stream, BUFFER_SIZE, true);
+        }
+        this.out = stream;
+        this.failedWrites = new RateLimitedWarning(log,
+                "Cannot write telemetry to " + file + " ({} items so far)", WARNING_INTERVAL_MS);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "azure-backend-file-sink");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void trackRequest(RequestTelemetry request) {
+        EnvelopeEncoder.Output line = lines();
+        encoder.encodeRequest(line, request);
+        write(line, 1);
+    }
+
+    /**
+     * Encodes the whole batch before taking the lock of the file once.
+     */
+    @Override
+    public void trackRequests(List<RequestTelemetry> requests) {
+        EnvelopeEncoder.Output lines = lines();
+        for (RequestTelemetry request : requests) {
+            encoder.encodeRequest(lines, request);
+        }
+        write(lines, requests.size());
+    }
+
+    @Override
+    public void trackMetric(MetricTelemetry metric) {
+        EnvelopeEncoder.Output line = lines();
+        encoder.encodeMetric(line, metric);
+        write(line, 1);
+    }
+
+    @Override
+    public void trackEvent(EventTelemetry event) {
+        EnvelopeEncoder.Output line = lines();
+        encoder.encodeEvent(line, event);
+        write(line, 1);
+    }
+
+    private static EnvelopeEncoder.Output lines() {
+        EnvelopeEncoder.Output lines = LINES.get();
+        lines.reset();
+        return lines;
+    }
+
+    private void write(EnvelopeEncoder.Output lines, int items) {
+        synchronized (this) {
+            if (!closed) {
+                try {
+                    out.write(lines.array(), 0, lines.size());
+                    written.add(items);
+                    return;
+                } catch (IOException e) {
+                    log.debug("Cannot write telemetry to {}", file, e);
+                }
+            }
+        }
+        failedWrites.add(items);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Cannot flush telemetry to {}", file, e);
+        }
+    }
+
+    @Override
+    public void close(long timeoutMillis) throws IOException, InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+        }
+        log.info("Wrote {} telemetry items to {}", written.sum(), file);
+    }
+
+    @Override
+    public String getName() {
+        return "File";
+    }
+
+    /**
+     * Number of envelopes written so far.
+     */
+    @Override
+    public long getSent() {
+        return written.sum();
+    }
+
+    /**
+     * Number of envelopes that could not be written.
+     */
+    @Override
+    public long getFailed() {
+        return failedWrites.getCount();
+    }
+
+    /**
+     * Output stream writing to a file channel through a direct buffer. Not thread-safe.
+     */
+    private static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        ChannelOutputStream(FileChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int chunk = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Posts gzip-compressed batches of envelopes to the Application Insights track API.
+ */
+final class IngestionClient {
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private static final Pattern ERROR_FIELD = Pattern.compile("\"(index|statusCode)\"\\s*:\\s*(\\d+)");
+
+    private final URL trackUrl;
+
+    IngestionClient(String trackUrl) throws IOException {
+        this.trackUrl = new URL(trackUrl);
+    }
+
+    /**
+     * Sends a gzip-compressed, new line delimited batch of envelopes.
+     *
+     * @return the response of the ingestion endpoint
+     * @throws IOException if the endpoint could not be reached
+     */
+    public Response post(byte[] gzippedBatch, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) trackUrl.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/x-json-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(gzippedBatch, 0, length);
+            }
+
+            int status = connection.getResponseCode();
+            long retryAfterMillis = parseRetryAfter(connection.getHeaderField("Retry-After"));
+            InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            List<ItemError> errors = Collections.emptyList();
+            if (body != null) {
+                // Read the body even if it is not used, so that the connection can be reused
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] chunk = new byte[1024];
+                int read;
+                while ((read = body.read(chunk)) >= 0) {
+                    if (status == 206) {
+                        content.write(chunk, 0, read);
+                    }
+                }
+                body.close();
+                if (status == 206) {
+                    errors = parseErrors(new String(content.toByteArray(), StandardCharsets.UTF_8));
+                }
+            }
+            return new Response(status, retryAfterMillis, errors);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the items rejected by the endpoint from the body of a partial success, such as
+     * {@code {"itemsReceived":3,"itemsAccepted":2,"errors":[{"index":1,"statusCode":429,"message":"..."}]}}.
+     * Errors without an index or a status code are ignored.
+     */
+    static List<ItemError> parseErrors(String body) {
+        int start = body.indexOf("\"errors\"");
+        start = start < 0 ? -1 : body.indexOf('[', start);
+        if (start < 0) {
+            return Collections.emptyList();
+        }
+
+        List<ItemError> errors = new ArrayList<ItemError>();
+        boolean quoted = false;
+        int depth = 0;
+        int objectStart = -1;
+        for (int i = start + 1; i < body.length() && depth >= 0; i++) {
+            char c = body.charAt(i);
+            if (quoted) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '{' || c == '[') {
+                if (depth++ == 0) {
+                    objectStart = i;
+                }
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0 && objectStart >= 0) {
+                    ItemError error = parseError(body.substring(objectStart, i + 1));
+                    if (error != null) {
+                        errors.add(error);
+                    }
+                    objectStart = -1;
+                }
+            }
+        }
+        return errors;
+    }
+
+    private static ItemError parseError(String object) {
+        int index = -1;
+        int statusCode = -1;
+        // The message is a string, a quote inside it is escaped so it cannot be mistaken for a field
+        Matcher matcher = ERROR_FIELD.matcher(object);
+        while (matcher.find()) {
+            try {
+                int value = Integer.parseInt(matcher.group(2));
+                if (matcher.group(1).equals("index")) {
+                    index = value;
+                } else {
+                    statusCode = value;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return index < 0 || statusCode < 0 ? null : new ItemError(index, statusCode);
+    }
+
+    static boolean isRetryable(int status) {
+        return status == 408 || status == 429 || status == 439 || status >= 500;
+    }
+
+    /**
+     * Response of the ingestion endpoint.
+     */
+    static final class Response {
+        private final int status;
+        private final long retryAfterMillis;
+        private final List<ItemError> errors;
+
+        Response(int status, long retryAfterMillis) {
+            this(status, retryAfterMillis, Collections.<ItemError>emptyList());
+        }
+
+        Response(int status, long retryAfterMillis, List<ItemError> errors) {
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+            this.errors = errors;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Delay requested by the endpoint before retrying, or -1 if none.
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        /**
+         * Whether the batch was accepted, fully or partially. The items of a partially accepted batch that were not
+         * accepted are listed by {@link #getErrors()}.
+         */
+        public boolean isAccepted() {
+            return status == 200 || status == 206;
+        }
+
+        /**
+         * Whether the batch should be sent again later.
+         */
+        public boolean isRetryable() {
+            return IngestionClient.isRetryable(status);
+        }
+
+        /**
+         * Items of a partially accepted batch that were not accepted, empty if the whole batch was.
+         */
+        public List<ItemError> getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Item of a batch that was not accepted by the endpoint.
+     */
+    static final class ItemError {
+        private final int index;
+        private final int statusCode;
+
+        ItemError(int index, int statusCode) {
+            this.index = index;
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * Position of the item in the batch, from 0.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * Whether the item should be sent again later, otherwise it was rejected for good.
+         */
+        public boolean isRetryable() {
+            return IngestionClient.isRetryable(statusCode);
+        }
+    }
+}
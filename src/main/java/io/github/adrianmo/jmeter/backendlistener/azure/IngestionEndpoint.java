@@ -0,0 +1,70 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Ingestion endpoint and instrumentation key of an Application Insights resource, resolved from its connection string.
+ */
+final class IngestionEndpoint {
+
+    /**
+     * Ingestion endpoint used when the connection string does not define one.
+     */
+    static final String DEFAULT_INGESTION_ENDPOINT = "https://dc.services.visualstudio.com/";
+
+    /**
+     * Path of the track API relative to the ingestion endpoint.
+     */
+    private static final String TRACK_PATH = "v2/track";
+
+    private final String instrumentationKey;
+    private final String trackUrl;
+
+    IngestionEndpoint(String instrumentationKey, String ingestionEndpoint) {
+        this.instrumentationKey = instrumentationKey;
+        this.trackUrl = (ingestionEndpoint.endsWith("/") ? ingestionEndpoint : ingestionEndpoint + "/") + TRACK_PATH;
+    }
+
+    /**
+     * Resolves the endpoint from a connection string, falling back to the deprecated instrumentation key parameter.
+     *
+     * @throws IllegalArgumentException if no instrumentation key is defined
+     */
+    static IngestionEndpoint resolve(String connectionString, String instrumentationKey) {
+        Map<String, String> values = new HashMap<String, String>();
+        if (connectionString != null) {
+            for (String pair : connectionString.split(";")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    values.put(pair.substring(0, separator).trim().toLowerCase(Locale.ROOT),
+                            pair.substring(separator + 1).trim());
+                }
+            }
+        }
+
+        String key = values.get("instrumentationkey");
+        if (key == null || key.isEmpty()) {
+            key = instrumentationKey;
+        }
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("No instrumentation key found in the connection string");
+        }
+
+        String endpoint = values.get("ingestionendpoint");
+        if (endpoint == null || endpoint.isEmpty()) {
+            String suffix = values.get("endpointsuffix");
+            endpoint = suffix == null || suffix.isEmpty() ? DEFAULT_INGESTION_ENDPOINT : "https://dc." + suffix;
+        }
+        return new IngestionEndpoint(key, endpoint);
+    }
+
+    public String getInstrumentationKey() {
+        return instrumentationKey;
+    }
+
+    public String getTrackUrl() {
+        return trackUrl;
+    }
+}
@@ -0,0 +1,561 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Posts telemetry straight to the track API of the ingestion endpoint, bypassing the channel of the SDK.
+ *
+ * Envelopes are encoded by an {@link EnvelopeEncoder} by the calling thread and gathered into batches of
+ * {@link #BATCH_SIZE} for at most {@link #FLUSH_INTERVAL_MS}; only copying them into the batch is done under the lock
+ * of the sink. Every batch is compressed and posted by its own task, so that a slow endpoint only delays the batches
+ * in flight instead of the whole pipeline. Tasks run on virtual threads when the JVM supports them, on a pool of
+ * platform threads otherwise. The buffers of the batches are pooled. The number of batches in flight is bounded: once
+ * it is reached, the calling thread waits for a free slot. Throttling, server errors and network failures are retried
+ * with an exponential backoff, honoring the {@code Retry-After} header, up to a maximum number of attempts. So are the
+ * items of a partially accepted batch that the endpoint reports as retryable, the other items it did not accept are
+ * counted as rejected.
+ */
+final class IngestionSink implements TelemetrySink {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(IngestionSink.class);
+
+    /**
+     * Maximum number of envelopes per request.
+     */
+    static final int BATCH_SIZE = SpoolSender.BATCH_SIZE;
+
+    /**
+     * Maximum time an envelope waits for its batch to be full.
+     */
+    static final long FLUSH_INTERVAL_MS = 1000;
+
+    /**
+     * Largest buffer kept in the pool, larger ones are left to the garbage collector.
+     */
+    static final int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Deflater level of the batches, favoring speed over size.
+     */
+    static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_BACKOFF_MS = 60000;
+    private static final long WARNING_INTERVAL_MS = 60000;
+
+    private static final ThreadLocal<EnvelopeEncoder.Output> ENCODED =
+            ThreadLocal.withInitial(() -> new EnvelopeEncoder.Output(INITIAL_BUFFER_SIZE));
+
+    private final IngestionClient client;
+    private final EnvelopeEncoder encoder;
+    private final BlockingQueue<EnvelopeEncoder.Output> lineBuffers;
+    private final BlockingQueue<PooledOutputStream> bodyBuffers;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService flusher;
+    private final RateLimitedWarning failedBatches;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder givenUp = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    private final Set<Batch> sending = ConcurrentHashMap.newKeySet();
+
+    private Batch batch;
+    private volatile boolean closed;
+    private volatile long closeDeadline;
+
+    /**
+     * @param maxInFlight          maximum number of batches being posted at the same time
+     * @param maxAttempts          maximum number of times a batch is posted before it is given up
+     * @param initialBackoffMillis time before the first retry of a batch, doubled at every retry
+     */
+    IngestionSink(IngestionClient client, EnvelopeEncoder encoder, int maxInFlight, int maxAttempts,
+            long initialBackoffMillis) {
+        this.client = client;
+        this.encoder = encoder;
+        // One buffer per batch in flight, plus the one being filled
+        this.lineBuffers = new ArrayBlockingQueue<EnvelopeEncoder.Output>(Math.max(1, maxInFlight) + 1);
+        this.bodyBuffers = new ArrayBlockingQueue<PooledOutputStream>(Math.max(1, maxInFlight));
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.senders = newSenderExecutor(Math.max(1, maxInFlight));
+        this.failedBatches = new RateLimitedWarning(log,
+                "Gave up sending a batch of telemetry after " + this.maxAttempts + " attempts ({} batches so far)",
+                WARNING_INTERVAL_MS);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "azure-backend-ingestion-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates an executor running every task on a new virtual thread, or on a pool of platform threads if the JVM
+     * has no virtual threads.
+     */
+    static ExecutorService newSenderExecutor(int platformThreads) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("Sending telemetry from virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.info("Virtual threads are not available, sending telemetry from {} platform threads",
+                    platformThreads);
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(platformThreads, runnable -> {
+                Thread thread = new Thread(runnable, "azure-backend-sender-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public void trackRequest(RequestTelemetry request) {
+        EnvelopeEncoder.Output encoded = ENCODED.get();
+        encoded.reset();
+        encoder.encodeRequest(encoded, request);
+        add(encoded, 1);
+    }
+
+    /**
+     * Encodes the requests {@link #BATCH_SIZE} at a time before taking the lock of the batch.
+     */
+    @Override
+    public void trackRequests(List<RequestTelemetry> requests) {
+        EnvelopeEncoder.Output encoded = ENCODED.get();
+        for (int from = 0; from < requests.size(); from += BATCH_SIZE) {
+            int to = Math.min(requests.size(), from + BATCH_SIZE);
+            encoded.reset();
+            for (int i = from; i < to; i++) {
+                encoder.encodeRequest(encoded, requests.get(i));
+            }
+            add(encoded, to - from);
+        }
+    }
+
+    @Override
+    public void trackMetric(MetricTelemetry metric) {
+        EnvelopeEncoder.Output encoded = ENCODED.get();
+        encoded.reset();
+        encoder.encodeMetric(encoded, metric);
+        add(encoded, 1);
+    }
+
+    @Override
+    public void trackEvent(EventTelemetry event) {
+        EnvelopeEncoder.Output encoded = ENCODED.get();
+        encoded.reset();
+        encoder.encodeEvent(encoded, event);
+        add(encoded, 1);
+    }
+
+    private void add(EnvelopeEncoder.Output encoded, int items) {
+        Batch full = null;
+        synchronized (this) {
+            if (batch == null) {
+                batch = new Batch(acquireLines());
+            }
+            batch.lines.write(encoded.array(), 0, encoded.size());
+            batch.items += items;
+            if (batch.items >= BATCH_SIZE) {
+                full = batch;
+                batch = null;
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+    }
+
+    private EnvelopeEncoder.Output acquireLines() {
+        EnvelopeEncoder.Output lines = lineBuffers.poll();
+        return lines == null ? new EnvelopeEncoder.Output(INITIAL_BUFFER_SIZE) : lines;
+    }
+
+    private void releaseLines(EnvelopeEncoder.Output lines) {
+        if (lines.array().length <= MAX_POOLED_BUFFER_SIZE) {
+            lines.reset();
+            lineBuffers.offer(lines);
+        }
+    }
+
+    private PooledOutputStream acquireBody() {
+        PooledOutputStream body = bodyBuffers.poll();
+        return body == null ? new PooledOutputStream(INITIAL_BUFFER_SIZE) : body;
+    }
+
+    private void releaseBody(PooledOutputStream body) {
+        if (body.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+            body.reset();
+            bodyBuffers.offer(body);
+        }
+    }
+
+    /**
+     * Hands the envelopes gathered so far to a sender, without waiting for them to be sent.
+     */
+    @Override
+    public void flush() {
+        Batch pending;
+        synchronized (this) {
+            if (batch == null) {
+                return;
+            }
+            pending = batch;
+            batch = null;
+        }
+        dispatch(pending);
+    }
+
+    private void dispatch(Batch pending) {
+        if (closed) {
+            discard(pending);
+            return;
+        }
+        try {
+            long deadline = closeDeadline;
+            if (deadline == 0) {
+                inFlight.acquire();
+            } else if (!inFlight.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS)) {
+                // Every slot is still held by a batch being retried when the sink has to be closed
+                log.warn("Giving up a batch of {} items, no batch in flight completed before the close timeout",
+                        pending.items);
+                discard(pending);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(pending);
+            return;
+        }
+        pending.unsettled = pending.items;
+        sending.add(pending);
+        try {
+            senders.execute(() -> {
+                try {
+                    send(pending);
+                } finally {
+                    sending.remove(pending);
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sending.remove(pending);
+            inFlight.release();
+            discard(pending);
+        }
+    }
+
+    private void discard(Batch pending) {
+        givenUp.add(pending.items);
+        releaseLines(pending.lines);
+    }
+
+    private void send(Batch pending) {
+        PooledOutputStream body = acquireBody();
+        try {
+            compress(pending.lines, body);
+            post(pending, body);
+        } finally {
+            releaseBody(body);
+            releaseLines(pending.lines);
+        }
+    }
+
+    /**
+     * Compresses the envelopes of a batch with gzip, outside of the lock of the sink.
+     */
+    static void compress(EnvelopeEncoder.Output lines, ByteArrayOutputStream body) {
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+        try (GZIPOutputStream gzip = new GzipStream(body, deflater)) {
+            gzip.write(lines.array(), 0, lines.size());
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Posts a batch until it is accepted. When it is only partially accepted, the items that can be retried are posted
+     * again on their own and the others are counted as rejected.
+     */
+    private void post(Batch pending, PooledOutputStream body) {
+        EnvelopeEncoder.Output lines = pending.lines;
+        int items = pending.items;
+        long backoffMillis = initialBackoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            IngestionClient.Response response = null;
+            try {
+                response = client.post(body.buffer(), body.size());
+            } catch (IOException e) {
+                log.debug("Cannot reach the ingestion endpoint", e);
+            }
+
+            if (response != null && response.isAccepted()) {
+                BitSet retry = new BitSet(items);
+                int rejectedItems = 0;
+                for (IngestionClient.ItemError error : response.getErrors()) {
+                    if (error.getIndex() >= items) {
+                        continue;
+                    }
+                    if (error.isRetryable()) {
+                        retry.set(error.getIndex());
+                    } else {
+                        rejectedItems++;
+                    }
+                }
+                count(pending, rejected, rejectedItems);
+                count(pending, sent, items - rejectedItems - retry.cardinality());
+                if (retry.isEmpty()) {
+                    return;
+                }
+                items = retry.cardinality();
+                retainLines(lines, retry);
+                body.reset();
+                compress(lines, body);
+            } else if (response != null && !response.isRetryable()) {
+                log.warn("Ingestion endpoint rejected a batch of {} items with status {}", items,
+                        response.getStatus());
+                count(pending, rejected, items);
+                return;
+            }
+            if (attempt >= maxAttempts) {
+                failedBatches.increment();
+                count(pending, givenUp, items);
+                return;
+            }
+
+            retries.increment();
+            long wait = response != null && response.getRetryAfterMillis() > 0
+                    ? response.getRetryAfterMillis() : backoffMillis;
+            backoffMillis = Math.min(MAX_BACKOFF_MS, backoffMillis * 2);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                count(pending, givenUp, items);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts items of a batch, unless the batch was already counted as given up by {@link #close}.
+     */
+    private static void count(Batch pending, LongAdder counter, int items) {
+        if (pending.settle(items)) {
+            counter.add(items);
+        }
+    }
+
+    /**
+     * Keeps in place the envelopes at the given indexes, one envelope per line.
+     */
+    static void retainLines(EnvelopeEncoder.Output lines, BitSet indexes) {
+        byte[] buffer = lines.array();
+        int size = lines.size();
+        lines.reset();
+        int index = 0;
+        for (int start = 0; start < size; index++) {
+            // Encoded envelopes escape their new lines
+            int end = start;
+            while (buffer[end] != '\n') {
+                end++;
+            }
+            end++;
+            if (indexes.get(index)) {
+                // Never grows the buffer, so the bytes are moved within it
+                lines.write(buffer, start, end - start);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Sends the last batch and waits up to {@code timeoutMillis} in total for the batches in flight, reporting the
+     * progress every {@link AsyncSampleDispatcher#PROGRESS_INTERVAL_MS}. Batches still in flight after the deadline are
+     * given up and their items counted as failed, without waiting for their senders. So are the batches that could not
+     * get a slot before the deadline.
+     */
+    @Override
+    public void close(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        closeDeadline = deadline;
+        flusher.shutdown();
+        if (!flusher.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            // A flush that started before the deadline was set may still wait for a slot
+            flusher.shutdownNow();
+        }
+        flush();
+        closed = true;
+        senders.shutdown();
+        long now = System.currentTimeMillis();
+        while (!senders.awaitTermination(
+                Math.max(0, Math.min(deadline - now, AsyncSampleDispatcher.PROGRESS_INTERVAL_MS)),
+                TimeUnit.MILLISECONDS)) {
+            now = System.currentTimeMillis();
+            if (now >= deadline) {
+                abandon();
+                break;
+            }
+            log.info("Ingestion: waiting for {} batches in flight, {} items sent, {} ms before giving up",
+                    sending.size(), getSent(), deadline - now);
+        }
+        log.info("Ingestion: {} items sent, {} rejected by the endpoint, {} given up, {} retries",
+                getSent(), getRejected(), getGivenUp(), getRetries());
+        if (getFailed() > 0) {
+            log.warn("{} telemetry items could not be sent to the ingestion endpoint", getFailed());
+        }
+    }
+
+    /**
+     * Gives up the batches still in flight, counting their items that were not counted yet, and interrupts their
+     * senders without waiting for them.
+     */
+    private void abandon() {
+        int batches = 0;
+        long items = 0;
+        for (Batch pending : sending) {
+            items += pending.abandon();
+            batches++;
+        }
+        givenUp.add(items);
+        senders.shutdownNow();
+        log.warn("Giving up {} batches with {} items still in flight to the ingestion endpoint", batches, items);
+    }
+
+    @Override
+    public String getName() {
+        return "Ingestion";
+    }
+
+    @Override
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Number of items given up after the last attempt, or not sent before the sink was closed.
+     */
+    public long getGivenUp() {
+        return givenUp.sum();
+    }
+
+    /**
+     * Number of items rejected by the endpoint or given up.
+     */
+    @Override
+    public long getFailed() {
+        return getRejected() + getGivenUp();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Encoded envelopes waiting to be compressed and posted together.
+     */
+    private static final class Batch {
+        private final EnvelopeEncoder.Output lines;
+        private int items;
+        private int unsettled;
+        private boolean abandoned;
+
+        Batch(EnvelopeEncoder.Output lines) {
+            this.lines = lines;
+        }
+
+        /**
+         * Takes {@code count} items out of the ones not counted yet.
+         *
+         * @return false if the batch was given up meanwhile, its items are already counted
+         */
+        synchronized boolean settle(int count) {
+            if (abandoned) {
+                return false;
+            }
+            unsettled -= count;
+            return true;
+        }
+
+        /**
+         * Gives up the batch.
+         *
+         * @return the number of items not counted yet
+         */
+        synchronized int abandon() {
+            abandoned = true;
+            return unsettled;
+        }
+    }
+
+    /**
+     * Gzip stream using a given deflater, which the caller has to end.
+     */
+    static final class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, INITIAL_BUFFER_SIZE);
+            def.end();
+            def = deflater;
+        }
+    }
+
+    /**
+     * Byte array output stream whose buffer is handed to the ingestion client as is.
+     */
+    private static final class PooledOutputStream extends ByteArrayOutputStream {
+        PooledOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses the records of a JMeter CSV results file (JTL) into sample results, straight from the bytes of a buffer.
+ *
+ * Fields are separated by a delimiter and quoted as written by JMeter: a quoted field may contain the delimiter, line
+ * breaks and doubled quotes. Only the columns used by the listener are decoded, the others are skipped. Records are
+ * independent, so the buffer can be split at record boundaries, found by {@link #lastRecordEnd(ByteBuffer, int, int)},
+ * and the parts parsed concurrently. The parser itself keeps no state between records and is thread-safe.
+ */
+final class JtlParser {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(JtlParser.class);
+
+    /**
+     * Columns of a results file written with the default settings of JMeter, used when the file has no header.
+     */
+    static final String[] DEFAULT_HEADER = {"timeStamp", "elapsed", "label", "responseCode", "responseMessage",
+            "threadName", "dataType", "success", "failureMessage", "bytes", "sentBytes", "grpThreads", "allThreads",
+            "URL", "Latency", "IdleTime", "Connect"};
+
+    private static final long WARNING_INTERVAL_MS = 60000;
+
+    /**
+     * Columns decoded by the parser, the name of each constant is the name of the column.
+     */
+    private enum Column {
+        timeStamp(true),
+        elapsed(true),
+        label(false),
+        responseCode(false),
+        responseMessage(false),
+        threadName(false),
+        dataType(false),
+        success(false),
+        bytes(true),
+        sentBytes(true),
+        grpThreads(true),
+        allThreads(true),
+        URL(false),
+        Latency(true),
+        IdleTime(true),
+        Connect(true),
+        SampleCount(true),
+        ErrorCount(true);
+
+        private final boolean numeric;
+
+        Column(boolean numeric) {
+            this.numeric = numeric;
+        }
+    }
+
+    private static final int COLUMN_COUNT = Column.values().length;
+
+    private final byte delimiter;
+    private final Column[] columns;
+    private final RateLimitedWarning malformedRecords = new RateLimitedWarning(log,
+            "Skipped a malformed record of the results file ({} records so far)", WARNING_INTERVAL_MS);
+
+    /**
+     * @param header    names of the columns of the file
+     * @param delimiter delimiter of the fields, a single byte character
+     * @throws IllegalArgumentException if the header lacks the {@code timeStamp} or {@code elapsed} column
+     */
+    JtlParser(String[] header, char delimiter) {
+        this.delimiter = (byte) delimiter;
+        this.columns = new Column[header.length];
+        List<Column> found = new ArrayList<Column>();
+        for (int i = 0; i < header.length; i++) {
+            for (Column column : Column.values()) {
+                if (column.name().equalsIgnoreCase(header[i].trim())) {
+                    columns[i] = column;
+                    found.add(column);
+                }
+            }
+        }
+        if (!found.contains(Column.timeStamp) || !found.contains(Column.elapsed)) {
+            throw new IllegalArgumentException("The results file has no 'timeStamp' or 'elapsed' column, header: "
+                    + Arrays.toString(header));
+        }
+    }
+
+    /**
+     * Whether the fields of the first record are a header rather than a sample, that is whether the first field is
+     * not a number.
+     */
+    static boolean isHeader(String[] fields) {
+        return fields.length == 0 || fields[0].isEmpty() || !Character.isDigit(fields[0].charAt(0));
+    }
+
+    /**
+     * Returns the position right after the end of the first record between {@code start} and {@code end}, or -1 if the
+     * record does not end before {@code end}.
+     */
+    static int firstRecordEnd(ByteBuffer buffer, int start, int end) {
+        boolean quoted = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position right after the end of the last record that ends between {@code start} and {@code end},
+     * or -1 if no record does. {@code start} must be the start of a record.
+     */
+    static int lastRecordEnd(ByteBuffer buffer, int start, int end) {
+        boolean quoted = false;
+        int last = -1;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                // A doubled quote inside a quoted field toggles twice
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted) {
+                last = i + 1;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Splits a record into its fields, used to read the header.
+     */
+    static String[] fields(ByteBuffer buffer, int start, int end, char delimiter) {
+        List<String> fields = new ArrayList<String>();
+        Field field = new Field();
+        int position = start;
+        while (position < end) {
+            position = field.read(buffer, position, end, (byte) delimiter);
+            fields.add(field.text());
+            if (field.last) {
+                break;
+            }
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Parses the records between {@code start} and {@code end}, which must be record boundaries, and hands each sample
+     * to {@code consumer}. Malformed records are skipped and counted.
+     */
+    public void parse(ByteBuffer buffer, int start, int end, SampleConsumer consumer) throws InterruptedException {
+        Field field = new Field();
+        long[] numbers = new long[COLUMN_COUNT];
+        String[] texts = new String[COLUMN_COUNT];
+        boolean[] present = new boolean[COLUMN_COUNT];
+        int position = start;
+        while (position < end) {
+            byte first = buffer.get(position);
+            if (first == '\n' || (first == '\r' && position + 1 < end && buffer.get(position + 1) == '\n')) {
+                // Blank line
+                position += first == '\n' ? 1 : 2;
+                continue;
+            }
+
+            Arrays.fill(present, false);
+            boolean valid = true;
+            int index = 0;
+            do {
+                position = field.read(buffer, position, end, delimiter);
+                Column column = index < columns.length ? columns[index] : null;
+                if (column != null && valid) {
+                    present[column.ordinal()] = true;
+                    if (column.numeric) {
+                        numbers[column.ordinal()] = field.number();
+                        valid = field.isNumber();
+                    } else {
+                        texts[column.ordinal()] = field.text();
+                    }
+                }
+                index++;
+            } while (!field.last);
+
+            if (!valid || !present[Column.timeStamp.ordinal()] || !present[Column.elapsed.ordinal()]) {
+                malformedRecords.increment();
+                continue;
+            }
+            consumer.accept(toSample(numbers, texts, present));
+        }
+    }
+
+    /**
+     * Number of records skipped so far because they are malformed.
+     */
+    public long getMalformedRecords() {
+        return malformedRecords.getCount();
+    }
+
+    private static SampleResult toSample(long[] numbers, String[] texts, boolean[] present) {
+        SampleResult sr = new SampleResult(numbers[Column.timeStamp.ordinal()], numbers[Column.elapsed.ordinal()]);
+        sr.setSampleLabel(text(Column.label, texts, present));
+        sr.setResponseCode(text(Column.responseCode, texts, present));
+        sr.setResponseMessage(text(Column.responseMessage, texts, present));
+        sr.setThreadName(text(Column.threadName, texts, present));
+        String dataType = text(Column.dataType, texts, present);
+        // The listener compares the data type by identity
+        sr.setDataType(dataType.equals(SampleResult.TEXT) ? SampleResult.TEXT
+                : dataType.equals(SampleResult.BINARY) ? SampleResult.BINARY : dataType);
+        boolean success = !present[Column.success.ordinal()]
+                || Boolean.parseBoolean(texts[Column.success.ordinal()].trim());
+        sr.setSuccessful(success);
+        sr.setBytes(number(Column.bytes, numbers, present, 0));
+        sr.setSentBytes(number(Column.sentBytes, numbers, present, 0));
+        sr.setGroupThreads((int) number(Column.grpThreads, numbers, present, 0));
+        sr.setAllThreads((int) number(Column.allThreads, numbers, present, 0));
+        sr.setLatency(number(Column.Latency, numbers, present, 0));
+        sr.setIdleTime(number(Column.IdleTime, numbers, present, 0));
+        sr.setConnectTime(number(Column.Connect, numbers, present, 0));
+        sr.setSampleCount((int) Math.max(1, number(Column.SampleCount, numbers, present, 1)));
+        sr.setErrorCount((int) number(Column.ErrorCount, numbers, present, success ? 0 : 1));
+        String url = text(Column.URL, texts, present);
+        if (!url.isEmpty() && !url.equals("null")) {
+            try {
+                sr.setURL(new URL(url));
+            } catch (MalformedURLException e) {
+                // Left without URL
+            }
+        }
+        return sr;
+    }
+
+    private static String text(Column column, String[] texts, boolean[] present) {
+        return present[column.ordinal()] ? texts[column.ordinal()] : "";
+    }
+
+    private static long number(Column column, long[] numbers, boolean[] present, long defaultValue) {
+        return present[column.ordinal()] ? numbers[column.ordinal()] : defaultValue;
+    }
+
+    /**
+     * Receiver of the parsed samples, which may block until it has room for them.
+     */
+    interface SampleConsumer {
+        void accept(SampleResult sr) throws InterruptedException;
+    }
+
+    /**
+     * Field being read, its bytes are unquoted into a buffer reused from one field to the next.
+     */
+    private static final class Field {
+        private byte[] bytes = new byte[256];
+        private int length;
+        private boolean last;
+
+        /**
+         * Reads the field starting at {@code position}.
+         *
+         * @return the position of the next field, or of the next record if this field is the last of its record
+         */
+        int read(ByteBuffer buffer, int position, int end, byte delimiter) {
+            length = 0;
+            int i = position;
+            if (i < end && buffer.get(i) == '"') {
+                i++;
+                while (i < end) {
+                    byte b = buffer.get(i++);
+                    if (b == '"') {
+                        if (i < end && buffer.get(i) == '"') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    append(b);
+                }
+            }
+            while (i < end) {
+                byte b = buffer.get(i++);
+                if (b == delimiter) {
+                    last = false;
+                    return i;
+                }
+                if (b == '\n') {
+                    last = true;
+                    return i;
+                }
+                if (b != '\r') {
+                    append(b);
+                }
+            }
+            last = true;
+            return i;
+        }
+
+        private void append(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        String text() {
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        boolean isNumber() {
+            int i = length > 0 && bytes[0] == '-' ? 1 : 0;
+            if (i == length && length > 0) {
+                return false;
+            }
+            for (; i < length; i++) {
+                if (bytes[i] < '0' || bytes[i] > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Value of the field as a number, 0 if the field is empty, meaningless if it is not {@link #isNumber()}.
+         */
+        long number() {
+            boolean negative = length > 0 && bytes[0] == '-';
+            long value = 0;
+            for (int i = negative ? 1 : 0; i < length; i++) {
+                value = value * 10 + (bytes[i] - '0');
+            }
+            return negative ? -value : value;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jmeter.visualizers.backend.BackendListenerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a JMeter CSV results file (JTL) through an {@link AzureBackendClient}, so that the samples of a run without
+ * network access are sent afterwards with the same mapping and filtering as during a test. Started with
+ * {@link #main(String[])}. Options that aggregate samples in windows of time are refused, their windows would follow
+ * the time of the replay instead of the time stamps of the samples.
+ *
+ * The file is read in chunks cut at record boundaries by a reader thread, the chunks are parsed by a pool of parser
+ * threads, and the batches of samples are handed to the listener by the calling thread, as JMeter does. The chunks
+ * are read into a bounded set of reused buffers and the queues between the threads are bounded, so the memory used
+ * depends on the number of threads and the size of the chunks, not on the size of the file.
+ */
+final class JtlReplay {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(JtlReplay.class);
+
+    /**
+     * Default size of the chunks the file is read and parsed in.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Number of samples handed to the listener at once.
+     */
+    static final int BATCH_SIZE = 1000;
+
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+
+    /**
+     * Largest chunk, the size of a buffer is an int.
+     */
+    private static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Marks the end of the chunks for the parsers, and the end of the batches of a parser for the calling thread.
+     */
+    private static final ByteBuffer END_OF_CHUNKS = ByteBuffer.allocate(0);
+    private static final List<SampleResult> END_OF_BATCHES = new ArrayList<SampleResult>(0);
+
+    private final File file;
+    private final AzureBackendClient client;
+    private final BackendListenerContext context;
+    private final int threads;
+    private final int chunkSize;
+    private final char delimiter;
+
+    private final BlockingQueue<ByteBuffer> chunks;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final int maxBuffers;
+    private int allocatedBuffers;
+    private final BlockingQueue<List<SampleResult>> batches;
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    private final LongAdder parsedBytes = new LongAdder();
+    private long samples;
+    private long malformedRecords;
+
+    /**
+     * @param threads   number of parser threads
+     * @param chunkSize size of the chunks the file is read and parsed in, a chunk is extended if a single record
+     *                  does not fit
+     */
+    JtlReplay(File file, AzureBackendClient client, BackendListenerContext context, int threads, int chunkSize,
+            char delimiter) {
+        this.file = file;
+        this.client = client;
+        this.context = context;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.delimiter = delimiter;
+        this.chunks = new ArrayBlockingQueue<ByteBuffer>(this.threads);
+        // One chunk per parser, the queued ones and the one being read
+        this.maxBuffers = 2 * this.threads + 1;
+        this.freeBuffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+        this.batches = new ArrayBlockingQueue<List<SampleResult>>(this.threads * 4);
+    }
+
+    /**
+     * Sets the listener up, hands it every sample of the file and tears it down.
+     *
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalArgumentException if an option of the listener aggregates samples in windows of time
+     */
+    public void run() throws Exception {
+        List<String> windowedOptions = timeWindowedOptions(context);
+        if (!windowedOptions.isEmpty()) {
+            throw new IllegalArgumentException("Options " + windowedOptions + " cannot be replayed, their windows "
+                    + "would follow the time of the replay instead of the time stamps of the samples");
+        }
+        client.setupTest(context);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            replay(channel);
+        } finally {
+            client.teardownTest(context);
+        }
+    }
+
+    private void replay(FileChannel channel) throws IOException, InterruptedException {
+        long size = channel.size();
+        if (size == 0) {
+            log.warn("{} is empty", file);
+            return;
+        }
+
+        // The first record is either the header or a sample of a file written without header
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, chunkSize));
+        readFully(channel, head, 0);
+        int headerEnd = JtlParser.firstRecordEnd(head, 0, head.limit());
+        if (headerEnd < 0) {
+            headerEnd = head.limit();
+        }
+        String[] fields = JtlParser.fields(head, 0, headerEnd, delimiter);
+        boolean hasHeader = JtlParser.isHeader(fields);
+        long dataStart = hasHeader ? headerEnd : 0;
+        JtlParser parser = new JtlParser(hasHeader ? fields : JtlParser.DEFAULT_HEADER, delimiter);
+
+        List<Thread> workers = new ArrayList<Thread>(threads + 1);
+        Thread reader = new Thread(() -> read(channel, dataStart, size), "azure-replay-reader");
+        workers.add(reader);
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread(() -> parse(parser), "azure-replay-parser-" + i));
+        }
+        for (Thread worker : workers) {
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            handOver(size, start);
+        } finally {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+        malformedRecords = parser.getMalformedRecords();
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.info("Replayed {} samples from {} MB in {} s: {} samples/s, {} MB/s, {} malformed records skipped",
+                samples, size / (1024 * 1024), elapsed / 1000, samples * 1000 / elapsed,
+                size * 1000 / elapsed / (1024 * 1024), malformedRecords);
+        if (failure.get() != null) {
+            throw new IOException("Cannot replay " + file, failure.get());
+        }
+    }
+
+    /**
+     * Hands the batches of the parsers to the listener until every parser is done, and reports the progress.
+     */
+    private void handOver(long size, long start) throws InterruptedException {
+        int finished = 0;
+        long nextReport = start + PROGRESS_INTERVAL_MS;
+        long reportedSamples = 0;
+        long reportedBytes = 0;
+        long reportTime = start;
+        while (finished < threads) {
+            List<SampleResult> batch = batches.poll(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (batch == END_OF_BATCHES) {
+                finished++;
+            } else if (batch != null) {
+                client.handleSampleResults(batch, context);
+                samples += batch.size();
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                long bytes = parsedBytes.sum();
+                long interval = Math.max(1, now - reportTime);
+                log.info("Replay: {} of {} MB ({}%), {} samples, {} samples/s, {} MB/s", bytes / (1024 * 1024),
+                        size / (1024 * 1024), bytes * 100 / size, samples,
+                        (samples - reportedSamples) * 1000 / interval,
+                        (bytes - reportedBytes) * 1000 / interval / (1024 * 1024));
+                reportedSamples = samples;
+                reportedBytes = bytes;
+                reportTime = now;
+                nextReport = now + PROGRESS_INTERVAL_MS;
+            }
+        }
+    }
+
+    /**
+     * Reads the file chunk after chunk, each one ending at the end of a record, and queues them for the parsers.
+     */
+    private void read(FileChannel channel, long position, long size) {
+        try {
+            while (position < size && failure.get() == null) {
+                long length = Math.min(chunkSize, size - position);
+                ByteBuffer chunk = takeBuffer();
+                while (true) {
+                    if (chunk.capacity() < length) {
+                        // Replaces the buffer, the number of buffers stays the same
+                        chunk = ByteBuffer.allocate((int) length);
+                    }
+                    chunk.clear();
+                    chunk.limit((int) length);
+                    readFully(channel, chunk, position);
+                    int end = position + length == size ? (int) length
+                            : JtlParser.lastRecordEnd(chunk, 0, (int) length);
+                    if (end > 0) {
+                        chunk.position(0);
+                        chunk.limit(end);
+                        chunks.put(chunk);
+                        position += end;
+                        break;
+                    }
+                    if (length >= MAX_CHUNK_SIZE) {
+                        throw new IOException("A record at offset " + position + " is longer than "
+                                + MAX_CHUNK_SIZE + " bytes");
+                    }
+                    // A single record longer than the chunk
+                    length = Math.min(Math.min(length * 2, MAX_CHUNK_SIZE), size - position);
+                }
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            for (int i = 0; i < threads; i++) {
+                chunks.put(END_OF_CHUNKS);
+            }
+        } catch (InterruptedException e) {
+            // The replay is over
+        }
+    }
+
+    /**
+     * Returns a buffer given back by the parsers, or a new one until there are {@link #maxBuffers}. Only called by
+     * the reader.
+     */
+    private ByteBuffer takeBuffer() throws InterruptedException {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedBuffers < maxBuffers) {
+            allocatedBuffers++;
+            return ByteBuffer.allocate(chunkSize);
+        }
+        return freeBuffers.take();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at offset " + (position + buffer.position()));
+            }
+        }
+    }
+
+    /**
+     * Parses the chunks queued by the reader into batches of samples.
+     */
+    private void parse(JtlParser parser) {
+        try {
+            while (true) {
+                ByteBuffer chunk = chunks.take();
+                if (chunk == END_OF_CHUNKS) {
+                    break;
+                }
+                Batcher batcher = new Batcher();
+                parser.parse(chunk, 0, chunk.limit(), batcher);
+                parsedBytes.add(chunk.limit());
+                freeBuffers.offer(chunk);
+                if (!batcher.batch.isEmpty()) {
+                    batches.put(batcher.batch);
+                }
+            }
+            batches.put(END_OF_BATCHES);
+        } catch (InterruptedException e) {
+            // The replay is over
+        } catch (RuntimeException e) {
+            log.error("Cannot parse the results file", e);
+            failure.compareAndSet(null, e);
+            try {
+                // Lets the reader and the other parsers end
+                ByteBuffer chunk;
+                while ((chunk = chunks.take()) != END_OF_CHUNKS) {
+                    freeBuffers.offer(chunk);
+                }
+                batches.put(END_OF_BATCHES);
+            } catch (InterruptedException interrupted) {
+                // The replay is over
+            }
+        }
+    }
+
+    /**
+     * Groups the samples of a parser in batches of {@link #BATCH_SIZE} and queues them for the calling thread.
+     */
+    private final class Batcher implements JtlParser.SampleConsumer {
+        private List<SampleResult> batch = new ArrayList<SampleResult>(BATCH_SIZE);
+
+        @Override
+        public void accept(SampleResult sr) throws InterruptedException {
+            batch.add(sr);
+            if (batch.size() >= BATCH_SIZE) {
+                batches.put(batch);
+                batch = new ArrayList<SampleResult>(BATCH_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Options of the listener that aggregate samples in windows of time: aggregation, percentile and timing breakdown
+     * metrics, SLA evaluation, payload deduplication, the aggregation collector and adaptive sampling, whose throughput
+     * is measured on the clock.
+     */
+    static List<String> timeWindowedOptions(BackendListenerContext context) {
+        List<String> options = new ArrayList<String>();
+        if (context.getBooleanParameter(AzureBackendClient.KEY_AGGREGATE_SAMPLES,
+                AzureBackendClient.DEFAULT_AGGREGATE_SAMPLES)) {
+            options.add(AzureBackendClient.KEY_AGGREGATE_SAMPLES);
+        }
+        if (context.getBooleanParameter(AzureBackendClient.KEY_PERCENTILE_METRICS,
+                AzureBackendClient.DEFAULT_PERCENTILE_METRICS)) {
+            options.add(AzureBackendClient.KEY_PERCENTILE_METRICS);
+        }
+        if (TimingBreakdownMode.fromString(context.getParameter(AzureBackendClient.KEY_TIMING_BREAKDOWN,
+                AzureBackendClient.DEFAULT_TIMING_BREAKDOWN.getValue())).hasMetrics()) {
+            options.add(AzureBackendClient.KEY_TIMING_BREAKDOWN);
+        }
+        if (!context.getParameter(AzureBackendClient.KEY_SLA_THRESHOLDS, AzureBackendClient.DEFAULT_SLA_THRESHOLDS)
+                .trim().isEmpty()) {
+            options.add(AzureBackendClient.KEY_SLA_THRESHOLDS);
+        }
+        if (context.getBooleanParameter(AzureBackendClient.KEY_DEDUPLICATE_PAYLOADS,
+                AzureBackendClient.DEFAULT_DEDUPLICATE_PAYLOADS)) {
+            options.add(AzureBackendClient.KEY_DEDUPLICATE_PAYLOADS);
+        }
+        if (!context.getParameter(AzureBackendClient.KEY_COLLECTOR_ADDRESS,
+                AzureBackendClient.DEFAULT_COLLECTOR_ADDRESS).trim().isEmpty()) {
+            options.add(AzureBackendClient.KEY_COLLECTOR_ADDRESS);
+        }
+        if (Double.parseDouble(context.getParameter(AzureBackendClient.KEY_SAMPLING_TARGET,
+                AzureBackendClient.DEFAULT_SAMPLING_TARGET).trim()) > 0) {
+            options.add(AzureBackendClient.KEY_SAMPLING_TARGET);
+        }
+        return options;
+    }
+
+    /**
+     * Number of samples handed to the listener.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Number of records skipped because they are malformed.
+     */
+    public long getMalformedRecords() {
+        return malformedRecords;
+    }
+
+    /**
+     * Replays a results file. Other options are parameters of the listener, with the same names and defaults as in
+     * the test plan, except for {@code liveMetrics} which defaults to {@code false}.
+     *
+     * <pre>
+     * java -cp "$JMETER_HOME/lib/*:$JMETER_HOME/lib/ext/*" io.github.adrianmo.jmeter.backendlistener.azure.JtlReplay \
+     *     --file results.jtl [--threads 8] [--chunkSize 16] [--delimiter ,] [--jmeterProperties jmeter.properties] \
+     *     [--connectionString "InstrumentationKey=..."] [--testName jmeter] [--listener parameter value ...]
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            switch (name) {
+                case "file":
+                case "threads":
+                case "chunkSize":
+                case "delimiter":
+                case "jmeterProperties":
+                    options.put(name, args[i + 1]);
+                    break;
+                default:
+                    parameters.put(name, args[i + 1]);
+            }
+        }
+        String fileName = options.get("file");
+        if (fileName == null) {
+            System.err.println("Usage: JtlReplay --file <results file> [--threads <count>] [--chunkSize <MB>] "
+                    + "[--delimiter <character>] [--jmeterProperties <file>] [--<listener parameter> <value> ...]");
+            System.exit(2);
+        }
+        if (options.containsKey("jmeterProperties")) {
+            // Settings of SampleResult, such as whether time stamps are start or end times
+            JMeterUtils.loadJMeterProperties(options.get("jmeterProperties"));
+        }
+
+        AzureBackendClient client = new AzureBackendClient();
+        Map<String, String> listenerParameters = client.getDefaultParameters().getArgumentsAsMap();
+        listenerParameters.put("liveMetrics", "false");
+        listenerParameters.putAll(parameters);
+
+        String delimiter = options.getOrDefault("delimiter", ",");
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        int chunkSize = (int) Math.min(MAX_CHUNK_SIZE,
+                Long.parseLong(options.getOrDefault("chunkSize", Integer.toString(DEFAULT_CHUNK_SIZE >> 20))) << 20);
+        new JtlReplay(new File(fileName), client, new BackendListenerContext(listenerParameters), threads, chunkSize,
+                delimiter.equals("\\t") || delimiter.equalsIgnoreCase("tab") ? '\t' : delimiter.charAt(0)).run();
+        // Threads of the Application Insights SDK would keep the JVM alive
+        System.exit(0);
+    }
+}
@@ -0,0 +1,347 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values (usually milliseconds).
+ *
+ * Values below 32 are counted exactly, larger values fall into one of 16 sub-buckets per power of two, which bounds
+ * the relative error of any reported percentile to about 3%. The bucket layout is fixed, so two histograms can always
+ * be merged and the memory footprint does not depend on the number of recorded values. All updates are lock-free.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of sub-buckets per power of two, as a bit count.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below this limit get their own bucket.
+     */
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+
+    /**
+     * Highest trackable value, larger values are clamped to it.
+     */
+    static final long MAX_VALUE = (1L << 32) - 1;
+
+    /**
+     * Total number of buckets.
+     */
+    static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT
+                + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int offset = index - LINEAR_LIMIT;
+        int shift = offset / SUB_BUCKET_COUNT + 1;
+        long subBucket = SUB_BUCKET_COUNT + offset % SUB_BUCKET_COUNT;
+        return subBucket << shift;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index + 1 >= BUCKET_COUNT) {
+            return MAX_VALUE;
+        }
+        return bucketLowerBound(index + 1) - 1;
+    }
+
+    /**
+     * Records a single value.
+     */
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records a value observed {@code times} times.
+     */
+    public void record(long value, long times) {
+        if (times <= 0) {
+            return;
+        }
+        long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.addAndGet(bucketIndex(clamped), times);
+        count.addAndGet(times);
+        sum.addAndGet(clamped * times);
+        updateMin(clamped);
+        updateMax(clamped);
+    }
+
+    private void updateMin(long value) {
+        long current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+    }
+
+    private void updateMax(long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Adds all values recorded by {@code other} to this histogram.
+     */
+    public void merge(LatencyHistogram other) {
+        long otherCount = other.getCount();
+        if (otherCount == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long bucket = other.counts.get(i);
+            if (bucket != 0) {
+                counts.addAndGet(i, bucket);
+            }
+        }
+        count.addAndGet(otherCount);
+        sum.addAndGet(other.getSum());
+        updateMin(other.min.get());
+        updateMax(other.max.get());
+    }
+
+    /**
+     * Merges raw bucket counts, e.g. received from another process, into this histogram.
+     */
+    public void merge(long[] bucketCounts, long bucketSum, long bucketMin, long bucketMax) {
+        long total = 0;
+        for (int i = 0; i < bucketCounts.length && i < BUCKET_COUNT; i++) {
+            if (bucketCounts[i] != 0) {
+                counts.addAndGet(i, bucketCounts[i]);
+                total += bucketCounts[i];
+            }
+        }
+        if (total == 0) {
+            return;
+        }
+        count.addAndGet(total);
+        sum.addAndGet(bucketSum);
+        updateMin(bucketMin);
+        updateMax(bucketMax);
+    }
+
+    /**
+     * Returns a copy of the bucket counts, indexed as {@link #bucketIndex(long)}.
+     */
+    public long[] getBucketCounts() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMin() {
+        return getCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return getCount() == 0 ? 0 : max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100), or 0 if the histogram is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = rankOf(percentile, n);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(Math.max(bucketMidpoint(i), getMin()), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100) of raw bucket counts, or 0 if they are all zero.
+     */
+    static long valueAtPercentile(long[] bucketCounts, double percentile) {
+        long n = 0;
+        for (long bucket : bucketCounts) {
+            n += bucket;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = rankOf(percentile, n);
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank) {
+                return bucketMidpoint(i);
+            }
+        }
+        return bucketMidpoint(bucketCounts.length - 1);
+    }
+
+    private static long rankOf(double percentile, long count) {
+        return Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+    }
+
+    private static long bucketMidpoint(int index) {
+        long lower = bucketLowerBound(index);
+        return lower + (bucketUpperBound(index) - lower) / 2;
+    }
+
+    /**
+     * Returns a reader of the values recorded by this histogram between two reads, for histograms that are never
+     * reset.
+     */
+    public IntervalReader intervalReader() {
+        return new IntervalReader(this);
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Reads the values recorded by a cumulative histogram since the previous read, as the difference between its
+     * current bucket counts and the ones of the previous read. Nothing is lost between two reads and the histogram
+     * never has to be reset. Not thread-safe, reads must not be concurrent.
+     */
+    static final class IntervalReader {
+        private final LatencyHistogram histogram;
+        private long[] read = new long[BUCKET_COUNT];
+        private long readSum;
+
+        private IntervalReader(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        /**
+         * Returns the values recorded since the previous read.
+         */
+        public Interval next() {
+            long[] counts = histogram.getBucketCounts();
+            long sum = histogram.getSum();
+            long[] interval = new long[counts.length];
+            long count = 0;
+            int lowestBucket = -1;
+            int highestBucket = -1;
+            for (int i = 0; i < counts.length; i++) {
+                interval[i] = counts[i] - read[i];
+                count += interval[i];
+                if (interval[i] > 0) {
+                    if (lowestBucket < 0) {
+                        lowestBucket = i;
+                    }
+                    highestBucket = i;
+                }
+            }
+            long intervalSum = sum - readSum;
+            read = counts;
+            readSum = sum;
+            if (count == 0) {
+                return new Interval(interval, 0, 0, 0, 0);
+            }
+            // The bounds of the extreme buckets, narrowed by the extremes recorded since the start
+            return new Interval(interval, count, intervalSum,
+                    Math.max(bucketLowerBound(lowestBucket), histogram.getMin()),
+                    Math.min(bucketUpperBound(highestBucket), histogram.getMax()));
+        }
+    }
+
+    /**
+     * Values recorded by a histogram during an interval.
+     */
+    static final class Interval {
+        private final long[] bucketCounts;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        private Interval(long[] bucketCounts, long count, long sum, long min, long max) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Number of values, capped to fit the count of a metric.
+         */
+        public int getCountAsInt() {
+            return (int) Math.min(Integer.MAX_VALUE, count);
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the value at the given percentile (0-100) of the interval, within its minimum and maximum.
+         */
+        public long getValueAtPercentile(double percentile) {
+            return Math.min(Math.max(valueAtPercentile(bucketCounts, percentile), min), max);
+        }
+    }
+}
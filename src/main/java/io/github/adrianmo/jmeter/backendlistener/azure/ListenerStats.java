@@ -0,0 +1,271 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers of the work done by the listener itself, exposed through JMX and reported as custom metrics.
+ *
+ * Counters are striped {@link LongAdder}s, so updating them from the listener thread and the async workers costs
+ * about as much as a plain increment. The timers of building the requests and of handing them to the sink are updated
+ * once per batch, not per sample.
+ */
+final class ListenerStats implements ListenerStatsMBean {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(ListenerStats.class);
+
+    private static final String DOMAIN = "io.github.adrianmo.jmeter.backendlistener.azure";
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder emitted = new LongAdder();
+    private final LongAdder responseDataBytes = new LongAdder();
+    private final LatencyHistogram buildTime = new LatencyHistogram();
+    private final LatencyHistogram sinkTime = new LatencyHistogram();
+
+    private volatile AsyncSampleDispatcher dispatcher;
+    private ObjectName objectName;
+
+    /**
+     * Values at the time of the previous report, only accessed by {@link #report}.
+     */
+    private final long[] reported = new long[Counter.values().length];
+    private final LatencyHistogram.IntervalReader buildTimeIntervals = buildTime.intervalReader();
+    private final LatencyHistogram.IntervalReader sinkTimeIntervals = sinkTime.intervalReader();
+
+    public void received(int count) {
+        received.add(count);
+    }
+
+    public void filtered() {
+        filtered.increment();
+    }
+
+    public void sampledOut() {
+        sampledOut.increment();
+    }
+
+    public void responseDataCaptured(int bytes) {
+        responseDataBytes.add(bytes);
+    }
+
+    /**
+     * Records the time spent building the requests of a batch: sampling, property mapping, header extraction,
+     * payload decoding and deduplication.
+     */
+    public void requestsBuilt(long startNanos, long endNanos) {
+        buildTime.record((endNanos - startNanos) / 1000);
+    }
+
+    /**
+     * Records a call to the telemetry sink.
+     */
+    public void sinkCalled(int requests, long startNanos, long endNanos) {
+        emitted.add(requests);
+        sinkTime.record((endNanos - startNanos) / 1000);
+    }
+
+    /**
+     * Sets the async pipeline whose drops and queue depth are reported, null if there is none.
+     */
+    public void setDispatcher(AsyncSampleDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public long getReceived() {
+        return received.sum();
+    }
+
+    @Override
+    public long getFiltered() {
+        return filtered.sum();
+    }
+
+    @Override
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    @Override
+    public long getEmitted() {
+        return emitted.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        AsyncSampleDispatcher current = dispatcher;
+        return current == null ? 0 : current.getDropped();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        AsyncSampleDispatcher current = dispatcher;
+        return current == null ? 0 : current.getQueueDepth();
+    }
+
+    @Override
+    public long getResponseDataBytes() {
+        return responseDataBytes.sum();
+    }
+
+    @Override
+    public double getBuildTimeMean() {
+        return buildTime.getMean();
+    }
+
+    @Override
+    public long getBuildTimeP99() {
+        return buildTime.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getBuildTimeMax() {
+        return buildTime.getMax();
+    }
+
+    @Override
+    public long getSinkCalls() {
+        return sinkTime.getCount();
+    }
+
+    @Override
+    public double getSinkTimeMean() {
+        return sinkTime.getMean();
+    }
+
+    @Override
+    public long getSinkTimeP99() {
+        return sinkTime.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getSinkTimeMax() {
+        return sinkTime.getMax();
+    }
+
+    /**
+     * Registers the counters in the platform MBean server, under the name of the test. A failure is logged and
+     * otherwise ignored.
+     */
+    public void register(String testName) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=AzureBackendClient,testName="
+                    + ObjectName.quote(testName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            log.warn("Cannot register the listener counters in JMX: {}", e.toString());
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.debug("Cannot unregister {}", objectName, e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * Builds the metrics of the last interval: the counters as the number of events since the previous report, the
+     * queue depth as its current value, and the build and sink times as aggregates with their percentiles as
+     * properties. Must not be called concurrently.
+     *
+     * @param name prefix of the metric names, followed by {@code .listener.<counter>}
+     */
+    public List<MetricTelemetry> report(String name, Map<String, String> customProperties, Date timestamp) {
+        List<MetricTelemetry> metrics = new ArrayList<MetricTelemetry>();
+        for (Counter counter : Counter.values()) {
+            long value = counter.get(this);
+            metrics.add(metric(name, counter.getValue(), value - reported[counter.ordinal()], customProperties,
+                    timestamp));
+            reported[counter.ordinal()] = value;
+        }
+        metrics.add(metric(name, "queueDepth", getQueueDepth(), customProperties, timestamp));
+
+        addTimer(metrics, name, "buildTime", buildTimeIntervals.next(), customProperties, timestamp);
+        addTimer(metrics, name, "sinkTime", sinkTimeIntervals.next(), customProperties, timestamp);
+        return metrics;
+    }
+
+    private static void addTimer(List<MetricTelemetry> metrics, String name, String timer,
+            LatencyHistogram.Interval interval, Map<String, String> customProperties, Date timestamp) {
+        if (interval.isEmpty()) {
+            return;
+        }
+        MetricTelemetry metric = metric(name, timer, interval.getSum(), customProperties, timestamp);
+        metric.setCount(interval.getCountAsInt());
+        metric.setMax((double) interval.getMax());
+        metric.getProperties().put("P50", Long.toString(interval.getValueAtPercentile(50)));
+        metric.getProperties().put("P99", Long.toString(interval.getValueAtPercentile(99)));
+        metrics.add(metric);
+    }
+
+    private static MetricTelemetry metric(String name, String counter, double value,
+            Map<String, String> customProperties, Date timestamp) {
+        MetricTelemetry metric = new MetricTelemetry(name + ".listener." + counter, value);
+        metric.setTimestamp(timestamp);
+        metric.getProperties().putAll(customProperties);
+        return metric;
+    }
+
+    /**
+     * Counters reported as the number of events of the interval.
+     */
+    private enum Counter {
+        Received("received"),
+        Filtered("filtered"),
+        SampledOut("sampledOut"),
+        Emitted("emitted"),
+        Dropped("dropped"),
+        ResponseDataBytes("responseDataBytes");
+
+        private final String value;
+
+        Counter(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        long get(ListenerStats stats) {
+            switch (this) {
+                case Received:
+                    return stats.getReceived();
+                case Filtered:
+                    return stats.getFiltered();
+                case SampledOut:
+                    return stats.getSampledOut();
+                case Emitted:
+                    return stats.getEmitted();
+                case Dropped:
+                    return stats.getDropped();
+                default:
+                    return stats.getResponseDataBytes();
+            }
+        }
+    }
+}
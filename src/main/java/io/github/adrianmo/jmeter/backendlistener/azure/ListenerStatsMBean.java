@@ -0,0 +1,78 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+/**
+ * Management interface of the overhead counters of an {@link AzureBackendClient}, registered in the platform MBean
+ * server while the test is running. Counts are since the start of the test.
+ */
+public interface ListenerStatsMBean {
+
+    /**
+     * Number of samples handed to the listener by JMeter.
+     */
+    long getReceived();
+
+    /**
+     * Number of samples rejected by the samplers lists.
+     */
+    long getFiltered();
+
+    /**
+     * Number of samples not sent because of the adaptive sampling.
+     */
+    long getSampledOut();
+
+    /**
+     * Number of requests handed to the telemetry sink.
+     */
+    long getEmitted();
+
+    /**
+     * Number of samples discarded by the async pipeline and never sent.
+     */
+    long getDropped();
+
+    /**
+     * Number of samples waiting for an async worker.
+     */
+    int getQueueDepth();
+
+    /**
+     * Number of bytes of response data captured into the requests.
+     */
+    long getResponseDataBytes();
+
+    /**
+     * Mean time to build the requests of a batch, in microseconds.
+     */
+    double getBuildTimeMean();
+
+    /**
+     * 99th percentile of the time to build the requests of a batch, in microseconds.
+     */
+    long getBuildTimeP99();
+
+    /**
+     * Longest time to build the requests of a batch, in microseconds.
+     */
+    long getBuildTimeMax();
+
+    /**
+     * Number of calls to the telemetry sink.
+     */
+    long getSinkCalls();
+
+    /**
+     * Mean time of a call to the telemetry sink, in microseconds.
+     */
+    double getSinkTimeMean();
+
+    /**
+     * 99th percentile of the time of a call to the telemetry sink, in microseconds.
+     */
+    long getSinkTimeP99();
+
+    /**
+     * Longest call to the telemetry sink, in microseconds.
+     */
+    long getSinkTimeMax();
+}
@@ -0,0 +1,211 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the payloads recently sent per label and response code, so that a payload repeated by many samples, such
+ * as the error page of a failing server, is only sent in full once per window.
+ *
+ * Payloads are identified by a 64-bit hash of the part that would be kept after truncation, computed on the
+ * characters in place without copying them. The number of payloads remembered is bounded, the least
+ * recently seen one is evicted first. Thread-safe, callers share a single lock, which is only taken for samples whose
+ * data is logged.
+ */
+final class PayloadDeduplicator {
+
+    /**
+     * Maximum number of payloads remembered.
+     */
+    static final int MAX_ENTRIES = 1000;
+
+    /**
+     * Maximum number of recurring payloads reported per label and response code.
+     */
+    static final int TOP_PAYLOADS = 5;
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    private final long windowMillis;
+    private final Map<Key, Occurrences> entries = new LinkedHashMap<Key, Occurrences>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Occurrences> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    PayloadDeduplicator(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Hashes a decoded payload as it would be sent, that is its kept characters and whether they were truncated.
+     */
+    static long hash(PayloadTruncator.Result payload) {
+        CharSequence chars = payload.getChars();
+        // A truncated payload is one character longer than what is kept, as for the text hashed by hash(text, limit)
+        return hash(chars, chars.length(), payload.isTruncated() ? chars.length() + 1 : chars.length());
+    }
+
+    /**
+     * Hashes the first {@code limit} characters of a text along with their number.
+     */
+    static long hash(CharSequence text, int limit) {
+        int length = Math.min(text.length(), limit);
+        return hash(text, length, length);
+    }
+
+    private static long hash(CharSequence text, int length, int hashedLength) {
+        long hash = SEED ^ hashedLength;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            hash = mix(hash, (long) text.charAt(i) | (long) text.charAt(i + 1) << 16
+                    | (long) text.charAt(i + 2) << 32 | (long) text.charAt(i + 3) << 48);
+        }
+        for (; i < length; i++) {
+            hash = mix(hash, text.charAt(i));
+        }
+        return finish(hash);
+    }
+
+    private static long mix(long hash, long value) {
+        return Long.rotateLeft(hash ^ (value * MULTIPLIER), 31) * SEED;
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= MULTIPLIER;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Counts an occurrence of a payload.
+     *
+     * @return the number of occurrences of the payload for this label and response code in the current window, the
+     * payload has to be sent in full when it is 1
+     */
+    public synchronized long occurrence(String label, String responseCode, long hash, long now) {
+        Key key = new Key(label, responseCode, hash);
+        Occurrences occurrences = entries.get(key);
+        if (occurrences == null) {
+            occurrences = new Occurrences(now);
+            entries.put(key, occurrences);
+        } else if (now - occurrences.windowStart >= windowMillis) {
+            occurrences.windowStart = now;
+            occurrences.windowCount = 0;
+        }
+        occurrences.total++;
+        return ++occurrences.windowCount;
+    }
+
+    /**
+     * Builds the metrics of the payloads that occurred more than once since the previous report, the most frequent
+     * ones first, at most {@link #TOP_PAYLOADS} per label and response code. Must not be called concurrently.
+     *
+     * @param name    name of the metrics
+     * @param payload kind of payload, sent as the {@code Payload} property
+     */
+    public List<MetricTelemetry> report(String name, String payload, Map<String, String> customProperties,
+            Date timestamp) {
+        Map<String, List<Map.Entry<Key, Long>>> recurring = new HashMap<String, List<Map.Entry<Key, Long>>>();
+        synchronized (this) {
+            for (Map.Entry<Key, Occurrences> entry : entries.entrySet()) {
+                Occurrences value = entry.getValue();
+                long count = value.total - value.reported;
+                value.reported = value.total;
+                if (count > 1) {
+                    Key key = entry.getKey();
+                    recurring.computeIfAbsent(key.label + '\n' + key.responseCode,
+                            k -> new ArrayList<Map.Entry<Key, Long>>())
+                            .add(new AbstractMap.SimpleImmutableEntry<Key, Long>(key, count));
+                }
+            }
+        }
+
+        List<MetricTelemetry> metrics = new ArrayList<MetricTelemetry>();
+        for (List<Map.Entry<Key, Long>> payloads : recurring.values()) {
+            payloads.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            for (Map.Entry<Key, Long> entry : payloads.subList(0, Math.min(TOP_PAYLOADS, payloads.size()))) {
+                Key key = entry.getKey();
+                MetricTelemetry metric = new MetricTelemetry(name, entry.getValue());
+                metric.setTimestamp(timestamp);
+                Map<String, String> properties = metric.getProperties();
+                properties.putAll(customProperties);
+                properties.put("SampleLabel", key.label);
+                properties.put("ResponseCode", key.responseCode);
+                properties.put("Payload", payload);
+                properties.put("PayloadHash", toHex(key.hash));
+                metrics.add(metric);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Formats a hash as sent in the {@code *Hash} properties.
+     */
+    static String toHex(long hash) {
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * Number of payloads remembered.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Payload sent for a label and response code.
+     */
+    private static final class Key {
+        private final String label;
+        private final String responseCode;
+        private final long hash;
+
+        Key(String label, String responseCode, long hash) {
+            this.label = label == null ? "" : label;
+            this.responseCode = responseCode == null ? "" : responseCode;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && label.equals(other.label) && responseCode.equals(other.responseCode);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32)) * 31 + label.hashCode() * 17 + responseCode.hashCode();
+        }
+    }
+
+    /**
+     * Occurrences of a payload, guarded by the lock of the deduplicator.
+     */
+    private static final class Occurrences {
+        private long windowStart;
+        private long windowCount;
+        private long total;
+        private long reported;
+
+        Occurrences(long windowStart) {
+            this.windowStart = windowStart;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Truncates request and response payloads to a maximum number of characters.
+ *
+ * Binary payloads are decoded straight into a reusable per-thread buffer of the maximum length, so only the kept
+ * prefix is ever decoded and copied, however large the payload is. The text of the result is only built when it is
+ * asked for, so a payload that is not sent is never copied out of the buffer.
+ */
+final class PayloadTruncator {
+
+    /**
+     * Suffix appended to truncated payloads.
+     */
+    static final String TRUNCATED_SUFFIX = "...[TRUNCATED]";
+
+    private final int maxLength;
+    private final ThreadLocal<CharBuffer> buffers;
+
+    PayloadTruncator(int maxLength) {
+        this.maxLength = maxLength;
+        this.buffers = ThreadLocal.withInitial(() -> CharBuffer.allocate(maxLength));
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Whether {@link #truncate(String)} would truncate the given text.
+     */
+    public boolean isTooLong(String text) {
+        return text.length() > maxLength;
+    }
+
+    public String truncate(String text) {
+        if (text.length() <= maxLength) {
+            return text;
+        }
+        return text.substring(0, maxLength).concat(TRUNCATED_SUFFIX);
+    }
+
+    /**
+     * Decodes at most {@code maxLength} characters of {@code data}, appending the truncation suffix if there was more.
+     * The result is only valid until the next call on the same thread.
+     *
+     * @param encoding name of the charset of the data, UTF-8 is used if it is unknown
+     */
+    public Result decode(byte[] data, String encoding) {
+        CharsetDecoder decoder = charsetOf(encoding).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer in = ByteBuffer.wrap(data);
+        CharBuffer out = buffers.get();
+        out.clear();
+
+        if (!decoder.decode(in, out, true).isOverflow()) {
+            decoder.flush(out);
+        }
+        out.flip();
+
+        return new Result(out, in.hasRemaining(), in.position());
+    }
+
+    private static Charset charsetOf(String encoding) {
+        if (encoding != null) {
+            try {
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
+                // Unsupported or illegal charset name, fall back to UTF-8
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Decoded payload.
+     */
+    static final class Result {
+        private final CharBuffer chars;
+        private final boolean truncated;
+        private final int bytesDecoded;
+        private String text;
+
+        Result(CharBuffer chars, boolean truncated, int bytesDecoded) {
+            this.chars = chars;
+            this.truncated = truncated;
+            this.bytesDecoded = bytesDecoded;
+        }
+
+        /**
+         * Characters kept from the payload, without the truncation suffix, in the buffer of the thread.
+         */
+        public CharSequence getChars() {
+            return chars;
+        }
+
+        public String getText() {
+            if (text == null) {
+                text = truncated ? chars.toString().concat(TRUNCATED_SUFFIX) : chars.toString();
+            }
+            return text;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Number of bytes of the payload that made it into the text.
+         */
+        public int getBytesDecoded() {
+            return bytesDecoded;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the distribution of sample durations per label and reports its percentiles, both over the last interval
+ * and since the start of the test.
+ *
+ * Each label has a single cumulative {@link LatencyHistogram} that is updated lock-free. The interval distribution is
+ * read by a {@link LatencyHistogram.IntervalReader}, so no sample is lost between two reports and nothing has to be
+ * reset. The number of labels is bounded, extra labels are tracked together under
+ * {@link #OTHER_LABEL}, so the memory used does not depend on the number of samples.
+ */
+final class PercentileTracker {
+
+    /**
+     * Maximum number of labels tracked separately.
+     */
+    static final int MAX_LABELS = 1000;
+
+    /**
+     * Label under which samples of labels beyond {@link #MAX_LABELS} are tracked.
+     */
+    static final String OTHER_LABEL = "[other]";
+
+    /**
+     * Reported percentiles and the suffix of their metric name.
+     */
+    private static final double[] PERCENTILES = {50, 90, 95, 99};
+    private static final String[] PERCENTILE_SUFFIXES = {".p50", ".p90", ".p95", ".p99"};
+
+    private final ConcurrentMap<String, LabelHistogram> labels = new ConcurrentHashMap<String, LabelHistogram>();
+
+    /**
+     * Records the duration of a sample.
+     */
+    public void record(String label, long duration) {
+        String key = label == null ? "" : label;
+        LabelHistogram histogram = labels.get(key);
+        if (histogram == null) {
+            if (labels.size() >= MAX_LABELS) {
+                key = OTHER_LABEL;
+            }
+            histogram = labels.computeIfAbsent(key, k -> new LabelHistogram());
+        }
+        histogram.cumulative.record(duration);
+    }
+
+    /**
+     * Builds the percentile metrics of every label that had samples during the last interval. Must not be called
+     * concurrently.
+     *
+     * @param name prefix of the metric names, followed by {@code .p50}, {@code .p90}, {@code .p95}, {@code .p99} and
+     *             {@code .max}
+     */
+    public List<MetricTelemetry> report(String name, Map<String, String> customProperties, Date timestamp) {
+        List<MetricTelemetry> metrics = new ArrayList<MetricTelemetry>();
+        for (Map.Entry<String, LabelHistogram> entry : labels.entrySet()) {
+            LabelHistogram histogram = entry.getValue();
+            LatencyHistogram.Interval interval = histogram.intervals.next();
+            if (interval.isEmpty()) {
+                continue;
+            }
+
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                metrics.add(metric(name + PERCENTILE_SUFFIXES[i], entry.getKey(), "Interval",
+                        interval.getValueAtPercentile(PERCENTILES[i]), customProperties, timestamp));
+                metrics.add(metric(name + PERCENTILE_SUFFIXES[i], entry.getKey(), "Cumulative",
+                        histogram.cumulative.getValueAtPercentile(PERCENTILES[i]), customProperties, timestamp));
+            }
+            metrics.add(metric(name + ".max", entry.getKey(), "Interval", interval.getMax(), customProperties,
+                    timestamp));
+            metrics.add(metric(name + ".max", entry.getKey(), "Cumulative", histogram.cumulative.getMax(),
+                    customProperties, timestamp));
+        }
+        return metrics;
+    }
+
+    private static MetricTelemetry metric(String name, String label, String window, long value,
+            Map<String, String> customProperties, Date timestamp) {
+        MetricTelemetry metric = new MetricTelemetry(name, value);
+        metric.setTimestamp(timestamp);
+        Map<String, String> properties = metric.getProperties();
+        properties.putAll(customProperties);
+        properties.put("SampleLabel", label);
+        properties.put("Window", window);
+        return metric;
+    }
+
+    /**
+     * Cumulative histogram of a label and the reader of its intervals.
+     */
+    private static final class LabelHistogram {
+        private final LatencyHistogram cumulative = new LatencyHistogram();
+        private final LatencyHistogram.IntervalReader intervals = cumulative.intervalReader();
+    }
+}
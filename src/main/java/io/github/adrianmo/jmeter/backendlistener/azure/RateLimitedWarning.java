@@ -0,0 +1,51 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts occurrences of a recurring condition and logs a warning with the running total at most once per interval,
+ * instead of logging every single occurrence.
+ */
+final class RateLimitedWarning {
+
+    private final Logger log;
+    private final String message;
+    private final long intervalMillis;
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong nextLogTime = new AtomicLong();
+
+    /**
+     * @param message message to log, with a single {@code {}} placeholder for the number of occurrences so far
+     */
+    RateLimitedWarning(Logger log, String message, long intervalMillis) {
+        this.log = log;
+        this.message = message;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Counts several occurrences at once, logging at most one warning.
+     */
+    public void add(long occurrences) {
+        if (occurrences <= 0) {
+            return;
+        }
+        count.add(occurrences);
+        long now = System.currentTimeMillis();
+        long next = nextLogTime.get();
+        if (now >= next && nextLogTime.compareAndSet(next, now + intervalMillis)) {
+            log.warn(message, count.sum());
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
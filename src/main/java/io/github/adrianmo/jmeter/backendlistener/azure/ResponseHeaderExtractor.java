@@ -0,0 +1,106 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the values of a fixed set of headers from a raw response header block.
+ *
+ * The header names are indexed by length once, so extracting is a single pass over the header block that only
+ * compares the name of each line with the configured names of the same length, ignoring case. The first occurrence of
+ * a header wins and its value is trimmed.
+ */
+final class ResponseHeaderExtractor {
+
+    private final String[] names;
+    private final String[] propertyKeys;
+    private final int[][] namesByLength;
+
+    /**
+     * @param names       lowercase names of the headers to extract
+     * @param keyPrefix   prefix of the property keys the values are stored under
+     */
+    ResponseHeaderExtractor(String[] names, String keyPrefix) {
+        List<String> validNames = new ArrayList<String>();
+        int maxLength = 0;
+        for (String name : names) {
+            if (!name.isEmpty() && !validNames.contains(name)) {
+                validNames.add(name);
+                maxLength = Math.max(maxLength, name.length());
+            }
+        }
+
+        this.names = validNames.toArray(new String[0]);
+        this.propertyKeys = new String[this.names.length];
+        int[] countByLength = new int[maxLength + 1];
+        for (int i = 0; i < this.names.length; i++) {
+            propertyKeys[i] = keyPrefix.concat(this.names[i]);
+            countByLength[this.names[i].length()]++;
+        }
+
+        this.namesByLength = new int[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            namesByLength[length] = new int[countByLength[length]];
+            countByLength[length] = 0;
+        }
+        for (int i = 0; i < this.names.length; i++) {
+            int length = this.names[i].length();
+            namesByLength[length][countByLength[length]++] = i;
+        }
+    }
+
+    public boolean isEmpty() {
+        return names.length == 0;
+    }
+
+    /**
+     * Puts the value of every configured header found in {@code headers} into {@code properties}.
+     */
+    public void extract(String headers, Map<String, String> properties) {
+        if (names.length == 0 || headers == null || headers.isEmpty()) {
+            return;
+        }
+
+        boolean[] found = new boolean[names.length];
+        int remaining = names.length;
+        int length = headers.length();
+        int lineStart = 0;
+        while (lineStart < length && remaining > 0) {
+            int lineEnd = lineStart;
+            int colon = -1;
+            while (lineEnd < length) {
+                char c = headers.charAt(lineEnd);
+                if (c == '\n' || c == '\r') {
+                    break;
+                }
+                if (c == ':' && colon < 0) {
+                    colon = lineEnd;
+                }
+                lineEnd++;
+            }
+
+            int nameLength = colon - lineStart;
+            if (colon >= 0 && nameLength < namesByLength.length) {
+                for (int index : namesByLength[nameLength]) {
+                    if (!found[index] && headers.regionMatches(true, lineStart, names[index], 0, nameLength)) {
+                        int valueStart = colon + 1;
+                        int valueEnd = lineEnd;
+                        while (valueStart < valueEnd && headers.charAt(valueStart) <= ' ') {
+                            valueStart++;
+                        }
+                        while (valueEnd > valueStart && headers.charAt(valueEnd - 1) <= ' ') {
+                            valueEnd--;
+                        }
+                        properties.put(propertyKeys[index], headers.substring(valueStart, valueEnd));
+                        found[index] = true;
+                        remaining--;
+                        break;
+                    }
+                }
+            }
+
+            lineStart = lineEnd + 1;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buckets samples per label, response code and success flag over a time window, so that a single
+ * {@link MetricTelemetry} per bucket is sent instead of one request telemetry per sample.
+ *
+ * The aggregator is not thread-safe, it is meant to be fed and flushed from the listener thread.
+ */
+final class SampleAggregator {
+
+    /**
+     * Percentiles reported as properties of each aggregated metric.
+     */
+    private static final double[] PERCENTILES = {50, 90, 95, 99};
+
+    private final long windowMillis;
+    private Map<BucketKey, LatencyHistogram> buckets = new HashMap<BucketKey, LatencyHistogram>();
+    private long windowStart;
+
+    SampleAggregator(long windowMillis) {
+        this.windowMillis = windowMillis;
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds the sample to the bucket matching its label, response code and success flag.
+     */
+    public void add(SampleResult sr) {
+        BucketKey key = new BucketKey(sr.getSampleLabel(), sr.getResponseCode(), sr.isSuccessful());
+        LatencyHistogram histogram = buckets.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            buckets.put(key, histogram);
+        }
+        histogram.record(sr.getTime(), Math.max(1, sr.getSampleCount()));
+    }
+
+    /**
+     * Whether the current window is over and the aggregator should be flushed.
+     */
+    public boolean isWindowElapsed(long now) {
+        return now - windowStart >= windowMillis;
+    }
+
+    /**
+     * Returns the buckets of the current window and starts a new one.
+     */
+    public Map<BucketKey, LatencyHistogram> drain(long now) {
+        Map<BucketKey, LatencyHistogram> drained = buckets;
+        buckets = new HashMap<BucketKey, LatencyHistogram>();
+        windowStart = now;
+        return drained;
+    }
+
+    /**
+     * Drains the current window and converts every bucket into a metric named {@code name}.
+     */
+    public List<MetricTelemetry> flush(String name, Map<String, String> customProperties, long now) {
+        Map<BucketKey, LatencyHistogram> drained = drain(now);
+        List<MetricTelemetry> metrics = new ArrayList<MetricTelemetry>(drained.size());
+        Date timestamp = new Date(now);
+        for (Map.Entry<BucketKey, LatencyHistogram> entry : drained.entrySet()) {
+            metrics.add(toMetric(name, entry.getKey(), entry.getValue(), customProperties, timestamp));
+        }
+        return metrics;
+    }
+
+    static MetricTelemetry toMetric(String name, BucketKey key, LatencyHistogram histogram,
+            Map<String, String> customProperties, Date timestamp) {
+        MetricTelemetry metric = new MetricTelemetry(name, histogram.getSum());
+        metric.setCount((int) Math.min(Integer.MAX_VALUE, histogram.getCount()));
+        metric.setMin((double) histogram.getMin());
+        metric.setMax((double) histogram.getMax());
+        metric.setTimestamp(timestamp);
+
+        Map<String, String> properties = metric.getProperties();
+        properties.putAll(customProperties);
+        properties.put("SampleLabel", key.getLabel());
+        properties.put("ResponseCode", key.getResponseCode());
+        properties.put("Success", Boolean.toString(key.isSuccess()));
+        for (double percentile : PERCENTILES) {
+            properties.put("P" + (int) percentile, Long.toString(histogram.getValueAtPercentile(percentile)));
+        }
+        return metric;
+    }
+
+    /**
+     * Aggregation key of a sample.
+     */
+    static final class BucketKey {
+        private final String label;
+        private final String responseCode;
+        private final boolean success;
+        private final int hash;
+
+        BucketKey(String label, String responseCode, boolean success) {
+            this.label = label == null ? "" : label;
+            this.responseCode = responseCode == null ? "" : responseCode;
+            this.success = success;
+            this.hash = (this.label.hashCode() * 31 + this.responseCode.hashCode()) * 31 + (success ? 1 : 0);
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getResponseCode() {
+            return responseCode;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BucketKey)) {
+                return false;
+            }
+            BucketKey other = (BucketKey) o;
+            return success == other.success && label.equals(other.label) && responseCode.equals(other.responseCode);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
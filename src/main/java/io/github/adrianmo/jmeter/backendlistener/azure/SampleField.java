@@ -0,0 +1,96 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Sample result fields sent as properties of the request telemetry, the name of each constant is the property name.
+ *
+ * Every field renders a property value. Numeric fields also have a {@link #numericValue() numeric value}, used to
+ * send them as measurements, text fields have none.
+ */
+enum SampleField {
+    Bytes(SampleResult::getBytesAsLong),
+    SentBytes(SampleResult::getSentBytes),
+    ConnectTime(SampleResult::getConnectTime),
+    ErrorCount(SampleResult::getErrorCount),
+    IdleTime(sr -> Double.toString(sr.getIdleTime()), SampleResult::getIdleTime),
+    Latency(sr -> Double.toString(sr.getLatency()), SampleResult::getLatency),
+    BodySize(SampleResult::getBodySizeAsLong),
+    TestStartTime(sr -> TestStartTimeText.render(), sr -> JMeterContextService.getTestStartTime()),
+    SampleStartTime(SampleResult::getStartTime),
+    SampleEndTime(SampleResult::getEndTime),
+    SampleLabel(SampleResult::getSampleLabel, null),
+    ThreadName(SampleResult::getThreadName, null),
+    URL(SampleResult::getUrlAsString, null),
+    ResponseCode(SampleResult::getResponseCode, null),
+    GrpThreads(SampleResult::getGroupThreads),
+    AllThreads(SampleResult::getAllThreads),
+    SampleCount(SampleResult::getSampleCount);
+
+    private final Function<SampleResult, String> renderer;
+    private final ToDoubleFunction<SampleResult> numericValue;
+
+    SampleField(Function<SampleResult, String> renderer, ToDoubleFunction<SampleResult> numericValue) {
+        this.renderer = renderer;
+        this.numericValue = numericValue;
+    }
+
+    /**
+     * Numeric field whose value is an integer, rendered without decimals.
+     */
+    SampleField(ToDoubleFunction<SampleResult> numericValue) {
+        this(sr -> Long.toString((long) numericValue.applyAsDouble(sr)), numericValue);
+    }
+
+    /**
+     * Whether the field has a {@link #numericValue()}.
+     */
+    public boolean isNumeric() {
+        return numericValue != null;
+    }
+
+    /**
+     * Renders the field as a property value, or returns null if the sample has no value for it.
+     */
+    String render(SampleResult sr) {
+        return renderer.apply(sr);
+    }
+
+    /**
+     * Returns the numeric value of the field, or null if it is a text field.
+     */
+    ToDoubleFunction<SampleResult> numericValue() {
+        return numericValue;
+    }
+
+    /**
+     * Test start time rendered once per test instead of once per sample.
+     */
+    private static final class TestStartTimeText {
+        private static volatile RenderedTime rendered;
+
+        static String render() {
+            long testStartTime = JMeterContextService.getTestStartTime();
+            RenderedTime current = rendered;
+            if (current == null || current.time != testStartTime) {
+                current = new RenderedTime(testStartTime);
+                rendered = current;
+            }
+            return current.text;
+        }
+    }
+
+    private static final class RenderedTime {
+        private final long time;
+        private final String text;
+
+        RenderedTime(long time) {
+            this.time = time;
+            this.text = Long.toString(time);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which samplers are recorded, from an include and an exclude list of sampler labels.
+ *
+ * Each list is either a set of labels separated by a semi-colon, a single regular expression, or a set of glob
+ * patterns separated by a semi-colon where {@code *} matches any sequence of characters and {@code ?} any single
+ * character. An empty include list includes every sampler, and the exclude list takes precedence. Patterns are
+ * compiled once and the decision is memoized per label, so that filtering is a map lookup once the labels of the
+ * test plan have been seen.
+ */
+final class SamplerFilter {
+
+    /**
+     * Filter that accepts every sampler.
+     */
+    static final SamplerFilter ACCEPT_ALL = new SamplerFilter(null, null);
+
+    /**
+     * Maximum number of labels whose decision is memoized, labels beyond it are evaluated every time.
+     */
+    static final int MAX_CACHED_LABELS = 10000;
+
+    private final Matcher include;
+    private final Matcher exclude;
+    private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+    private SamplerFilter(Matcher include, Matcher exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    /**
+     * Creates the filter, empty lists are ignored. If both {@code useRegex} and {@code useGlob} are set, the lists are
+     * evaluated as regular expressions.
+     */
+    static SamplerFilter create(String includeList, String excludeList, boolean useRegex, boolean useGlob,
+            String separator) {
+        Matcher include = compile(includeList, useRegex, useGlob, separator);
+        Matcher exclude = compile(excludeList, useRegex, useGlob, separator);
+        if (include == null && exclude == null) {
+            return ACCEPT_ALL;
+        }
+        return new SamplerFilter(include, exclude);
+    }
+
+    private static Matcher compile(String list, boolean useRegex, boolean useGlob, String separator) {
+        if (list == null || list.isEmpty()) {
+            return null;
+        }
+        if (useRegex) {
+            Pattern pattern = Pattern.compile(list);
+            return label -> pattern.matcher(label).matches();
+        }
+        if (useGlob) {
+            StringBuilder regex = new StringBuilder();
+            for (String glob : list.split(Pattern.quote(separator))) {
+                if (!glob.isEmpty()) {
+                    regex.append(regex.length() == 0 ? "" : "|").append(globToRegex(glob));
+                }
+            }
+            Pattern pattern = Pattern.compile(regex.toString());
+            return label -> pattern.matcher(label).matches();
+        }
+
+        Set<String> labels = new HashSet<String>();
+        for (String label : list.split(Pattern.quote(separator))) {
+            labels.add(label);
+        }
+        return labels::contains;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Whether samples with the given label are recorded.
+     */
+    public boolean accept(String label) {
+        if (this == ACCEPT_ALL) {
+            return true;
+        }
+        String key = label == null ? "" : label;
+        Boolean decision = decisions.get(key);
+        if (decision == null) {
+            decision = (include == null || include.matches(key)) && (exclude == null || !exclude.matches(key));
+            if (decisions.size() < MAX_CACHED_LABELS) {
+                decisions.putIfAbsent(key, decision);
+            }
+        }
+        return decision;
+    }
+
+    /**
+     * Matcher of sampler labels.
+     */
+    private interface Matcher {
+        boolean matches(String label);
+    }
+}
@@ -0,0 +1,35 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public enum SinkType {
+    ApplicationInsights("ApplicationInsights"),
+    File("File"),
+    Ingestion("Ingestion");
+
+    private final String value;
+    private static final Logger log = LoggerFactory.getLogger(AzureBackendClient.class);
+
+    SinkType(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static SinkType fromString(String value) {
+        for (SinkType type : SinkType.values()) {
+            if (type.value.equalsIgnoreCase(value)) {
+                return type;
+            }
+        }
+
+        if (value != null && !value.isEmpty()) {
+            log.warn("Sink '{}' is not valid, defaulting to 'ApplicationInsights'", value);
+        }
+
+        return ApplicationInsights;
+    }
+}
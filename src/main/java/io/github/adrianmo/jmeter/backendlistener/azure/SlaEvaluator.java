@@ -0,0 +1,338 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates service level thresholds per sampler label over a sliding window, such as the 95th percentile of the
+ * durations staying below 800 ms or the error rate below 5%.
+ *
+ * The window of a label is a ring of {@link #SLOTS} slots counting the samples, the errors, the sum of the durations
+ * and, for percentile thresholds, the durations in the bucket layout of {@link LatencyHistogram}. A slot is cleared
+ * when the window slides past it, so the memory used does not depend on the number of samples. The number of labels
+ * is bounded as in {@link PercentileTracker}. A threshold is only judged once the window of its label is full, that is
+ * once the slot of its first sample is the oldest one, and except for the throughput on a minimum number of samples, so
+ * that the ramp-up does not breach it.
+ */
+final class SlaEvaluator {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(SlaEvaluator.class);
+
+    /**
+     * Number of slots the window is divided in, the window slides by one slot at a time.
+     */
+    static final int SLOTS = 10;
+
+    /**
+     * Maximum number of labels evaluated separately.
+     */
+    static final int MAX_LABELS = PercentileTracker.MAX_LABELS;
+
+    /**
+     * Label under which samples of labels beyond {@link #MAX_LABELS} are evaluated.
+     */
+    static final String OTHER_LABEL = PercentileTracker.OTHER_LABEL;
+
+    private static final Pattern THRESHOLD = Pattern.compile(
+            "(?:(.*):)?\\s*(errorRate|throughput|avg|p(\\d+(?:\\.\\d+)?))\\s*([<>])\\s*(\\d+(?:\\.\\d+)?)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final List<Threshold> thresholds;
+    private final long slotMillis;
+    private final long windowMillis;
+    private final int minSamples;
+    private final ConcurrentMap<String, LabelWindow> labels = new ConcurrentHashMap<String, LabelWindow>();
+    private long breaches;
+
+    /**
+     * @param windowMillis length of the window, rounded to a multiple of {@link #SLOTS} milliseconds
+     * @param minSamples   minimum number of samples in the window to judge the error rate, average and percentiles
+     */
+    SlaEvaluator(List<Threshold> thresholds, long windowMillis, int minSamples) {
+        this.thresholds = new ArrayList<Threshold>(thresholds);
+        this.slotMillis = Math.max(1, windowMillis / SLOTS);
+        this.windowMillis = slotMillis * SLOTS;
+        this.minSamples = Math.max(1, minSamples);
+    }
+
+    /**
+     * Parses thresholds of the form {@code [label:]statistic<limit} or {@code [label:]statistic>limit}, where the
+     * statistic is {@code errorRate} (percent), {@code throughput} (samples per second), {@code avg} or a percentile
+     * such as {@code p95} (milliseconds). Thresholds without a label apply to every label separately.
+     *
+     * @throws IllegalArgumentException if a threshold is not valid
+     */
+    static List<Threshold> parse(String thresholds, String separator) {
+        List<Threshold> parsed = new ArrayList<Threshold>();
+        if (thresholds == null || thresholds.trim().isEmpty()) {
+            return parsed;
+        }
+        for (String text : thresholds.trim().split("\\s*" + Pattern.quote(separator) + "\\s*")) {
+            if (text.isEmpty()) {
+                continue;
+            }
+            Matcher matcher = THRESHOLD.matcher(text);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("SLA threshold '" + text
+                        + "' is not of the form [label:]statistic<limit or [label:]statistic>limit");
+            }
+            String label = matcher.group(1) == null ? null : matcher.group(1).trim();
+            String statistic = matcher.group(2);
+            double percentile = Double.NaN;
+            if (matcher.group(3) != null) {
+                percentile = Double.parseDouble(matcher.group(3));
+                if (percentile <= 0 || percentile > 100) {
+                    throw new IllegalArgumentException("SLA threshold '" + text + "' has a percentile out of range");
+                }
+                statistic = "p" + matcher.group(3);
+            } else if (statistic.equalsIgnoreCase("errorRate")) {
+                statistic = "errorRate";
+            } else {
+                statistic = statistic.toLowerCase();
+            }
+            parsed.add(new Threshold(text, label == null || label.isEmpty() ? null : label, statistic, percentile,
+                    matcher.group(4).equals("<"), Double.parseDouble(matcher.group(5))));
+        }
+        return parsed;
+    }
+
+    /**
+     * Time between two slides of the window, the thresholds need not be evaluated more often.
+     */
+    public long getSlotMillis() {
+        return slotMillis;
+    }
+
+    /**
+     * Records a sample at time {@code now}.
+     */
+    public void record(String label, long duration, boolean success, long now) {
+        String key = label == null ? "" : label;
+        LabelWindow window = labels.get(key);
+        if (window == null) {
+            if (labels.size() >= MAX_LABELS) {
+                key = OTHER_LABEL;
+            }
+            window = labels.computeIfAbsent(key, k -> new LabelWindow(applicableTo(k), now / slotMillis));
+        }
+        if (window.thresholds.length > 0) {
+            window.record(duration, success, now / slotMillis);
+        }
+    }
+
+    private Threshold[] applicableTo(String label) {
+        List<Threshold> applicable = new ArrayList<Threshold>();
+        for (Threshold threshold : thresholds) {
+            if (threshold.label == null || threshold.label.equals(label)) {
+                applicable.add(threshold);
+            }
+        }
+        return applicable.toArray(new Threshold[0]);
+    }
+
+    /**
+     * Judges the thresholds of every label over the window ending at {@code now}, and builds an event for each
+     * threshold that was met until now and is breached. A breached threshold is reported again only after it has been
+     * met in between. Must not be called concurrently.
+     *
+     * @param name name of the events
+     */
+    public List<EventTelemetry> evaluate(String name, Map<String, String> customProperties, long now) {
+        List<EventTelemetry> events = new ArrayList<EventTelemetry>();
+        long slot = now / slotMillis;
+        // The current slot is not over yet
+        double windowSeconds = ((SLOTS - 1) * slotMillis + now - slot * slotMillis) / 1000.0;
+        for (Map.Entry<String, LabelWindow> entry : labels.entrySet()) {
+            LabelWindow window = entry.getValue();
+            if (window.thresholds.length == 0 || slot - window.firstSlot < SLOTS - 1) {
+                continue;
+            }
+            window.evaluate(entry.getKey(), slot, windowSeconds, name, customProperties, now, events);
+        }
+        breaches += events.size();
+        return events;
+    }
+
+    /**
+     * Number of breaches reported so far.
+     */
+    public long getBreaches() {
+        return breaches;
+    }
+
+    /**
+     * Threshold on a statistic of the samples of a label.
+     */
+    static final class Threshold {
+        private final String text;
+        private final String label;
+        private final String statistic;
+        private final double percentile;
+        private final boolean upperBound;
+        private final double limit;
+
+        Threshold(String text, String label, String statistic, double percentile, boolean upperBound, double limit) {
+            this.text = text;
+            this.label = label;
+            this.statistic = statistic;
+            this.percentile = percentile;
+            this.upperBound = upperBound;
+            this.limit = limit;
+        }
+
+        /**
+         * Label the threshold applies to, or null if it applies to every label.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        public String getStatistic() {
+            return statistic;
+        }
+
+        public double getLimit() {
+            return limit;
+        }
+
+        boolean isPercentile() {
+            return !Double.isNaN(percentile);
+        }
+
+        boolean isMet(double value) {
+            return upperBound ? value < limit : value > limit;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Sliding window of a label, guarded by its own lock.
+     */
+    private final class LabelWindow {
+        private final Threshold[] thresholds;
+        private final boolean[] breached;
+        private final long firstSlot;
+        private final long[] slots = new long[SLOTS];
+        private final long[] counts = new long[SLOTS];
+        private final long[] errors = new long[SLOTS];
+        private final long[] durationSums = new long[SLOTS];
+        private final int[][] durations;
+
+        LabelWindow(Threshold[] thresholds, long firstSlot) {
+            this.thresholds = thresholds;
+            this.breached = new boolean[thresholds.length];
+            this.firstSlot = firstSlot;
+            Arrays.fill(slots, -1);
+            boolean percentiles = false;
+            for (Threshold threshold : thresholds) {
+                percentiles |= threshold.isPercentile();
+            }
+            this.durations = percentiles ? new int[SLOTS][LatencyHistogram.BUCKET_COUNT] : null;
+        }
+
+        synchronized void record(long duration, boolean success, long slot) {
+            int index = (int) (slot % SLOTS);
+            if (slots[index] != slot) {
+                slots[index] = slot;
+                counts[index] = 0;
+                errors[index] = 0;
+                durationSums[index] = 0;
+                if (durations != null) {
+                    Arrays.fill(durations[index], 0);
+                }
+            }
+            long clamped = Math.min(Math.max(duration, 0), LatencyHistogram.MAX_VALUE);
+            counts[index]++;
+            if (!success) {
+                errors[index]++;
+            }
+            durationSums[index] += clamped;
+            if (durations != null) {
+                durations[index][LatencyHistogram.bucketIndex(clamped)]++;
+            }
+        }
+
+        synchronized void evaluate(String label, long slot, double windowSeconds, String name,
+                Map<String, String> customProperties, long now, List<EventTelemetry> events) {
+            long count = 0;
+            long errorCount = 0;
+            long durationSum = 0;
+            long[] buckets = durations == null ? null : new long[LatencyHistogram.BUCKET_COUNT];
+            for (int i = 0; i < SLOTS; i++) {
+                if (slots[i] <= slot - SLOTS || slots[i] > slot) {
+                    continue;
+                }
+                count += counts[i];
+                errorCount += errors[i];
+                durationSum += durationSums[i];
+                if (buckets != null) {
+                    for (int bucket = 0; bucket < buckets.length; bucket++) {
+                        buckets[bucket] += durations[i][bucket];
+                    }
+                }
+            }
+
+            for (int i = 0; i < thresholds.length; i++) {
+                Threshold threshold = thresholds[i];
+                double value;
+                if (threshold.statistic.equals("throughput")) {
+                    value = count / windowSeconds;
+                } else if (count < minSamples) {
+                    continue;
+                } else if (threshold.statistic.equals("errorRate")) {
+                    value = 100.0 * errorCount / count;
+                } else if (threshold.statistic.equals("avg")) {
+                    value = (double) durationSum / count;
+                } else {
+                    value = LatencyHistogram.valueAtPercentile(buckets, threshold.percentile);
+                }
+
+                if (threshold.isMet(value)) {
+                    if (breached[i]) {
+                        breached[i] = false;
+                        log.info("SLA threshold '{}' is met again by '{}'", threshold, label);
+                    }
+                } else if (!breached[i]) {
+                    breached[i] = true;
+                    log.warn("SLA threshold '{}' breached by '{}': {} is {} over the last {} s", threshold, label,
+                            threshold.statistic, value, windowMillis / 1000);
+                    events.add(event(name, label, threshold, value, count, customProperties, now));
+                }
+            }
+        }
+    }
+
+    private static EventTelemetry event(String name, String label, Threshold threshold, double value, long count,
+            Map<String, String> customProperties, long now) {
+        EventTelemetry event = new EventTelemetry(name);
+        event.setTimestamp(new Date(now));
+        Map<String, String> properties = event.getProperties();
+        properties.putAll(customProperties);
+        properties.put("SampleLabel", label);
+        properties.put("Threshold", threshold.toString());
+        properties.put("Statistic", threshold.statistic);
+        Map<String, Double> measurements = event.getMetrics();
+        measurements.put("Value", value);
+        measurements.put("Limit", threshold.limit);
+        measurements.put("Samples", (double) count);
+        return event;
+    }
+}
@@ -0,0 +1,202 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request telemetry in the compact binary form stored in the {@link DiskSpool}.
+ */
+final class SpoolRecord {
+
+    /**
+     * Version of the binary layout, written first in every record. Version 1 has no sampling percentage.
+     */
+    private static final byte VERSION = 2;
+
+    /**
+     * Sampling percentage of telemetry that is not sampled.
+     */
+    static final double NOT_SAMPLED = 100.0;
+
+    private final String id;
+    private final String name;
+    private final String operationName;
+    private final long timestamp;
+    private final long durationMillis;
+    private final String responseCode;
+    private final boolean success;
+    private final String url;
+    private final Map<String, String> properties;
+    private final Map<String, Double> measurements;
+    private final double samplingPercentage;
+
+    SpoolRecord(String id, String name, String operationName, long timestamp, long durationMillis,
+            String responseCode, boolean success, String url, Map<String, String> properties,
+            Map<String, Double> measurements) {
+        this(id, name, operationName, timestamp, durationMillis, responseCode, success, url, properties, measurements,
+                NOT_SAMPLED);
+    }
+
+    SpoolRecord(String id, String name, String operationName, long timestamp, long durationMillis,
+            String responseCode, boolean success, String url, Map<String, String> properties,
+            Map<String, Double> measurements, double samplingPercentage) {
+        this.id = id;
+        this.name = name;
+        this.operationName = operationName;
+        this.timestamp = timestamp;
+        this.durationMillis = durationMillis;
+        this.responseCode = responseCode;
+        this.success = success;
+        this.url = url;
+        this.properties = properties;
+        this.measurements = measurements;
+        this.samplingPercentage = samplingPercentage;
+    }
+
+    static SpoolRecord of(RequestTelemetry req) {
+        return new SpoolRecord(req.getId(), req.getName(), req.getContext().getOperation().getName(),
+                req.getTimestamp().getTime(), req.getDuration().getTotalMilliseconds(), req.getResponseCode(),
+                req.isSuccess(), req.getUrlString(), req.getProperties(),
+                req.getMetrics(), req.getSamplingPercentage() == null ? NOT_SAMPLED : req.getSamplingPercentage());
+    }
+
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            writeString(out, id);
+            writeString(out, name);
+            writeString(out, operationName);
+            out.writeLong(timestamp);
+            out.writeLong(durationMillis);
+            writeString(out, responseCode);
+            out.writeBoolean(success);
+            writeString(out, url);
+            out.writeInt(properties.size());
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                writeString(out, property.getKey());
+                writeString(out, property.getValue());
+            }
+            out.writeInt(measurements.size());
+            for (Map.Entry<String, Double> measurement : measurements.entrySet()) {
+                writeString(out, measurement.getKey());
+                out.writeDouble(measurement.getValue());
+            }
+            out.writeDouble(samplingPercentage);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static SpoolRecord decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte version = in.readByte();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported spool record version " + version);
+        }
+        String id = readString(in);
+        String name = readString(in);
+        String operationName = readString(in);
+        long timestamp = in.readLong();
+        long durationMillis = in.readLong();
+        String responseCode = readString(in);
+        boolean success = in.readBoolean();
+        String url = readString(in);
+        int propertyCount = in.readInt();
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        for (int i = 0; i < propertyCount; i++) {
+            properties.put(readString(in), readString(in));
+        }
+        int measurementCount = in.readInt();
+        Map<String, Double> measurements = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < measurementCount; i++) {
+            measurements.put(readString(in), in.readDouble());
+        }
+        double samplingPercentage = version == 1 ? NOT_SAMPLED : in.readDouble();
+        return new SpoolRecord(id, name, operationName, timestamp, durationMillis, responseCode, success, url,
+                properties, measurements, samplingPercentage);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new EOFException("Spool record string of " + length + " bytes is truncated");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOperationName() {
+        return operationName;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public String getResponseCode() {
+        return responseCode;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    public Map<String, Double> getMeasurements() {
+        return measurements;
+    }
+
+    /**
+     * Sampling percentage the record was kept with, 100 unless it was sampled.
+     */
+    public double getSamplingPercentage() {
+        return samplingPercentage;
+    }
+}
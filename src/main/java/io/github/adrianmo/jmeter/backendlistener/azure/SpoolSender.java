@@ -0,0 +1,219 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Background thread that drains a {@link DiskSpool} in order and posts its records to the ingestion endpoint.
+ *
+ * Records are only removed from the spool once the endpoint accepted them. Throttling, server errors and network
+ * failures are retried with an exponential backoff, honoring the {@code Retry-After} header, so that nothing is lost
+ * while the endpoint is slow or unreachable. The records of a partially accepted batch that can be retried are
+ * spooled again, the others are counted as rejected. Records that cannot be decoded are removed from the spool with
+ * the batch they belong to and counted as rejected, so that a corrupted record does not block the spool.
+ */
+final class SpoolSender implements Runnable {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(SpoolSender.class);
+
+    /**
+     * Maximum number of records per request.
+     */
+    static final int BATCH_SIZE = 500;
+
+    private static final long IDLE_WAIT_MS = 200;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    private final DiskSpool spool;
+    private final IngestionClient client;
+    private final EnvelopeEncoder encoder;
+    private final Thread thread;
+    private final Object signal = new Object();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    private volatile boolean running = true;
+    private long backoffMillis = INITIAL_BACKOFF_MS;
+
+    SpoolSender(DiskSpool spool, IngestionClient client, EnvelopeEncoder encoder) {
+        this.spool = spool;
+        this.client = client;
+        this.encoder = encoder;
+        this.thread = new Thread(this, "azure-backend-spool-sender");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long wait;
+            try {
+                wait = sendBatch();
+            } catch (Exception e) {
+                if (!running) {
+                    // The spool may have been closed under a batch that outlived the close timeout
+                    log.debug("Spooled telemetry sender stopped in the middle of a batch", e);
+                    return;
+                }
+                log.error("Unexpected error while sending spooled telemetry", e);
+                wait = nextBackoff(-1);
+            }
+            if (wait > 0) {
+                synchronized (signal) {
+                    if (running) {
+                        try {
+                            signal.wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the next batch of the spool.
+     *
+     * @return the time to wait before the next batch
+     */
+    long sendBatch() throws IOException {
+        List<byte[]> records = spool.peek(BATCH_SIZE);
+        if (records.isEmpty()) {
+            return IDLE_WAIT_MS;
+        }
+
+        // Records that cannot be decoded are only counted once the batch is committed
+        List<byte[]> batch = new ArrayList<byte[]>(records.size());
+        EnvelopeEncoder.Output lines = new EnvelopeEncoder.Output(records.size() * 512);
+        for (byte[] record : records) {
+            try {
+                encoder.encodeRequest(lines, SpoolRecord.decode(record));
+                batch.add(record);
+            } catch (IOException e) {
+                log.debug("Cannot decode a spooled record", e);
+            }
+        }
+        int undecodable = records.size() - batch.size();
+        if (batch.isEmpty()) {
+            commit(undecodable);
+            return 0;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(lines.size() / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(body)) {
+            out.write(lines.array(), 0, lines.size());
+        }
+
+        IngestionClient.Response response;
+        try {
+            response = client.post(body.toByteArray(), body.size());
+        } catch (IOException e) {
+            log.debug("Cannot reach the ingestion endpoint, will retry", e);
+            retries.increment();
+            return nextBackoff(-1);
+        }
+
+        if (response.isAccepted()) {
+            List<byte[]> retry = new ArrayList<byte[]>();
+            int rejectedItems = 0;
+            for (IngestionClient.ItemError error : response.getErrors()) {
+                if (error.getIndex() >= batch.size()) {
+                    continue;
+                }
+                if (error.isRetryable()) {
+                    retry.add(batch.get(error.getIndex()));
+                } else {
+                    rejectedItems++;
+                }
+            }
+            if (!retry.isEmpty() || rejectedItems > 0) {
+                log.debug("Ingestion endpoint accepted a batch of {} records partially, {} to retry, {} rejected",
+                        batch.size(), retry.size(), rejectedItems);
+            }
+            // Spooled again before the batch is removed, so that they are sent twice rather than lost on a crash
+            int requeued = spool.append(retry);
+            commit(undecodable);
+            sent.add(batch.size() - retry.size() - rejectedItems);
+            rejected.add(rejectedItems + retry.size() - requeued);
+            backoffMillis = INITIAL_BACKOFF_MS;
+            return 0;
+        }
+        if (response.isRetryable()) {
+            log.debug("Ingestion endpoint answered {}, will retry", response.getStatus());
+            retries.increment();
+            return nextBackoff(response.getRetryAfterMillis());
+        }
+
+        log.warn("Ingestion endpoint rejected a batch of {} records with status {}", batch.size(),
+                response.getStatus());
+        commit(undecodable);
+        rejected.add(batch.size());
+        return 0;
+    }
+
+    /**
+     * Removes the last batch from the spool, counting its records that could not be decoded as rejected.
+     */
+    private void commit(int undecodable) {
+        spool.commit();
+        if (undecodable > 0) {
+            log.warn("Dropped {} spooled records that cannot be decoded", undecodable);
+            rejected.add(undecodable);
+        }
+    }
+
+    private long nextBackoff(long retryAfterMillis) {
+        long wait = retryAfterMillis > 0 ? retryAfterMillis : backoffMillis;
+        backoffMillis = Math.min(MAX_BACKOFF_MS, backoffMillis * 2);
+        return wait;
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for the spool to be drained, then stops the sender. Records still in the spool
+     * are sent when a listener uses the same spool directory again.
+     *
+     * @return whether the spool was drained
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (spool.getPendingRecords() > 0 && System.currentTimeMillis() < deadline && thread.isAlive()) {
+            Thread.sleep(IDLE_WAIT_MS / 4);
+        }
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        return spool.getPendingRecords() == 0;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+}
@@ -0,0 +1,122 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes request telemetry to a {@link DiskSpool} drained by a {@link SpoolSender}, other telemetry is passed on to
+ * another sink.
+ */
+final class SpoolSink implements TelemetrySink {
+
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(SpoolSink.class);
+
+    private static final long WARNING_INTERVAL_MS = 60000;
+
+    private final DiskSpool spool;
+    private final SpoolSender sender;
+    private final TelemetrySink metricSink;
+    private final RateLimitedWarning unspooledRequests = new RateLimitedWarning(log,
+            "Cannot write request telemetry to the spool ({} requests so far)", WARNING_INTERVAL_MS);
+
+    SpoolSink(DiskSpool spool, SpoolSender sender, TelemetrySink metricSink) {
+        this.spool = spool;
+        this.sender = sender;
+        this.metricSink = metricSink;
+    }
+
+    @Override
+    public void trackRequest(RequestTelemetry request) {
+        try {
+            if (!spool.append(SpoolRecord.of(request).encode())) {
+                unspooledRequests.increment();
+            }
+        } catch (IOException e) {
+            log.debug("Cannot write request telemetry to the spool", e);
+            unspooledRequests.increment();
+        }
+    }
+
+    @Override
+    public void trackRequests(List<RequestTelemetry> requests) {
+        List<byte[]> records = new ArrayList<byte[]>(requests.size());
+        for (RequestTelemetry request : requests) {
+            records.add(SpoolRecord.of(request).encode());
+        }
+        try {
+            unspooledRequests.add(records.size() - spool.append(records));
+        } catch (IOException e) {
+            log.debug("Cannot write request telemetry to the spool", e);
+            unspooledRequests.add(records.size());
+        }
+    }
+
+    @Override
+    public void trackMetric(MetricTelemetry metric) {
+        metricSink.trackMetric(metric);
+    }
+
+    @Override
+    public void trackEvent(EventTelemetry event) {
+        metricSink.trackEvent(event);
+    }
+
+    @Override
+    public void flush() {
+        metricSink.flush();
+    }
+
+    @Override
+    public void close(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (!sender.close(timeoutMillis)) {
+            log.warn("{} spooled requests are not sent yet, they will be sent the next time the spool is used",
+                    spool.getPendingRecords());
+        }
+        log.info("Spool: {} requests sent, {} rejected by the endpoint, {} evicted, {} retries",
+                sender.getSent(), sender.getRejected(), spool.getEvictedRecords(), sender.getRetries());
+        // A sender that outlived the timeout finds the spool closed and stops without touching it
+        spool.close();
+        metricSink.close(Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    @Override
+    public String getName() {
+        return "Spool";
+    }
+
+    /**
+     * Number of requests sent from the spool, plus the telemetry sent by the other sink.
+     */
+    @Override
+    public long getSent() {
+        return sender.getSent() + metricSink.getSent();
+    }
+
+    /**
+     * Number of requests rejected by the endpoint, evicted from the full spool or not written to it, plus the
+     * telemetry given up by the other sink. Requests still in the spool are not failed, they are sent next time.
+     */
+    @Override
+    public long getFailed() {
+        return sender.getRejected() + spool.getEvictedRecords() + unspooledRequests.getCount()
+                + metricSink.getFailed();
+    }
+
+    @Override
+    public String describe() {
+        return getName() + ": " + sender.getSent() + " requests sent, "
+                + (sender.getRejected() + spool.getEvictedRecords() + unspooledRequests.getCount()) + " failed, "
+                + spool.getPendingRecords() + " left in the spool; " + metricSink.describe();
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes telemetry on to several sinks, in order.
+ */
+final class TeeSink implements TelemetrySink {
+
+    private final List<TelemetrySink> sinks;
+
+    TeeSink(List<TelemetrySink> sinks) {
+        this.sinks = new ArrayList<TelemetrySink>(sinks);
+    }
+
+    @Override
+    public void trackRequest(RequestTelemetry request) {
+        for (TelemetrySink sink : sinks) {
+            sink.trackRequest(request);
+        }
+    }
+
+    @Override
+    public void trackRequests(List<RequestTelemetry> requests) {
+        for (TelemetrySink sink : sinks) {
+            sink.trackRequests(requests);
+        }
+    }
+
+    @Override
+    public void trackMetric(MetricTelemetry metric) {
+        for (TelemetrySink sink : sinks) {
+            sink.trackMetric(metric);
+        }
+    }
+
+    @Override
+    public void trackEvent(EventTelemetry event) {
+        for (TelemetrySink sink : sinks) {
+            sink.trackEvent(event);
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (TelemetrySink sink : sinks) {
+            sink.flush();
+        }
+    }
+
+    /**
+     * Closes every sink within a single deadline, even if closing one of them fails, and rethrows the first failure.
+     */
+    @Override
+    public void close(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        IOException failure = null;
+        for (TelemetrySink sink : sinks) {
+            try {
+                sink.close(Math.max(0, deadline - System.currentTimeMillis()));
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Tee";
+    }
+
+    @Override
+    public long getSent() {
+        long sent = 0;
+        for (TelemetrySink sink : sinks) {
+            sent += sink.getSent();
+        }
+        return sent;
+    }
+
+    @Override
+    public long getFailed() {
+        long failed = 0;
+        for (TelemetrySink sink : sinks) {
+            failed += sink.getFailed();
+        }
+        return failed;
+    }
+
+    /**
+     * Describes every sink on its own.
+     */
+    @Override
+    public String describe() {
+        StringBuilder description = new StringBuilder();
+        for (TelemetrySink sink : sinks) {
+            if (description.length() > 0) {
+                description.append("; ");
+            }
+            description.append(sink.describe());
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the telemetry built by the listener. Implementations must be thread-safe, telemetry is tracked from
+ * the listener thread, the async workers and the background reporters.
+ */
+interface TelemetrySink {
+
+    void trackRequest(RequestTelemetry request);
+
+    /**
+     * Tracks a batch of requests at once. The sink must not keep a reference to the list, which is reused.
+     */
+    default void trackRequests(List<RequestTelemetry> requests) {
+        for (RequestTelemetry request : requests) {
+            trackRequest(request);
+        }
+    }
+
+    void trackMetric(MetricTelemetry metric);
+
+    void trackEvent(EventTelemetry event);
+
+    /**
+     * Sends or writes the telemetry buffered so far.
+     */
+    void flush();
+
+    /**
+     * Flushes the sink and releases its resources, waiting at most {@code timeoutMillis} for pending telemetry.
+     * Telemetry still pending after the deadline is given up and counted as failed.
+     */
+    void close(long timeoutMillis) throws IOException, InterruptedException;
+
+    /**
+     * Name of the sink in the reports of the listener.
+     */
+    String getName();
+
+    /**
+     * Number of telemetry items delivered so far.
+     */
+    long getSent();
+
+    /**
+     * Number of telemetry items given up so far: not accepted by the endpoint, failed after the last attempt or
+     * abandoned when the sink was closed.
+     */
+    long getFailed();
+
+    /**
+     * Describes what became of the telemetry of the sink, such as {@code Ingestion: 10 sent, 1 failed}.
+     */
+    default String describe() {
+        return getName() + ": " + getSent() + " sent, " + getFailed() + " failed";
+    }
+}
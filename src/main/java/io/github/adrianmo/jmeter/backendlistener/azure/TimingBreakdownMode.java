@@ -0,0 +1,49 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public enum TimingBreakdownMode {
+    Properties("Properties"),
+    Metrics("Metrics"),
+    Both("Both");
+
+    private final String value;
+    private static final Logger log = LoggerFactory.getLogger(AzureBackendClient.class);
+
+    TimingBreakdownMode(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Whether the timing components are sent as properties of each request.
+     */
+    public boolean hasProperties() {
+        return this != Metrics;
+    }
+
+    /**
+     * Whether the timing components are aggregated per label into metrics.
+     */
+    public boolean hasMetrics() {
+        return this != Properties;
+    }
+
+    public static TimingBreakdownMode fromString(String value) {
+        for (TimingBreakdownMode mode : TimingBreakdownMode.values()) {
+            if (mode.value.equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+
+        if (value != null && !value.isEmpty()) {
+            log.warn("Timing breakdown mode '{}' is not valid, defaulting to 'Properties'", value);
+        }
+
+        return Properties;
+    }
+}
@@ -0,0 +1,131 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the components of the sample durations per label and reports them as metrics, so that the timing breakdown
+ * can be charted without parsing the {@code ConnectTime}, {@code Latency} and {@code IdleTime} properties of every
+ * request.
+ *
+ * The components are the time to connect, the time to first byte (the latency of JMeter), the time to download the
+ * response (the elapsed time minus the latency) and the idle time. As in {@link PercentileTracker}, each component of
+ * each label has a single cumulative {@link LatencyHistogram} updated lock-free, read one interval at a time by a
+ * {@link LatencyHistogram.IntervalReader}, and the number of labels is bounded.
+ */
+final class TimingBreakdownTracker {
+
+    /**
+     * Maximum number of labels tracked separately.
+     */
+    static final int MAX_LABELS = PercentileTracker.MAX_LABELS;
+
+    /**
+     * Label under which samples of labels beyond {@link #MAX_LABELS} are tracked.
+     */
+    static final String OTHER_LABEL = PercentileTracker.OTHER_LABEL;
+
+    /**
+     * Suffix of the metric names of each component, in the order of {@link LabelTimings#components}.
+     */
+    private static final String[] COMPONENTS = {".timing.connect", ".timing.firstByte", ".timing.download",
+            ".timing.idle"};
+
+    private static final int CONNECT = 0;
+    private static final int FIRST_BYTE = 1;
+    private static final int DOWNLOAD = 2;
+    private static final int IDLE = 3;
+
+    /**
+     * Percentile reported as a metric of its own along with the aggregate of each component.
+     */
+    private static final double PERCENTILE = 95;
+    private static final String PERCENTILE_SUFFIX = ".p95";
+
+    private final ConcurrentMap<String, LabelTimings> labels = new ConcurrentHashMap<String, LabelTimings>();
+
+    /**
+     * Records the timing components of a sample. The connect, first byte and download times are only recorded for
+     * samples that report a latency, other samplers leave them to zero.
+     */
+    public void record(SampleResult sr) {
+        String key = sr.getSampleLabel() == null ? "" : sr.getSampleLabel();
+        LabelTimings timings = labels.get(key);
+        if (timings == null) {
+            if (labels.size() >= MAX_LABELS) {
+                key = OTHER_LABEL;
+            }
+            timings = labels.computeIfAbsent(key, k -> new LabelTimings());
+        }
+        long latency = sr.getLatency();
+        if (latency > 0) {
+            timings.components[CONNECT].record(sr.getConnectTime());
+            timings.components[FIRST_BYTE].record(latency);
+            timings.components[DOWNLOAD].record(sr.getTime() - latency);
+        }
+        timings.components[IDLE].record(sr.getIdleTime());
+    }
+
+    /**
+     * Builds the metrics of every label and component that had samples during the last interval: an aggregate of the
+     * component, from which the average is derived, and its 95th percentile. Must not be called concurrently.
+     *
+     * @param name prefix of the metric names, followed by {@code .timing.connect}, {@code .timing.firstByte},
+     *             {@code .timing.download} or {@code .timing.idle}, and {@code .p95} for the percentiles
+     */
+    public List<MetricTelemetry> report(String name, Map<String, String> customProperties, Date timestamp) {
+        List<MetricTelemetry> metrics = new ArrayList<MetricTelemetry>();
+        for (Map.Entry<String, LabelTimings> entry : labels.entrySet()) {
+            LatencyHistogram.IntervalReader[] components = entry.getValue().intervals;
+            for (int c = 0; c < components.length; c++) {
+                LatencyHistogram.Interval interval = components[c].next();
+                if (interval.isEmpty()) {
+                    continue;
+                }
+
+                MetricTelemetry aggregate = metric(name + COMPONENTS[c], entry.getKey(), interval.getSum(),
+                        customProperties, timestamp);
+                aggregate.setCount(interval.getCountAsInt());
+                aggregate.setMin((double) interval.getMin());
+                aggregate.setMax((double) interval.getMax());
+                metrics.add(aggregate);
+                metrics.add(metric(name + COMPONENTS[c] + PERCENTILE_SUFFIX, entry.getKey(),
+                        interval.getValueAtPercentile(PERCENTILE), customProperties, timestamp));
+            }
+        }
+        return metrics;
+    }
+
+    private static MetricTelemetry metric(String name, String label, long value,
+            Map<String, String> customProperties, Date timestamp) {
+        MetricTelemetry metric = new MetricTelemetry(name, value);
+        metric.setTimestamp(timestamp);
+        Map<String, String> properties = metric.getProperties();
+        properties.putAll(customProperties);
+        properties.put("SampleLabel", label);
+        return metric;
+    }
+
+    /**
+     * Cumulative histograms of the timing components of a label, and the readers of their intervals.
+     */
+    private static final class LabelTimings {
+        private final LatencyHistogram[] components = new LatencyHistogram[COMPONENTS.length];
+        private final LatencyHistogram.IntervalReader[] intervals =
+                new LatencyHistogram.IntervalReader[COMPONENTS.length];
+
+        LabelTimings() {
+            for (int i = 0; i < components.length; i++) {
+                components[i] = new LatencyHistogram();
+                intervals[i] = components[i].intervalReader();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestAdaptiveSampler {
+
+    private static final long START = 1600000000000L;
+
+    /**
+     * Feeds {@code count} successful samples of a label spread over one second and returns the number of samples the
+     * kept items stand for.
+     */
+    private static long feed(AdaptiveSampler sampler, String label, int count, long second) {
+        long represented = 0;
+        for (int i = 0; i < count; i++) {
+            represented += sampler.sample(label, true, 10, START + second * 1000 + i * 1000L / count);
+        }
+        return represented;
+    }
+
+    @Test
+    public void testKeepEverythingBelowTarget() {
+        AdaptiveSampler sampler = new AdaptiveSampler(100, 0, 1000, START);
+        for (int second = 0; second < 5; second++) {
+            assertEquals(50, feed(sampler, "Home", 50, second));
+        }
+        assertEquals(250, sampler.getKept());
+    }
+
+    @Test
+    public void testDownsampleBusyLabels() {
+        AdaptiveSampler sampler = new AdaptiveSampler(100, 0, 1000, START);
+        long keptBefore = 0;
+        for (int second = 0; second < 10; second++) {
+            keptBefore = sampler.getKept();
+            long busy = feed(sampler, "Busy", 1000, second);
+            long quiet = feed(sampler, "Quiet", 10, second);
+            assertEquals(10, quiet);
+            if (second > 0) {
+                // Kept items stand for all the samples of the label
+                assertEquals(1000, busy, 1000 * 0.05);
+            }
+        }
+        long keptLastSecond = sampler.getKept() - keptBefore;
+        assertTrue("kept " + keptLastSecond, keptLastSecond <= 110);
+        assertEquals(10100, sampler.getSeen());
+    }
+
+    @Test
+    public void testKeepFailuresAndSlowSamples() {
+        AdaptiveSampler sampler = new AdaptiveSampler(1, 500, 1000, START);
+        feed(sampler, "Home", 1000, 0);
+        feed(sampler, "Home", 1000, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, sampler.sample("Home", false, 10, START + 2000 + i));
+            assertEquals(1, sampler.sample("Home", true, 500, START + 2000 + i));
+        }
+        assertEquals(0, feed(sampler, "Home", 10, 2));
+    }
+}
@@ -0,0 +1,208 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.visualizers.backend.BackendListenerContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestAggregationCollector {
+
+    private final List<MetricTelemetry> metrics = Collections.synchronizedList(new ArrayList<MetricTelemetry>());
+    private AggregationCollector collector;
+
+    @Before
+    public void setUp() throws IOException {
+        TelemetrySink sink = new TelemetrySink() {
+            @Override
+            public void trackRequest(RequestTelemetry request) {
+                fail("The collector only sends metrics");
+            }
+
+            @Override
+            public void trackMetric(MetricTelemetry metric) {
+                metrics.add(metric);
+            }
+
+            @Override
+            public void trackEvent(EventTelemetry event) {
+                fail("The collector only sends metrics");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close(long timeoutMillis) {
+            }
+
+            @Override
+            public String getName() {
+                return "Test";
+            }
+
+            @Override
+            public long getSent() {
+                return metrics.size();
+            }
+
+            @Override
+            public long getFailed() {
+                return 0;
+            }
+        };
+        collector = new AggregationCollector(InetAddress.getLoopbackAddress(), 0, sink, "test-1",
+                Collections.<String, String>emptyMap(), 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        collector.close();
+    }
+
+    private static SampleResult sample(String label, long elapsed, boolean success) {
+        SampleResult sr = new SampleResult();
+        sr.setSampleLabel(label);
+        sr.setStampAndTime(System.currentTimeMillis(), elapsed);
+        sr.setSuccessful(success);
+        sr.setResponseCode(success ? "200" : "500");
+        return sr;
+    }
+
+    private MetricTelemetry metric(String label, boolean success) {
+        for (MetricTelemetry metric : metrics) {
+            if (label.equals(metric.getProperties().get("SampleLabel"))
+                    && Boolean.toString(success).equals(metric.getProperties().get("Success"))) {
+                return metric;
+            }
+        }
+        return null;
+    }
+
+    @Test(timeout = 30000)
+    public void testMergeAggregatesOfSeveralListeners() throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("collectorAddress", "localhost:" + collector.getPort());
+        parameters.put("aggregationInterval", "3600");
+        BackendListenerContext context = new BackendListenerContext(parameters);
+
+        List<AzureBackendClient> listeners = new ArrayList<AzureBackendClient>();
+        for (int i = 0; i < 3; i++) {
+            AzureBackendClient listener = new AzureBackendClient();
+            listener.setupTest(context);
+            List<SampleResult> results = new ArrayList<SampleResult>();
+            for (int j = 1; j <= 100; j++) {
+                results.add(sample("Home", j * 10, true));
+            }
+            results.add(sample("Home", 5000, false));
+            listener.handleSampleResults(results, context);
+            listeners.add(listener);
+        }
+        for (AzureBackendClient listener : listeners) {
+            listener.teardownTest(context);
+        }
+
+        // Frames are merged by the reader threads, wait for the last frame of every listener
+        while (collector.getReceivedFrames() < 3) {
+            Thread.sleep(20);
+        }
+        collector.flush(System.currentTimeMillis());
+
+        MetricTelemetry success = metric("Home", true);
+        assertEquals(300, (int) success.getCount());
+        assertEquals(300 * 505, success.getValue(), 0);
+        assertEquals(10, success.getMin(), 0);
+        assertEquals(1000, success.getMax(), 0);
+        assertEquals(500, Long.parseLong(success.getProperties().get("P50")), 500 * 0.04);
+        assertNotNull(metric("Home", false));
+    }
+
+    @Test(timeout = 30000)
+    public void testKeepAggregatesWhileCollectorIsUnreachable() throws Exception {
+        int port = collector.getPort();
+        collector.close();
+
+        CollectorClient client = new CollectorClient(CollectorClient.parseAddress("localhost:" + port), "injector");
+        Map<SampleAggregator.BucketKey, LatencyHistogram> buckets =
+                new HashMap<SampleAggregator.BucketKey, LatencyHistogram>();
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        buckets.put(new SampleAggregator.BucketKey("Home", "200", true), histogram);
+
+        client.send(buckets);
+        assertFalse(client.close(5000));
+        assertEquals(1, client.getPendingBuckets());
+    }
+
+    private static Map<SampleAggregator.BucketKey, LatencyHistogram> buckets(String... labels) {
+        Map<SampleAggregator.BucketKey, LatencyHistogram> buckets =
+                new HashMap<SampleAggregator.BucketKey, LatencyHistogram>();
+        for (String label : labels) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(10);
+            buckets.put(new SampleAggregator.BucketKey(label, "200", true), histogram);
+        }
+        return buckets;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test(timeout = 30000)
+    public void testSendLongLabels() throws Exception {
+        String longLabel = repeat('a', 70000);
+        CollectorClient client = new CollectorClient(
+                CollectorClient.parseAddress("localhost:" + collector.getPort()), "injector");
+        client.send(buckets(longLabel, "Home"));
+        assertTrue(client.close(10000));
+
+        while (collector.getReceivedFrames() < 1) {
+            Thread.sleep(20);
+        }
+        collector.flush(System.currentTimeMillis());
+        assertNotNull(metric(longLabel, true));
+        assertNotNull(metric("Home", true));
+    }
+
+    @Test(timeout = 30000)
+    public void testSendDoesNotWaitForTheCollector() throws Exception {
+        // Accepts connections but never reads them, so that the writes end up blocked
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CollectorClient client = new CollectorClient(
+                    CollectorClient.parseAddress("localhost:" + server.getLocalPort()), "injector");
+            String[] labels = new String[100];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = i + repeat('a', 100000);
+            }
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 10; i++) {
+                client.send(buckets(labels));
+            }
+            assertTrue(System.currentTimeMillis() - start < 5000);
+
+            start = System.currentTimeMillis();
+            assertFalse(client.close(300));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestAsyncSampleDispatcher {
+
+    private static SampleResult sample(boolean successful) {
+        SampleResult sr = new SampleResult();
+        sr.setSampleLabel("test-1");
+        sr.setSuccessful(successful);
+        return sr;
+    }
+
+    @Test
+    public void testRingBuffer() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(0, 4, 1, BackpressurePolicy.DropNewest,
+                batch -> { });
+        for (int i = 0; i < 10; i++) {
+            dispatcher.submit(sample(true));
+        }
+
+        assertEquals(10, dispatcher.getSubmitted());
+        assertEquals(6, dispatcher.getOverflows());
+        assertEquals(6, dispatcher.getDropped());
+        assertEquals(4, dispatcher.getQueueDepth());
+
+        assertFalse(dispatcher.shutdown(10));
+        assertEquals(10, dispatcher.getDropped());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(0, 4, 1, BackpressurePolicy.DropOldest,
+                batch -> { });
+        for (int i = 0; i < 10; i++) {
+            dispatcher.submit(sample(true));
+        }
+
+        assertEquals(6, dispatcher.getOverflows());
+        assertEquals(6, dispatcher.getDropped());
+        assertEquals(4, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testSampleKeepsFailures() throws Exception {
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(0, 8, 1, BackpressurePolicy.Sample,
+                batch -> { });
+        for (int i = 0; i < 4; i++) {
+            dispatcher.submit(sample(true));
+        }
+        for (int i = 0; i < 4; i++) {
+            dispatcher.submit(sample(false));
+        }
+
+        assertEquals(0, dispatcher.getDropped());
+        assertEquals(8, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testBlockDeliversEverySample() throws Exception {
+        AtomicInteger handled = new AtomicInteger();
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(4, 16, 8, BackpressurePolicy.Block,
+                batch -> {
+                    assertTrue(batch.size() <= 8);
+                    handled.addAndGet(batch.size());
+                });
+        for (int i = 0; i < 10000; i++) {
+            dispatcher.submit(sample(true));
+        }
+
+        assertTrue(dispatcher.shutdown(10000));
+        assertEquals(10000, handled.get());
+        assertEquals(0, dispatcher.getDropped());
+    }
+
+    @Test
+    public void testShutdownGivesUpAfterDeadline() throws Exception {
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(1, 64, 1, BackpressurePolicy.Block,
+                batch -> {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        for (int i = 0; i < 40; i++) {
+            dispatcher.submit(sample(true));
+        }
+
+        long start = System.currentTimeMillis();
+        assertFalse(dispatcher.shutdown(200));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertTrue(dispatcher.getHandled() > 0);
+        assertTrue(dispatcher.getDropped() > 0);
+        assertEquals(40, dispatcher.getHandled() + dispatcher.getDropped());
+    }
+
+    @Test
+    public void testShutdownInterruptsBusyWorkersAtOnce() throws Exception {
+        AtomicInteger interrupted = new AtomicInteger();
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(4, 64, 1, BackpressurePolicy.Block,
+                batch -> {
+                    try {
+                        Thread.sleep(60000);
+                    } catch (InterruptedException e) {
+                        interrupted.incrementAndGet();
+                    }
+                });
+        for (int i = 0; i < 4; i++) {
+            dispatcher.submit(sample(true));
+        }
+
+        long start = System.currentTimeMillis();
+        assertTrue(dispatcher.shutdown(400));
+        // The grace period is part of the timeout, not added once per worker
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        long waitEnd = System.currentTimeMillis() + 5000;
+        while (interrupted.get() < 4 && System.currentTimeMillis() < waitEnd) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, interrupted.get());
+        // The batches given up are counted once, as dropped
+        assertEquals(0, dispatcher.getHandled());
+        assertEquals(4, dispatcher.getDropped());
+    }
+
+    @Test
+    public void testFailedBatchesAreDropped() throws Exception {
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(2, 64, 4, BackpressurePolicy.Block,
+                batch -> {
+                    throw new IllegalStateException("Endpoint unreachable");
+                });
+        for (int i = 0; i < 20; i++) {
+            dispatcher.submit(sample(false));
+        }
+
+        assertTrue(dispatcher.shutdown(10000));
+        assertEquals(0, dispatcher.getHandled());
+        assertEquals(20, dispatcher.getDropped());
+    }
+}
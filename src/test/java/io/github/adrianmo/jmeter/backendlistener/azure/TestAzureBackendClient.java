@@ -1,6 +1,7 @@
 package io.github.adrianmo.jmeter.backendlistener.azure;
 
 import com.microsoft.applicationinsights.TelemetryClient;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
 import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
 
 import org.apache.commons.lang3.RandomStringUtils;
@@ -17,8 +18,8 @@ import org.mockito.internal.util.reflection.Whitebox;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import static junit.framework.TestCase.fail;
 import static org.junit.Assert.*;
@@ -41,7 +42,6 @@ public class TestAzureBackendClient {
         args.addArgument("testName", "test-1");
         context = new BackendListenerContext(args);
         Whitebox.setInternalState(client, "testName", "test-1");
-        Whitebox.setInternalState(client, "samplersToFilter", new HashSet<>());
         Whitebox.setInternalState(client, "logResponseData", DataLoggingOption.OnFailure);
         Whitebox.setInternalState(client, "logSampleData", DataLoggingOption.OnFailure);
     }
@@ -225,4 +225,88 @@ public class TestAzureBackendClient {
         verify(telemetryClient).trackRequest(argument.capture());
         assertEquals(argument.getValue().getProperties().get("SampleData"), "[BINARY DATA]");
     }
+
+    @Test
+    public void testAggregateSamples() {
+        Whitebox.setInternalState(client, "aggregator", new SampleAggregator(0));
+
+        List<SampleResult> list = new ArrayList<SampleResult>();
+        for (int i = 0; i < 3; i++) {
+            SampleResult sr = new SampleResult();
+            sr.setSampleLabel("test-1");
+            sr.setSuccessful(true);
+            sr.setResponseCode("200");
+            sr.setSampleCount(1);
+            list.add(sr);
+        }
+
+        client.handleSampleResults(list, context);
+
+        ArgumentCaptor<MetricTelemetry> argument = ArgumentCaptor.forClass(MetricTelemetry.class);
+        verify(telemetryClient).trackMetric(argument.capture());
+        verify(telemetryClient, never()).trackRequest(any(RequestTelemetry.class));
+        assertEquals(Integer.valueOf(3), argument.getValue().getCount());
+        assertEquals("test-1", argument.getValue().getProperties().get("SampleLabel"));
+        assertEquals("200", argument.getValue().getProperties().get("ResponseCode"));
+    }
+
+    @Test
+    public void testDeduplicateResponseData() {
+        Whitebox.setInternalState(client, "responseDataDeduplicator", new PayloadDeduplicator(60000));
+
+        List<SampleResult> list = new ArrayList<SampleResult>();
+        for (int i = 0; i < 3; i++) {
+            SampleResult sr = new SampleResult();
+            sr.setSampleLabel("test-1");
+            sr.setSuccessful(false);
+            sr.setResponseCode("503");
+            sr.setResponseData("Service Unavailable".getBytes());
+            sr.setSampleCount(1);
+            list.add(sr);
+        }
+
+        client.handleSampleResults(list, context);
+
+        ArgumentCaptor<RequestTelemetry> argument = ArgumentCaptor.forClass(RequestTelemetry.class);
+        verify(telemetryClient, times(3)).trackRequest(argument.capture());
+        Map<String, String> first = argument.getAllValues().get(0).getProperties();
+        Map<String, String> last = argument.getAllValues().get(2).getProperties();
+        assertEquals("Service Unavailable", first.get("ResponseData"));
+        assertFalse(first.containsKey("ResponseDataOccurrences"));
+        assertFalse(last.containsKey("ResponseData"));
+        assertEquals(first.get("ResponseDataHash"), last.get("ResponseDataHash"));
+        assertEquals("3", last.get("ResponseDataOccurrences"));
+    }
+
+    @Test
+    public void testDeduplicateResponseDataOnlyHashesTheKeptCharacters() {
+        Whitebox.setInternalState(client, "responseDataDeduplicator", new PayloadDeduplicator(60000));
+        Whitebox.setInternalState(client, "payloadTruncator", new PayloadTruncator(16));
+
+        List<SampleResult> list = new ArrayList<SampleResult>();
+        String[] payloads = {"Service Unavailable, request 1", "Service Unavailable, request 2", "Service Down"};
+        for (String payload : payloads) {
+            SampleResult sr = new SampleResult();
+            sr.setSampleLabel("test-1");
+            sr.setSuccessful(false);
+            sr.setResponseCode("503");
+            sr.setResponseData(payload.getBytes());
+            sr.setSampleCount(1);
+            list.add(sr);
+        }
+
+        client.handleSampleResults(list, context);
+
+        ArgumentCaptor<RequestTelemetry> argument = ArgumentCaptor.forClass(RequestTelemetry.class);
+        verify(telemetryClient, times(3)).trackRequest(argument.capture());
+        Map<String, String> first = argument.getAllValues().get(0).getProperties();
+        Map<String, String> second = argument.getAllValues().get(1).getProperties();
+        Map<String, String> third = argument.getAllValues().get(2).getProperties();
+        assertEquals("Service Unavaila" + PayloadTruncator.TRUNCATED_SUFFIX, first.get("ResponseData"));
+        assertFalse(second.containsKey("ResponseData"));
+        assertEquals(first.get("ResponseDataHash"), second.get("ResponseDataHash"));
+        assertEquals("2", second.get("ResponseDataOccurrences"));
+        assertEquals("Service Down", third.get("ResponseData"));
+        assertFalse(first.get("ResponseDataHash").equals(third.get("ResponseDataHash")));
+    }
 }
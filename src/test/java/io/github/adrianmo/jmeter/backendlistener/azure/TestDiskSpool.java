@@ -0,0 +1,330 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestDiskSpool {
+
+    private File directory;
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static SpoolRecord record(int index) {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("SampleLabel", "label-" + index);
+        properties.put("ResponseData", "{\"quote\": \"\\\"\"}\n");
+        return new SpoolRecord("id-" + index, "test-1", "test-1", 1600000000000L + index, 42, "200", true,
+                "https://example.com/" + index, properties, Collections.singletonMap("Latency", 12.0));
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws IOException {
+        SpoolRecord decoded = SpoolRecord.decode(record(7).encode());
+
+        assertEquals("id-7", decoded.getId());
+        assertEquals(1600000000007L, decoded.getTimestamp());
+        assertEquals(42, decoded.getDurationMillis());
+        assertEquals("https://example.com/7", decoded.getUrl());
+        assertEquals("label-7", decoded.getProperties().get("SampleLabel"));
+        assertEquals(Double.valueOf(12.0), decoded.getMeasurements().get("Latency"));
+    }
+
+    @Test
+    public void testRecordKeepsSamplingPercentage() throws IOException {
+        SpoolRecord record = new SpoolRecord("id-1", "test-1", "test-1", 1600000000000L, 42, "200", true, null,
+                Collections.<String, String>emptyMap(), Collections.<String, Double>emptyMap(), 12.5);
+        assertEquals(12.5, SpoolRecord.decode(record.encode()).getSamplingPercentage(), 0);
+        assertEquals(SpoolRecord.NOT_SAMPLED, SpoolRecord.decode(record(1).encode()).getSamplingPercentage(), 0);
+
+        EnvelopeEncoder.Output envelope = new EnvelopeEncoder.Output(256);
+        new EnvelopeEncoder("").encodeRequest(envelope, record);
+        assertTrue(new String(envelope.array(), 0, envelope.size(), StandardCharsets.UTF_8)
+                .contains("\"sampleRate\":12.5"));
+    }
+
+    @Test
+    public void testPeekCommitAndReplay() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(spool.append(record(i).encode()));
+        }
+
+        List<byte[]> batch = spool.peek(4);
+        assertEquals(4, batch.size());
+        assertEquals("id-0", SpoolRecord.decode(batch.get(0)).getId());
+        spool.commit();
+        assertEquals(6, spool.getPendingRecords());
+        spool.close();
+
+        spool = new DiskSpool(directory, 1024 * 1024);
+        assertEquals(6, spool.getPendingRecords());
+        batch = spool.peek(100);
+        assertEquals(6, batch.size());
+        assertEquals("id-4", SpoolRecord.decode(batch.get(0)).getId());
+        spool.close();
+    }
+
+    @Test
+    public void testEvictOldestSegments() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 8 * 64 * 1024);
+        byte[] data = new byte[16 * 1024];
+        for (int i = 0; i < 100; i++) {
+            assertTrue(spool.append(data));
+        }
+
+        assertTrue(spool.getEvictedRecords() > 0);
+        assertEquals(100 - spool.getEvictedRecords(), spool.getPendingRecords());
+        assertFalse(spool.append(new byte[64 * 1024]));
+        assertEquals(1, spool.getRejectedRecords());
+        spool.close();
+    }
+
+    @Test
+    public void testReopenWithOtherMaxSize() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 8 * 64 * 1024);
+        assertTrue(spool.append(new byte[1024]));
+        spool.close();
+
+        // The reopened segment is smaller than the segments of the larger spool
+        spool = new DiskSpool(directory, 8 * 256 * 1024);
+        byte[] data = new byte[48 * 1024];
+        for (int i = 0; i < 4; i++) {
+            assertTrue(spool.append(data));
+        }
+        assertEquals(5, spool.getPendingRecords());
+        spool.close();
+
+        // And larger than the segments of the smaller spool, it is filled up rather than rolled early
+        spool = new DiskSpool(directory, 8 * 64 * 1024);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(spool.append(data));
+        }
+        assertEquals(7, spool.getPendingRecords());
+        assertEquals(2, directory.listFiles((dir, name) -> name.endsWith(".seg")).length);
+        spool.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testSenderRetriesThrottledAndFailedRequests() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/track", exchange -> {
+            int call = calls.incrementAndGet();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(exchange.getRequestBody()), StandardCharsets.UTF_8))) {
+                List<String> lines = new ArrayList<String>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+                if (call == 1) {
+                    exchange.getResponseHeaders().add("Retry-After", "0");
+                    exchange.sendResponseHeaders(429, -1);
+                } else if (call == 2) {
+                    exchange.sendResponseHeaders(503, -1);
+                } else {
+                    Thread.sleep(50);
+                    received.addAll(lines);
+                    exchange.sendResponseHeaders(200, -1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.start();
+
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        for (int i = 0; i < SpoolSender.BATCH_SIZE + 10; i++) {
+            spool.append(record(i).encode());
+        }
+        IngestionEndpoint endpoint = IngestionEndpoint.resolve("InstrumentationKey=00000000-0000-0000-0000-000000000000;"
+                + "IngestionEndpoint=http://127.0.0.1:" + server.getAddress().getPort() + "/", null);
+        SpoolSender sender = new SpoolSender(spool, new IngestionClient(endpoint.getTrackUrl()),
+                new EnvelopeEncoder(endpoint.getInstrumentationKey()));
+        sender.start();
+
+        assertTrue(sender.close(20000));
+        assertEquals(2, sender.getRetries());
+        assertEquals(SpoolSender.BATCH_SIZE + 10, sender.getSent());
+        assertEquals(SpoolSender.BATCH_SIZE + 10, received.size());
+        assertTrue(received.get(0).contains("\"id\":\"id-0\""));
+        assertTrue(received.get(0).contains("\"duration\":\"00:00:00.0420000\""));
+        assertTrue(received.get(SpoolSender.BATCH_SIZE + 9).contains("\"id\":\"id-509\""));
+        spool.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testSenderRetriesItemsOfPartialSuccess() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/track", exchange -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(exchange.getRequestBody()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    received.add(line);
+                }
+            }
+            if (calls.incrementAndGet() == 1) {
+                byte[] body = ("{\"itemsReceived\":5,\"itemsAccepted\":3,\"errors\":["
+                        + "{\"index\":1,\"statusCode\":503,\"message\":\"Try \\\"index\\\":4 later\"},"
+                        + "{\"statusCode\":400,\"index\":3,\"message\":\"Invalid {\"}]}")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(206, body.length);
+                exchange.getResponseBody().write(body);
+            } else {
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            spool.append(record(i).encode());
+        }
+        SpoolSender sender = new SpoolSender(spool, new IngestionClient("http://127.0.0.1:"
+                + server.getAddress().getPort() + "/v2/track"), new EnvelopeEncoder(""));
+        sender.start();
+
+        assertTrue(sender.close(20000));
+        assertEquals(2, calls.get());
+        assertEquals(4, sender.getSent());
+        assertEquals(1, sender.getRejected());
+        assertEquals(6, received.size());
+        // Only the item that can be retried is sent again
+        assertTrue(received.get(5).contains("\"id\":\"id-1\""));
+        spool.close();
+    }
+
+    @Test
+    public void testClosedSpoolRejectsCalls() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        spool.append(record(0).encode());
+        assertEquals(1, spool.peek(10).size());
+        spool.close();
+
+        assertTrue(spool.peek(10).isEmpty());
+        spool.commit();
+        try {
+            spool.append(record(1).encode());
+            fail("Appending to a closed spool must fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+        spool.close();
+
+        spool = new DiskSpool(directory, 1024 * 1024);
+        assertEquals(1, spool.getPendingRecords());
+        spool.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testSenderSkipsCorruptedRecords() throws Exception {
+        List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/track", exchange -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(exchange.getRequestBody()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    received.add(line);
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            spool.append(record(i).encode());
+        }
+        spool.close();
+
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // Unknown version of the second record
+            file.seek(16);
+            int first = file.readInt();
+            file.seek(16 + 4 + first + 4);
+            file.writeByte(99);
+            // Incomplete record after the last one, as left by a crash in the middle of a write
+            file.seek(4);
+            int write = file.readInt();
+            file.seek(write);
+            file.writeInt(1000);
+            file.seek(4);
+            file.writeInt(write + 10);
+        }
+
+        spool = new DiskSpool(directory, 1024 * 1024);
+        assertEquals(3, spool.getPendingRecords());
+        SpoolSender sender = new SpoolSender(spool, new IngestionClient("http://127.0.0.1:"
+                + server.getAddress().getPort() + "/v2/track"), new EnvelopeEncoder(""));
+        sender.start();
+
+        assertTrue(sender.close(20000));
+        assertEquals(2, sender.getSent());
+        assertEquals(1, sender.getRejected());
+        assertEquals(0, spool.getPendingRecords());
+        assertEquals(2, received.size());
+        assertTrue(received.get(1).contains("\"id\":\"id-2\""));
+        spool.close();
+    }
+
+    @Test
+    public void testParsePartialSuccess() {
+        List<IngestionClient.ItemError> errors = IngestionClient.parseErrors("{\"itemsReceived\":3,"
+                + "\"itemsAccepted\":1,\"errors\":[{\"index\":0,\"statusCode\":429,\"message\":\"]}\"},"
+                + "{\"index\":2,\"statusCode\":400,\"message\":\"Field 'name' is required\"}]}");
+        assertEquals(2, errors.size());
+        assertEquals(0, errors.get(0).getIndex());
+        assertTrue(errors.get(0).isRetryable());
+        assertEquals(2, errors.get(1).getIndex());
+        assertFalse(errors.get(1).isRetryable());
+        assertTrue(IngestionClient.parseErrors("not json").isEmpty());
+    }
+}
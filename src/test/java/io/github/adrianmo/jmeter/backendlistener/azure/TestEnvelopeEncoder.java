@@ -0,0 +1,165 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.Duration;
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import org.junit.Test;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestEnvelopeEncoder {
+
+    private static final String INSTRUMENTATION_KEY = "00000000-0000-0000-0000-000000000000";
+    private static final String HEADER = "{\"name\":\"Microsoft.ApplicationInsights.00000000000000000000000000000000.";
+    private static final String IKEY = "\"iKey\":\"" + INSTRUMENTATION_KEY + "\"";
+
+    private final Map<String, String> customProperties = Collections.singletonMap("Environment", "staging");
+    private final EnvelopeEncoder encoder = new EnvelopeEncoder(INSTRUMENTATION_KEY, "test-1", customProperties);
+
+    private static RequestTelemetry request(String label, long timestamp, long durationMillis) {
+        RequestTelemetry request = new RequestTelemetry("test-1", new Date(timestamp), new Duration(durationMillis),
+                "200", true);
+        request.setId("req-1");
+        request.getContext().getOperation().setName("test-1");
+        request.getProperties().put("SampleLabel", label);
+        request.getMetrics().put("Latency", 12.0);
+        return request;
+    }
+
+    private String encode(RequestTelemetry request) {
+        EnvelopeEncoder.Output out = new EnvelopeEncoder.Output(16);
+        encoder.encodeRequest(out, request);
+        return new String(out.array(), 0, out.size(), StandardCharsets.UTF_8);
+    }
+
+    private static String field(String envelope, String name) {
+        int start = envelope.indexOf("\"" + name + "\":\"") + name.length() + 4;
+        return envelope.substring(start, envelope.indexOf('"', start));
+    }
+
+    @Test
+    public void testEncodeRequest() throws Exception {
+        RequestTelemetry request = request("Home", 1600000000123L, 42);
+        request.setUrl(new URL("https://example.com/home?q=1"));
+        assertEquals(HEADER + "Request\",\"time\":\"2020-09-13T12:26:40.123Z\"," + IKEY
+                + ",\"tags\":{\"ai.operation.name\":\"test-1\"},\"data\":{\"baseType\":\"RequestData\","
+                + "\"baseData\":{\"ver\":2,\"id\":\"req-1\",\"name\":\"test-1\",\"duration\":\"00:00:00.0420000\","
+                + "\"responseCode\":\"200\",\"success\":true,\"url\":\"https://example.com/home?q=1\","
+                + "\"properties\":{\"SampleLabel\":\"Home\"},\"measurements\":{\"Latency\":12.0}}}}\n",
+                encode(request));
+
+        request.setSamplingPercentage(12.5);
+        request.getMetrics().put("Connect", Double.NaN);
+        request.getProperties().put("Environment", "staging");
+        String envelope = encode(request);
+        assertTrue(envelope, envelope.contains("\"iKey\":\"" + INSTRUMENTATION_KEY + "\",\"sampleRate\":12.5,"));
+        assertTrue(envelope, envelope.contains("\"Environment\":\"staging\""));
+        assertTrue(envelope, envelope.contains("\"measurements\":{\"Latency\":12.0}"));
+    }
+
+    @Test
+    public void testEncodeSpoolRecordAsRequest() throws Exception {
+        RequestTelemetry request = request("Home", 1600000000123L, 42);
+        request.setUrl(new URL("https://example.com/home?q=1"));
+        request.setSamplingPercentage(50.0);
+        request.getProperties().put("Environment", "production");
+
+        EnvelopeEncoder.Output out = new EnvelopeEncoder.Output(16);
+        encoder.encodeRequest(out, SpoolRecord.decode(SpoolRecord.of(request).encode()));
+        assertEquals(encode(request), new String(out.array(), 0, out.size(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeTimesAndDurations() {
+        long[] timestamps = {1600000000000L, 1600000001007L, 951782400000L, -86400001L, 253402300800000L};
+        for (long timestamp : timestamps) {
+            assertEquals(DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(timestamp)),
+                    field(encode(request("Home", timestamp, 1)), "time"));
+        }
+
+        assertEquals("00:00:00.0000000", field(encode(request("Home", 0, 0)), "duration"));
+        assertEquals("3.01:02:03.0040000", field(encode(request("Home", 0, 86400000L * 3 + 3723004)), "duration"));
+        assertEquals("00:00:59.9990000", field(encode(request("Home", 0, 59999)), "duration"));
+        assertEquals("00:00:00.0000000", field(encode(request("Home", 0, -5)), "duration"));
+    }
+
+    @Test
+    public void testEscapeStrings() {
+        assertTrue(encode(request("Quote \" and \\ and \n\r\t\u0001\u001f", 0, 1))
+                .contains("\"SampleLabel\":\"Quote \\\" and \\\\ and \\n\\r\\t\\u0001\\u001f\""));
+        assertTrue(encode(request("Accents éàü, CJK 東京, emoji 🚀", 0, 1))
+                .contains("\"SampleLabel\":\"Accents éàü, CJK 東京, emoji 🚀\""));
+        assertTrue(encode(request("Lone surrogates \ud83d and \ude80 end\ud83d", 0, 1))
+                .contains("\"SampleLabel\":\"Lone surrogates ? and ? end?\""));
+
+        RequestTelemetry request = request("Home", 0, 1);
+        request.getContext().getOperation().setName(null);
+        request.getProperties().put("Clé", null);
+        String envelope = encode(request);
+        assertTrue(envelope, envelope.contains("\"ai.operation.name\":\"test-1\""));
+        assertTrue(envelope, envelope.contains("\"Clé\":null"));
+    }
+
+    @Test
+    public void testEncodeMetric() {
+        MetricTelemetry metric = new MetricTelemetry("test-1.Home.responseTime", 42.5);
+        metric.setTimestamp(new Date(1600000000000L));
+        metric.setCount(3);
+        metric.setMax(Double.NaN);
+        metric.getProperties().put("SampleLabel", "Home");
+
+        EnvelopeEncoder.Output out = new EnvelopeEncoder.Output(16);
+        encoder.encodeMetric(out, metric);
+        assertEquals(HEADER + "Metric\",\"time\":\"2020-09-13T12:26:40Z\"," + IKEY
+                + ",\"data\":{\"baseType\":\"MetricData\",\"baseData\":{\"ver\":2,\"metrics\":[{"
+                + "\"name\":\"test-1.Home.responseTime\",\"kind\":\"Aggregation\",\"value\":42.5,\"count\":3,"
+                + "\"max\":0.0}],\"properties\":{\"SampleLabel\":\"Home\"}}}}\n",
+                new String(out.array(), 0, out.size(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeEvent() {
+        EventTelemetry event = new EventTelemetry("Test started");
+        event.setTimestamp(new Date(1600000000000L));
+        event.getProperties().put("Environment", "staging");
+        event.getMetrics().put("Threads", 10.0);
+
+        EnvelopeEncoder.Output out = new EnvelopeEncoder.Output(16);
+        encoder.encodeEvent(out, event);
+        assertEquals(HEADER + "Event\",\"time\":\"2020-09-13T12:26:40Z\"," + IKEY
+                + ",\"data\":{\"baseType\":\"EventData\",\"baseData\":{\"ver\":2,\"name\":\"Test started\","
+                + "\"properties\":{\"Environment\":\"staging\"},\"measurements\":{\"Threads\":10.0}}}}\n",
+                new String(out.array(), 0, out.size(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOutputIsReused() {
+        EnvelopeEncoder.Output out = new EnvelopeEncoder.Output(16);
+        encoder.encodeRequest(out, request("Home", 1600000000000L, 1));
+        int size = out.size();
+        out.reset();
+        encoder.encodeRequest(out, request("Home", 1600000000000L, 1));
+        assertEquals(size, out.size());
+
+        Map<String, String> many = new HashMap<String, String>();
+        for (int i = 0; i < EnvelopeEncoder.MAX_CACHED_KEYS * 2; i++) {
+            many.put("key-" + i, "value");
+        }
+        RequestTelemetry request = request("Home", 1600000000000L, 1);
+        request.getProperties().putAll(many);
+        String envelope = encode(request);
+        for (String key : many.keySet()) {
+            assertTrue(key, envelope.contains("\"" + key + "\":\"value\""));
+        }
+    }
+}
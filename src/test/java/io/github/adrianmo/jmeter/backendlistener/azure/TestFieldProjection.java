@@ -0,0 +1,77 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestFieldProjection {
+
+    private static SampleResult sample() {
+        SampleResult sr = new SampleResult();
+        sr.setSampleLabel("login");
+        sr.setResponseCode("200");
+        sr.setLatency(12);
+        sr.setConnectTime(3);
+        return sr;
+    }
+
+    @Test
+    public void testAllFields() {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, Double> measurements = new HashMap<String, Double>();
+
+        FieldProjection.parse("", false, ";").apply(sample(), properties, measurements);
+
+        assertEquals(SampleField.values().length, properties.size());
+        assertEquals("12.0", properties.get("Latency"));
+        assertEquals("3", properties.get("ConnectTime"));
+        assertTrue(measurements.isEmpty());
+    }
+
+    @Test
+    public void testSelectedFields() {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, Double> measurements = new HashMap<String, Double>();
+
+        FieldProjection projection = FieldProjection.parse(" latency ; SampleLabel;unknown;Latency", false, ";");
+        projection.apply(sample(), properties, measurements);
+
+        assertEquals(2, properties.size());
+        assertEquals("12.0", properties.get("Latency"));
+        assertEquals("login", properties.get("SampleLabel"));
+        assertTrue(projection.includes(SampleField.Latency));
+        assertFalse(projection.includes(SampleField.URL));
+    }
+
+    @Test
+    public void testNumericFieldsAsMeasurements() {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, Double> measurements = new HashMap<String, Double>();
+
+        FieldProjection.parse("Latency;ConnectTime;ResponseCode", true, ";").apply(sample(), properties, measurements);
+
+        assertEquals(1, properties.size());
+        assertEquals("200", properties.get("ResponseCode"));
+        assertEquals(Double.valueOf(12), measurements.get("Latency"));
+        assertEquals(Double.valueOf(3), measurements.get("ConnectTime"));
+    }
+
+    @Test
+    public void testWithoutFields() {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, Double> measurements = new HashMap<String, Double>();
+
+        FieldProjection projection = FieldProjection.parse("Latency;ConnectTime;ResponseCode", true, ";")
+                .without(SampleField.Latency, SampleField.IdleTime);
+        projection.apply(sample(), properties, measurements);
+
+        assertEquals(1, properties.size());
+        assertEquals(1, measurements.size());
+        assertEquals(Double.valueOf(3), measurements.get("ConnectTime"));
+        assertFalse(projection.includes(SampleField.Latency));
+    }
+}
@@ -0,0 +1,114 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.Duration;
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestFileSink {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("telemetry", ".ndjson").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static RequestTelemetry request(int index) {
+        RequestTelemetry request = new RequestTelemetry("test-1", new Date(1600000000000L + index), new Duration(42),
+                "200", true);
+        request.getProperties().put("SampleLabel", "label-" + index);
+        return request;
+    }
+
+    private List<String> readLines(boolean gzip) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        try (InputStream in = gzip ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private void writeAndRead(boolean gzip) throws Exception {
+        FileSink sink = new FileSink(file, gzip, new EnvelopeEncoder(""));
+        for (int i = 0; i < 10000; i++) {
+            sink.trackRequest(request(i));
+        }
+        MetricTelemetry metric = new MetricTelemetry("jmeter.p95", 120);
+        metric.setTimestamp(new Date(1600000000000L));
+        sink.trackMetric(metric);
+        sink.close(1000);
+
+        assertEquals(10001, sink.getSent());
+        List<String> lines = readLines(gzip);
+        assertEquals(10001, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"name\":\"Microsoft.ApplicationInsights.Request\""));
+        assertTrue(lines.get(9999).contains("\"SampleLabel\":\"label-9999\""));
+        assertTrue(lines.get(10000).contains("\"baseType\":\"MetricData\""));
+        assertTrue(lines.get(10000).contains("\"name\":\"jmeter.p95\",\"kind\":\"Measurement\",\"value\":120.0"));
+    }
+
+    @Test
+    public void testWritePlainFile() throws Exception {
+        writeAndRead(false);
+    }
+
+    @Test
+    public void testWriteGzipFile() throws Exception {
+        writeAndRead(true);
+    }
+
+    @Test
+    public void testWriteBatch() throws Exception {
+        FileSink sink = new FileSink(file, false, new EnvelopeEncoder(""));
+        List<RequestTelemetry> batch = new ArrayList<RequestTelemetry>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(request(i));
+        }
+        sink.trackRequests(batch);
+        sink.close(1000);
+
+        List<String> lines = readLines(false);
+        assertEquals(100, lines.size());
+        assertTrue(lines.get(42).contains("\"SampleLabel\":\"label-42\""));
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        FileSink sink = new FileSink(file, false, new EnvelopeEncoder(""));
+        sink.trackRequest(request(1));
+        long deadline = System.currentTimeMillis() + 10 * FileSink.FLUSH_INTERVAL_MS;
+        while (file.length() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, readLines(false).size());
+        sink.close(1000);
+    }
+}
@@ -0,0 +1,222 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.Duration;
+import com.microsoft.applicationinsights.telemetry.RequestTelemetry;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestIngestionSink {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger concurrentCalls = new AtomicInteger();
+    private final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+    private volatile String partialSuccess = "{}";
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts a track endpoint answering after {@code latencyMillis} with the status given for each call, and with
+     * {@link #partialSuccess} as the body of a 206.
+     */
+    private IngestionClient startEndpoint(long latencyMillis, IntUnaryOperator status) throws IOException {
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/v2/track", exchange -> {
+            int call = calls.incrementAndGet();
+            maxConcurrentCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(exchange.getRequestBody()), StandardCharsets.UTF_8))) {
+                List<String> lines = new ArrayList<String>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+                Thread.sleep(latencyMillis);
+                int code = status.applyAsInt(call);
+                if (code == 200 || code == 206) {
+                    received.addAll(lines);
+                }
+                if (code == 206) {
+                    byte[] body = partialSuccess.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(code, body.length);
+                    exchange.getResponseBody().write(body);
+                } else {
+                    exchange.sendResponseHeaders(code, -1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentCalls.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.start();
+        return new IngestionClient("http://127.0.0.1:" + server.getAddress().getPort() + "/v2/track");
+    }
+
+    private static EnvelopeEncoder encoder() {
+        return new EnvelopeEncoder("", "test-1", Collections.<String, String>emptyMap());
+    }
+
+    private static List<RequestTelemetry> requests(int count) {
+        List<RequestTelemetry> requests = new ArrayList<RequestTelemetry>(count);
+        for (int i = 0; i < count; i++) {
+            RequestTelemetry request = new RequestTelemetry("test-1", new Date(1600000000000L + i),
+                    new Duration(42), "200", true);
+            request.getProperties().put("SampleLabel", "label-" + i);
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    @Test(timeout = 30000)
+    public void testBatchesAreSentConcurrently() throws Exception {
+        long latency = 300;
+        int batches = 8;
+        IngestionSink sink = new IngestionSink(startEndpoint(latency, call -> 200), encoder(),
+                batches, 3, 10);
+
+        sink.trackRequests(requests(batches * IngestionSink.BATCH_SIZE));
+        sink.close(10000);
+
+        assertEquals(batches * IngestionSink.BATCH_SIZE, sink.getSent());
+        assertEquals(batches * IngestionSink.BATCH_SIZE, received.size());
+        assertEquals(0, sink.getFailed());
+        assertEquals(batches, calls.get());
+        assertTrue(maxConcurrentCalls.get() > 1);
+    }
+
+    @Test(timeout = 30000)
+    public void testInFlightBatchesAreBounded() throws Exception {
+        IngestionSink sink = new IngestionSink(startEndpoint(100, call -> 200), encoder(), 2, 3, 10);
+        for (int i = 0; i < 6; i++) {
+            sink.trackRequests(requests(IngestionSink.BATCH_SIZE));
+        }
+        sink.close(10000);
+
+        assertEquals(6 * IngestionSink.BATCH_SIZE, sink.getSent());
+        assertTrue(maxConcurrentCalls.get() <= 2);
+    }
+
+    @Test(timeout = 30000)
+    public void testRetryFailedBatches() throws Exception {
+        IngestionSink sink = new IngestionSink(startEndpoint(0, call -> call <= 2 ? 503 : 200),
+                encoder(), 4, 3, 10);
+        sink.trackRequests(requests(10));
+        sink.close(10000);
+
+        assertEquals(2, sink.getRetries());
+        assertEquals(10, sink.getSent());
+        assertEquals(10, received.size());
+        assertTrue(received.get(0).contains("\"SampleLabel\":\"label-0\""));
+    }
+
+    @Test(timeout = 30000)
+    public void testGiveUpAfterMaxAttempts() throws Exception {
+        IngestionSink sink = new IngestionSink(startEndpoint(0, call -> 500), encoder(), 4, 2, 10);
+        sink.trackRequests(requests(10));
+        sink.close(10000);
+
+        assertEquals(2, calls.get());
+        assertEquals(0, sink.getSent());
+        assertEquals(10, sink.getFailed());
+    }
+
+    @Test(timeout = 30000)
+    public void testRejectedBatchesAreNotRetried() throws Exception {
+        IngestionSink sink = new IngestionSink(startEndpoint(0, call -> 400), encoder(), 4, 3, 10);
+        sink.trackRequests(requests(10));
+        sink.close(10000);
+
+        assertEquals(1, calls.get());
+        assertEquals(10, sink.getRejected());
+    }
+
+    @Test(timeout = 30000)
+    public void testRetryItemsOfPartialSuccess() throws Exception {
+        partialSuccess = "{\"itemsReceived\":5,\"itemsAccepted\":2,\"errors\":["
+                + "{\"index\":1,\"statusCode\":429,\"message\":\"Throttled\"},"
+                + "{\"index\":3,\"statusCode\":503,\"message\":\"Try later\"},"
+                + "{\"index\":4,\"statusCode\":400,\"message\":\"Invalid\"}]}";
+        IngestionSink sink = new IngestionSink(startEndpoint(0, call -> call == 1 ? 206 : 200), encoder(), 4, 3,
+                10);
+        sink.trackRequests(requests(5));
+        sink.close(10000);
+
+        assertEquals(2, calls.get());
+        assertEquals(4, sink.getSent());
+        assertEquals(1, sink.getRejected());
+        assertEquals(1, sink.getRetries());
+        // Only the items that can be retried are sent again, in order
+        assertEquals(7, received.size());
+        assertTrue(received.get(5).contains("\"SampleLabel\":\"label-1\""));
+        assertTrue(received.get(6).contains("\"SampleLabel\":\"label-3\""));
+    }
+
+    @Test(timeout = 30000)
+    public void testBatchesInFlightAreGivenUpOnClose() throws Exception {
+        IngestionSink sink = new IngestionSink(startEndpoint(5000, call -> 200), encoder(), 4, 3, 10);
+        sink.trackRequests(requests(2 * IngestionSink.BATCH_SIZE + 10));
+        sink.close(300);
+
+        assertEquals(0, sink.getSent());
+        assertEquals(2 * IngestionSink.BATCH_SIZE + 10, sink.getGivenUp());
+        assertEquals(sink.getGivenUp(), sink.getFailed());
+        assertEquals("Ingestion: 0 sent, " + sink.getFailed() + " failed", sink.describe());
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseDoesNotWaitForASlotAfterTheDeadline() throws Exception {
+        IngestionSink sink = new IngestionSink(startEndpoint(5000, call -> 200), encoder(), 1, 3, 10);
+        sink.trackRequests(requests(IngestionSink.BATCH_SIZE));
+        // Flushed by close, while the only slot is still held by the stalled batch
+        sink.trackRequests(requests(10));
+        long start = System.currentTimeMillis();
+        sink.close(300);
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(0, sink.getSent());
+        assertEquals(IngestionSink.BATCH_SIZE + 10, sink.getGivenUp());
+    }
+
+    @Test
+    public void testRetainLines() {
+        EnvelopeEncoder.Output lines = new EnvelopeEncoder.Output(16);
+        lines.writeAscii("a\nbb\nccc\ndddd\n");
+        BitSet indexes = new BitSet();
+        indexes.set(1);
+        indexes.set(3);
+        IngestionSink.retainLines(lines, indexes);
+        assertEquals("bb\ndddd\n", new String(lines.array(), 0, lines.size(), StandardCharsets.US_ASCII));
+    }
+}
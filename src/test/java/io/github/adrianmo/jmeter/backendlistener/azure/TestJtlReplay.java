@@ -0,0 +1,166 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.visualizers.backend.BackendListenerContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestJtlReplay {
+
+    private static final String HEADER = "timeStamp,elapsed,label,responseCode,responseMessage,threadName,dataType,"
+            + "success,failureMessage,bytes,sentBytes,grpThreads,allThreads,URL,Latency,IdleTime,Connect\n";
+
+    private File results;
+    private File telemetry;
+
+    @Before
+    public void setUp() throws IOException {
+        results = Files.createTempFile("results", ".jtl").toFile();
+        telemetry = Files.createTempFile("telemetry", ".ndjson").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        results.delete();
+        telemetry.delete();
+    }
+
+    private static String record(int index) {
+        boolean success = index % 10 != 0;
+        String label = index % 3 == 0 ? "\"GET /search?q=a,b\"" : "Home";
+        String failure = success ? "" : "\"Expected \"\"ok\"\",\nfound \"\"ko\"\"\"";
+        return (1600000000000L + index) + "," + (100 + index % 50) + "," + label + "," + (success ? "200" : "500")
+                + ",OK,Thread Group 1-1,text," + success + "," + failure + ",1024,256,1,1,"
+                + "http://localhost:8080/" + index + "," + (40 + index % 10) + ",0,3\r\n";
+    }
+
+    private static List<SampleResult> parse(JtlParser parser, String records) throws InterruptedException {
+        List<SampleResult> samples = new ArrayList<SampleResult>();
+        ByteBuffer buffer = ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+        parser.parse(buffer, 0, buffer.limit(), samples::add);
+        return samples;
+    }
+
+    @Test
+    public void testParseRecords() throws Exception {
+        JtlParser parser = new JtlParser(HEADER.trim().split(","), ',');
+        List<SampleResult> samples = parse(parser, record(30) + record(31) + "\n");
+
+        assertEquals(2, samples.size());
+        SampleResult failure = samples.get(0);
+        assertEquals(1600000000030L, failure.getTimeStamp());
+        assertEquals(130, failure.getTime());
+        assertEquals("GET /search?q=a,b", failure.getSampleLabel());
+        assertEquals("500", failure.getResponseCode());
+        assertFalse(failure.isSuccessful());
+        assertEquals(1, failure.getErrorCount());
+        assertSame(SampleResult.TEXT, failure.getDataType());
+        assertEquals("http://localhost:8080/30", failure.getUrlAsString());
+        assertEquals(40, failure.getLatency());
+        assertEquals(3, failure.getConnectTime());
+        assertEquals(1024, failure.getBytesAsLong());
+
+        SampleResult success = samples.get(1);
+        assertEquals("Home", success.getSampleLabel());
+        assertTrue(success.isSuccessful());
+        assertEquals(41, success.getLatency());
+    }
+
+    @Test
+    public void testSkipMalformedRecords() throws Exception {
+        JtlParser parser = new JtlParser(new String[]{"label", "elapsed", "timeStamp"}, '\t');
+        List<SampleResult> samples = parse(parser, "Home\t12\t1600000000000\nHome\tabc\t1600000000000\n"
+                + "Home\t-\n\"Login\tPage\"\t34\t1600000000001");
+
+        assertEquals(2, samples.size());
+        assertEquals("Login\tPage", samples.get(1).getSampleLabel());
+        assertEquals(34, samples.get(1).getTime());
+        assertEquals(2, parser.getMalformedRecords());
+    }
+
+    @Test
+    public void testRecordBoundaries() {
+        String records = record(0) + record(1);
+        ByteBuffer buffer = ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+        int first = record(0).getBytes(StandardCharsets.UTF_8).length;
+
+        // The line break of the quoted failure message is not a boundary
+        assertEquals(first, JtlParser.firstRecordEnd(buffer, 0, buffer.limit()));
+        assertEquals(-1, JtlParser.lastRecordEnd(buffer, 0, first - 1));
+        assertEquals(first, JtlParser.lastRecordEnd(buffer, 0, buffer.limit() - 1));
+        assertEquals(buffer.limit(), JtlParser.lastRecordEnd(buffer, 0, buffer.limit()));
+    }
+
+    @Test
+    public void testReplayInParallelChunks() throws Exception {
+        StringBuilder jtl = new StringBuilder(HEADER);
+        for (int i = 0; i < 5000; i++) {
+            jtl.append(record(i));
+        }
+        Files.write(results.toPath(), jtl.toString().getBytes(StandardCharsets.UTF_8));
+
+        AzureBackendClient client = new AzureBackendClient();
+        Map<String, String> parameters = client.getDefaultParameters().getArgumentsAsMap();
+        parameters.put("testName", "replay");
+        parameters.put("liveMetrics", "false");
+        parameters.put("sinks", "File");
+        parameters.put("sinkFile", telemetry.getPath());
+        parameters.put("excludedSamplersList", "Home");
+        // Chunks of a few records each, cut back to the end of their last record
+        JtlReplay replay = new JtlReplay(results, client, new BackendListenerContext(parameters), 4, 1000, ',');
+        replay.run();
+
+        assertEquals(5000, replay.getSamples());
+        assertEquals(0, replay.getMalformedRecords());
+        List<String> lines = Files.readAllLines(telemetry.toPath(), StandardCharsets.UTF_8);
+        int requests = 0;
+        int failures = 0;
+        for (String line : lines) {
+            if (line.contains("\"baseType\":\"RequestData\"")) {
+                requests++;
+                assertTrue(line.contains("\"name\":\"replay\""));
+                if (line.contains("\"success\":false")) {
+                    failures++;
+                }
+            }
+        }
+        // Only the samples of the search label are sent, one in ten of them is a failure
+        assertEquals(1667, requests);
+        assertEquals(167, failures);
+    }
+
+    @Test
+    public void testTimeWindowedOptionsAreRefused() throws Exception {
+        Files.write(results.toPath(), (HEADER + record(0)).getBytes(StandardCharsets.UTF_8));
+        AzureBackendClient client = new AzureBackendClient();
+        Map<String, String> parameters = client.getDefaultParameters().getArgumentsAsMap();
+        assertTrue(JtlReplay.timeWindowedOptions(new BackendListenerContext(parameters)).isEmpty());
+
+        parameters.put("aggregateSamples", "true");
+        parameters.put("timingBreakdown", "Both");
+        parameters.put("slaThresholds", "p95<500");
+        parameters.put("samplingTarget", "50");
+        BackendListenerContext context = new BackendListenerContext(parameters);
+        assertEquals(Arrays.asList("aggregateSamples", "timingBreakdown", "slaThresholds", "samplingTarget"),
+                JtlReplay.timeWindowedOptions(context));
+        try {
+            new JtlReplay(results, client, context, 1, 1000, ',').run();
+            fail("Time windowed options must be refused");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("aggregateSamples"));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testBucketBoundsAreContiguous() {
+        assertEquals(0, LatencyHistogram.bucketLowerBound(0));
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            assertEquals(LatencyHistogram.bucketUpperBound(i - 1) + 1, LatencyHistogram.bucketLowerBound(i));
+            assertEquals(i, LatencyHistogram.bucketIndex(LatencyHistogram.bucketLowerBound(i)));
+            assertEquals(i, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(i)));
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE,
+                LatencyHistogram.bucketUpperBound(LatencyHistogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1, histogram.getMin());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 * 0.04);
+        assertEquals(950, histogram.getValueAtPercentile(95), 950 * 0.04);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 * 0.04);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testMerge() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10, 3);
+        second.record(5000);
+
+        first.merge(second);
+        assertEquals(4, first.getCount());
+        assertEquals(5030, first.getSum());
+        assertEquals(10, first.getMin());
+        assertEquals(5000, first.getMax());
+
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.merge(first.getBucketCounts(), first.getSum(), first.getMin(), first.getMax());
+        assertEquals(first.getCount(), copy.getCount());
+        assertEquals(first.getValueAtPercentile(90), copy.getValueAtPercentile(90));
+    }
+
+    @Test
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testIntervalReader() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram.IntervalReader reader = histogram.intervalReader();
+        assertTrue(reader.next().isEmpty());
+
+        histogram.record(10);
+        histogram.record(1000);
+        LatencyHistogram.Interval interval = reader.next();
+        assertEquals(2, interval.getCount());
+        assertEquals(1010, interval.getSum());
+        assertEquals(10, interval.getMin());
+        assertEquals(1000, interval.getMax());
+        assertTrue(reader.next().isEmpty());
+
+        histogram.record(200);
+        interval = reader.next();
+        assertEquals(1, interval.getCount());
+        assertEquals(200, interval.getSum());
+        // Within the bucket of the value, not the extremes since the start
+        assertTrue(interval.getMin() <= 200 && interval.getMin() > 10);
+        assertTrue(interval.getMax() >= 200 && interval.getMax() < 1000);
+        long p99 = interval.getValueAtPercentile(99);
+        assertTrue(p99 >= interval.getMin() && p99 <= interval.getMax());
+    }
+}
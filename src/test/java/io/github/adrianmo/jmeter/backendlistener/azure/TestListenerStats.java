@@ -0,0 +1,88 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestListenerStats {
+
+    private static Map<String, MetricTelemetry> byName(List<MetricTelemetry> metrics) {
+        Map<String, MetricTelemetry> byName = new HashMap<String, MetricTelemetry>();
+        for (MetricTelemetry metric : metrics) {
+            byName.put(metric.getName(), metric);
+        }
+        return byName;
+    }
+
+    @Test
+    public void testReportIntervalCounts() {
+        ListenerStats stats = new ListenerStats();
+        stats.received(10);
+        stats.filtered();
+        stats.sampledOut();
+        stats.responseDataCaptured(512);
+        stats.requestsBuilt(0, 500_000);
+        stats.sinkCalled(8, 0, 2_000_000);
+
+        Map<String, MetricTelemetry> metrics = byName(
+                stats.report("jmeter", Collections.<String, String>emptyMap(), new Date()));
+        assertEquals(10, metrics.get("jmeter.listener.received").getValue(), 0);
+        assertEquals(1, metrics.get("jmeter.listener.filtered").getValue(), 0);
+        assertEquals(1, metrics.get("jmeter.listener.sampledOut").getValue(), 0);
+        assertEquals(8, metrics.get("jmeter.listener.emitted").getValue(), 0);
+        assertEquals(0, metrics.get("jmeter.listener.dropped").getValue(), 0);
+        assertEquals(512, metrics.get("jmeter.listener.responseDataBytes").getValue(), 0);
+        assertEquals(0, metrics.get("jmeter.listener.queueDepth").getValue(), 0);
+        MetricTelemetry sinkTime = metrics.get("jmeter.listener.sinkTime");
+        assertEquals(2000, sinkTime.getValue(), 0);
+        assertEquals(Integer.valueOf(1), sinkTime.getCount());
+        assertEquals(500, metrics.get("jmeter.listener.buildTime").getValue(), 0);
+
+        stats.received(5);
+        metrics = byName(stats.report("jmeter", Collections.<String, String>emptyMap(), new Date()));
+        assertEquals(5, metrics.get("jmeter.listener.received").getValue(), 0);
+        assertEquals(0, metrics.get("jmeter.listener.emitted").getValue(), 0);
+        assertNull(metrics.get("jmeter.listener.sinkTime"));
+        assertNull(metrics.get("jmeter.listener.buildTime"));
+        assertEquals(15, stats.getReceived());
+    }
+
+    @Test
+    public void testDroppedAndQueueDepthOfDispatcher() throws Exception {
+        ListenerStats stats = new ListenerStats();
+        AsyncSampleDispatcher dispatcher = new AsyncSampleDispatcher(0, 2, 1, BackpressurePolicy.DropNewest,
+                batch -> { });
+        stats.setDispatcher(dispatcher);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.submit(new SampleResult());
+        }
+        assertEquals(2, stats.getQueueDepth());
+        assertEquals(1, stats.getDropped());
+    }
+
+    @Test
+    public void testRegisterInJmx() throws Exception {
+        ListenerStats stats = new ListenerStats();
+        stats.register("jmx-test");
+        try {
+            stats.received(3);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("io.github.adrianmo.jmeter.backendlistener.azure:type=AzureBackendClient,"
+                    + "testName=" + ObjectName.quote("jmx-test"));
+            assertEquals(3L, server.getAttribute(name, "Received"));
+        } finally {
+            stats.unregister();
+        }
+    }
+}
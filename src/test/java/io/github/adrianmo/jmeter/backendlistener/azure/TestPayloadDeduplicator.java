@@ -0,0 +1,90 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestPayloadDeduplicator {
+
+    private static final long START = 1_600_000_000_000L;
+
+    @Test
+    public void testHashOnlyCoversTheLimit() {
+        byte[] a = "<html>Service Unavailable</html> request 1".getBytes(StandardCharsets.UTF_8);
+        byte[] b = "<html>Service Unavailable</html> request 2".getBytes(StandardCharsets.UTF_8);
+        byte[] kept = "<html>Service Unavailable</html>".getBytes(StandardCharsets.UTF_8);
+        assertTrue(hash(1000, a) != hash(1000, b));
+        assertEquals(hash(32, a), hash(32, b));
+        assertTrue(hash(32, a) != hash(31, a));
+        assertTrue(hash(32, a) != hash(32, kept));
+
+        String text = "GET /api/orders?id=";
+        assertEquals(PayloadDeduplicator.hash(text + 1, 19), PayloadDeduplicator.hash(text + 2, 19));
+        assertTrue(PayloadDeduplicator.hash(text + 1, 20) != PayloadDeduplicator.hash(text + 2, 20));
+    }
+
+    private static long hash(int maxLength, byte[] data) {
+        return PayloadDeduplicator.hash(new PayloadTruncator(maxLength).decode(data, "UTF-8"));
+    }
+
+    @Test
+    public void testSentOncePerWindow() {
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator(1000);
+        assertEquals(1, deduplicator.occurrence("Home", "503", 42, START));
+        assertEquals(2, deduplicator.occurrence("Home", "503", 42, START + 10));
+        assertEquals(1, deduplicator.occurrence("Home", "500", 42, START + 20));
+        assertEquals(1, deduplicator.occurrence("Login", "503", 42, START + 30));
+        assertEquals(1, deduplicator.occurrence("Home", "503", 42, START + 1000));
+        assertEquals(2, deduplicator.occurrence("Home", "503", 42, START + 1001));
+    }
+
+    @Test
+    public void testEntriesAreBounded() {
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator(60000);
+        for (int i = 0; i < PayloadDeduplicator.MAX_ENTRIES * 2; i++) {
+            deduplicator.occurrence("Home", "503", i, START);
+        }
+        assertEquals(PayloadDeduplicator.MAX_ENTRIES, deduplicator.size());
+        // The oldest payloads were evicted and are sent in full again
+        assertEquals(1, deduplicator.occurrence("Home", "503", 0, START));
+    }
+
+    @Test
+    public void testReportTopRecurringPayloads() {
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator(60000);
+        for (int hash = 0; hash < PayloadDeduplicator.TOP_PAYLOADS + 2; hash++) {
+            for (int i = 0; i <= hash; i++) {
+                deduplicator.occurrence("Home", "503", hash, START);
+            }
+        }
+        deduplicator.occurrence("Login", "500", 100, START);
+        deduplicator.occurrence("Login", "500", 100, START);
+
+        List<MetricTelemetry> metrics = deduplicator.report("jmeter.recurringPayloads", "ResponseData",
+                Collections.<String, String>emptyMap(), new Date(START));
+        int home = 0;
+        for (MetricTelemetry metric : metrics) {
+            assertEquals("jmeter.recurringPayloads", metric.getName());
+            assertEquals("ResponseData", metric.getProperties().get("Payload"));
+            if ("Home".equals(metric.getProperties().get("SampleLabel"))) {
+                home++;
+                // The payload seen once, and the least frequent ones, are not reported
+                assertTrue(metric.getValue() >= 3);
+            } else {
+                assertEquals("500", metric.getProperties().get("ResponseCode"));
+                assertEquals(PayloadDeduplicator.toHex(100), metric.getProperties().get("PayloadHash"));
+                assertEquals(2, metric.getValue(), 0);
+            }
+        }
+        assertEquals(PayloadDeduplicator.TOP_PAYLOADS, home);
+
+        assertTrue(deduplicator.report("jmeter.recurringPayloads", "ResponseData",
+                Collections.<String, String>emptyMap(), new Date(START)).isEmpty());
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TestPayloadTruncator {
+
+    private final PayloadTruncator truncator = new PayloadTruncator(4);
+
+    @Test
+    public void testTruncateString() {
+        assertFalse(truncator.isTooLong("abcd"));
+        assertEquals("abcd", truncator.truncate("abcd"));
+        assertTrue(truncator.isTooLong("abcde"));
+        assertEquals("abcd...[TRUNCATED]", truncator.truncate("abcde"));
+    }
+
+    @Test
+    public void testDecodeShortPayload() {
+        PayloadTruncator.Result result = truncator.decode("ab".getBytes(StandardCharsets.UTF_8), "UTF-8");
+        assertEquals("ab", result.getText());
+        assertFalse(result.isTruncated());
+
+        result = truncator.decode("abcd".getBytes(StandardCharsets.UTF_8), "UTF-8");
+        assertEquals("abcd", result.getText());
+        assertFalse(result.isTruncated());
+    }
+
+    @Test
+    public void testDecodeOnlyKeptPrefix() {
+        byte[] data = "h\u00e9llo w\u00f6rld".getBytes(StandardCharsets.UTF_8);
+
+        PayloadTruncator.Result result = truncator.decode(data, "UTF-8");
+
+        assertEquals("h\u00e9ll...[TRUNCATED]", result.getText());
+        assertTrue(result.isTruncated());
+        assertEquals(5, result.getBytesDecoded());
+    }
+
+    @Test
+    public void testDecodeWithCharset() {
+        byte[] data = "\u00e9t\u00e9".getBytes(StandardCharsets.ISO_8859_1);
+
+        assertEquals("\u00e9t\u00e9", truncator.decode(data, "ISO-8859-1").getText());
+        assertEquals("\ufffdt\ufffd", truncator.decode(data, "no-such-charset").getText());
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestPercentileTracker {
+
+    private static Map<String, Double> byName(List<MetricTelemetry> metrics, String label, String window) {
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (MetricTelemetry metric : metrics) {
+            if (label.equals(metric.getProperties().get("SampleLabel"))
+                    && window.equals(metric.getProperties().get("Window"))) {
+                values.put(metric.getName(), metric.getValue());
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testIntervalAndCumulativePercentiles() {
+        PercentileTracker tracker = new PercentileTracker();
+        for (int i = 1; i <= 100; i++) {
+            tracker.record("Home", i);
+        }
+        List<MetricTelemetry> metrics = tracker.report("jmeter", Collections.<String, String>emptyMap(), new Date());
+        Map<String, Double> interval = byName(metrics, "Home", "Interval");
+        assertEquals(50, interval.get("jmeter.p50"), 2);
+        assertEquals(99, interval.get("jmeter.p99"), 4);
+        assertEquals(100, interval.get("jmeter.max"), 0);
+
+        for (int i = 0; i < 100; i++) {
+            tracker.record("Home", 1000);
+        }
+        metrics = tracker.report("jmeter", Collections.<String, String>emptyMap(), new Date());
+        interval = byName(metrics, "Home", "Interval");
+        Map<String, Double> cumulative = byName(metrics, "Home", "Cumulative");
+        assertEquals(1000, interval.get("jmeter.p50"), 1000 * 0.04);
+        assertEquals(1000, interval.get("jmeter.max"), 0);
+        assertEquals(100, cumulative.get("jmeter.p50"), 4);
+        assertEquals(1000, cumulative.get("jmeter.p99"), 1000 * 0.04);
+        assertEquals(1000, cumulative.get("jmeter.max"), 0);
+    }
+
+    @Test
+    public void testIdleLabelIsNotReported() {
+        PercentileTracker tracker = new PercentileTracker();
+        tracker.record("Home", 10);
+        assertEquals(10, tracker.report("jmeter", Collections.<String, String>emptyMap(), new Date()).size());
+        assertTrue(tracker.report("jmeter", Collections.<String, String>emptyMap(), new Date()).isEmpty());
+    }
+
+    @Test
+    public void testLabelsAreBounded() {
+        PercentileTracker tracker = new PercentileTracker();
+        for (int i = 0; i < PercentileTracker.MAX_LABELS + 10; i++) {
+            tracker.record("Label " + i, i);
+        }
+        List<MetricTelemetry> metrics = tracker.report("jmeter", Collections.<String, String>emptyMap(), new Date());
+        assertEquals((PercentileTracker.MAX_LABELS + 1) * 10, metrics.size());
+        assertFalse(byName(metrics, PercentileTracker.OTHER_LABEL, "Interval").isEmpty());
+    }
+}
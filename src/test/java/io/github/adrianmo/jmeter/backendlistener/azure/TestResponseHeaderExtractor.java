@@ -0,0 +1,47 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestResponseHeaderExtractor {
+
+    private static final String HEADERS = "HTTP/1.1 200 OK\r\n"
+            + "Content-Type: application/json; charset=utf-8\r\n"
+            + "X-Request-Id:   abc-123  \r\n"
+            + "Set-Cookie: a=1\r\n"
+            + "Set-Cookie: b=2\r\n"
+            + "X-Empty:\r\n"
+            + "\r\n";
+
+    @Test
+    public void testExtractHeaders() {
+        ResponseHeaderExtractor extractor = new ResponseHeaderExtractor(
+                new String[]{"content-type", "x-request-id", "set-cookie", "x-empty", "x-missing"}, "aih.");
+        Map<String, String> properties = new HashMap<String, String>();
+
+        extractor.extract(HEADERS, properties);
+
+        assertEquals("application/json; charset=utf-8", properties.get("aih.content-type"));
+        assertEquals("abc-123", properties.get("aih.x-request-id"));
+        assertEquals("a=1", properties.get("aih.set-cookie"));
+        assertEquals("", properties.get("aih.x-empty"));
+        assertFalse(properties.containsKey("aih.x-missing"));
+        assertEquals(4, properties.size());
+    }
+
+    @Test
+    public void testNoHeaders() {
+        ResponseHeaderExtractor extractor = new ResponseHeaderExtractor(new String[]{""}, "aih.");
+        Map<String, String> properties = new HashMap<String, String>();
+
+        extractor.extract(HEADERS, properties);
+        extractor.extract(null, properties);
+
+        assertTrue(extractor.isEmpty());
+        assertTrue(properties.isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestSampleField {
+
+    private static SampleResult sample() throws Exception {
+        SampleResult sr = new SampleResult();
+        sr.setStampAndTime(1600000000000L, 250);
+        sr.setSampleLabel("login");
+        sr.setThreadName("Thread Group 1-3");
+        sr.setURL(new URL("https://example.com/login?user=1"));
+        sr.setResponseCode("302");
+        sr.setBytes(123456789012L);
+        sr.setSentBytes(512);
+        sr.setBodySize(4096L);
+        sr.setConnectTime(7);
+        sr.setLatency(42);
+        sr.setIdleTime(3);
+        sr.setErrorCount(1);
+        sr.setGroupThreads(10);
+        sr.setAllThreads(30);
+        sr.setSampleCount(2);
+        return sr;
+    }
+
+    /**
+     * Properties of a sample as the listener rendered them before the fields were described by {@link SampleField}.
+     */
+    private static Map<String, String> legacyProperties(SampleResult sr) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("Bytes", Long.toString(sr.getBytesAsLong()));
+        properties.put("SentBytes", Long.toString(sr.getSentBytes()));
+        properties.put("ConnectTime", Long.toString(sr.getConnectTime()));
+        properties.put("ErrorCount", Integer.toString(sr.getErrorCount()));
+        properties.put("IdleTime", Double.toString(sr.getIdleTime()));
+        properties.put("Latency", Double.toString(sr.getLatency()));
+        properties.put("BodySize", Long.toString(sr.getBodySizeAsLong()));
+        properties.put("TestStartTime", Long.toString(JMeterContextService.getTestStartTime()));
+        properties.put("SampleStartTime", Long.toString(sr.getStartTime()));
+        properties.put("SampleEndTime", Long.toString(sr.getEndTime()));
+        properties.put("SampleLabel", sr.getSampleLabel());
+        properties.put("ThreadName", sr.getThreadName());
+        properties.put("URL", sr.getUrlAsString());
+        properties.put("ResponseCode", sr.getResponseCode());
+        properties.put("GrpThreads", Integer.toString(sr.getGroupThreads()));
+        properties.put("AllThreads", Integer.toString(sr.getAllThreads()));
+        properties.put("SampleCount", Integer.toString(sr.getSampleCount()));
+        return properties;
+    }
+
+    @Test
+    public void testRenderSameAsLegacyProperties() throws Exception {
+        SampleResult sr = sample();
+        Map<String, String> expected = legacyProperties(sr);
+
+        assertEquals(expected.size(), SampleField.values().length);
+        for (SampleField field : SampleField.values()) {
+            assertEquals(field.name(), expected.get(field.name()), field.render(sr));
+        }
+    }
+
+    @Test
+    public void testNumericValues() throws Exception {
+        SampleResult sr = sample();
+
+        for (SampleField field : SampleField.values()) {
+            if (field.isNumeric()) {
+                // The numeric value is the one the property renders
+                assertEquals(field.name(), Double.parseDouble(field.render(sr)),
+                        field.numericValue().applyAsDouble(sr), 0);
+            } else {
+                assertNull(field.numericValue());
+            }
+        }
+        assertFalse(SampleField.URL.isNumeric());
+        assertTrue(SampleField.Latency.isNumeric());
+    }
+}
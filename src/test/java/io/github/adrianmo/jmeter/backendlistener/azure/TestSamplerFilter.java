@@ -0,0 +1,54 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestSamplerFilter {
+
+    @Test
+    public void testEmptyListsAcceptAll() {
+        SamplerFilter filter = SamplerFilter.create("", "", false, false, ";");
+        assertSame(SamplerFilter.ACCEPT_ALL, filter);
+        assertTrue(filter.accept("anything"));
+        assertTrue(filter.accept(null));
+    }
+
+    @Test
+    public void testSetFilter() {
+        SamplerFilter filter = SamplerFilter.create("login;search", "", false, false, ";");
+        assertTrue(filter.accept("login"));
+        assertTrue(filter.accept("search"));
+        assertFalse(filter.accept("logout"));
+        assertFalse(filter.accept("log.n"));
+    }
+
+    @Test
+    public void testRegexFilter() {
+        SamplerFilter filter = SamplerFilter.create("api-.*", "api-health", true, false, ";");
+        assertTrue(filter.accept("api-items"));
+        assertFalse(filter.accept("api-health"));
+        assertFalse(filter.accept("web-api-items"));
+    }
+
+    @Test
+    public void testGlobFilter() {
+        SamplerFilter filter = SamplerFilter.create("api-*;page ?", "*-debug", false, true, ";");
+        assertTrue(filter.accept("api-items"));
+        assertTrue(filter.accept("page 1"));
+        assertFalse(filter.accept("page 10"));
+        assertFalse(filter.accept("api-items-debug"));
+        assertFalse(filter.accept("web"));
+        assertEquals("\\Qa.b\\E.*\\Q(c)\\E.", SamplerFilter.globToRegex("a.b*(c)?"));
+    }
+
+    @Test
+    public void testExcludeOnly() {
+        SamplerFilter filter = SamplerFilter.create("", "setup;teardown", false, false, ";");
+        assertTrue(filter.accept("login"));
+        assertFalse(filter.accept("setup"));
+        // Memoized decisions are stable
+        assertFalse(filter.accept("setup"));
+        assertTrue(filter.accept("login"));
+    }
+}
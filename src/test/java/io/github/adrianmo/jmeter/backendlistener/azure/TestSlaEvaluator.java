@@ -0,0 +1,121 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.EventTelemetry;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestSlaEvaluator {
+
+    private static final long START = 1_600_000_000_000L;
+    private static final long WINDOW = 10000;
+    private static final Map<String, String> NO_PROPERTIES = Collections.emptyMap();
+
+    private static SlaEvaluator evaluator(String thresholds) {
+        return new SlaEvaluator(SlaEvaluator.parse(thresholds, ";"), WINDOW, 5);
+    }
+
+    private static List<EventTelemetry> evaluate(SlaEvaluator evaluator, long now) {
+        return evaluator.evaluate("test-1.slaBreach", NO_PROPERTIES, now);
+    }
+
+    @Test
+    public void testParseThresholds() {
+        List<SlaEvaluator.Threshold> thresholds = SlaEvaluator.parse(
+                "p95<800 ; Login:errorRate < 5;GET http://localhost:8080/:throughput>2.5;AVG<100", ";");
+        assertEquals(4, thresholds.size());
+        assertNull(thresholds.get(0).getLabel());
+        assertEquals("p95", thresholds.get(0).getStatistic());
+        assertEquals(800, thresholds.get(0).getLimit(), 0);
+        assertEquals("Login", thresholds.get(1).getLabel());
+        assertEquals("errorRate", thresholds.get(1).getStatistic());
+        assertEquals("GET http://localhost:8080/", thresholds.get(2).getLabel());
+        assertEquals(2.5, thresholds.get(2).getLimit(), 0);
+        assertEquals("avg", thresholds.get(3).getStatistic());
+
+        assertTrue(SlaEvaluator.parse(" ", ";").isEmpty());
+    }
+
+    @Test
+    public void testRejectInvalidThresholds() {
+        for (String thresholds : new String[]{"p95<800;median<100", "p101<800", "p95=800", "errorRate<"}) {
+            try {
+                SlaEvaluator.parse(thresholds, ";");
+                fail("Accepted " + thresholds);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testBreachReportedOncePerLabel() {
+        SlaEvaluator evaluator = evaluator("p95<800;errorRate<10");
+        for (int i = 0; i < 100; i++) {
+            evaluator.record("Home", 100, true, START + i * 100);
+            evaluator.record("Search", i < 90 ? 100 : 2000, i % 5 != 0, START + i * 100);
+        }
+        // The ramp-up is not judged
+        assertTrue(evaluate(evaluator, START + WINDOW - 1001).isEmpty());
+
+        List<EventTelemetry> breaches = evaluate(evaluator, START + WINDOW);
+        assertEquals(2, breaches.size());
+        for (EventTelemetry breach : breaches) {
+            assertEquals("test-1.slaBreach", breach.getName());
+            assertEquals("Search", breach.getProperties().get("SampleLabel"));
+        }
+        assertTrue(evaluate(evaluator, START + WINDOW + 100).isEmpty());
+        assertEquals(2, evaluator.getBreaches());
+    }
+
+    @Test
+    public void testWindowSlides() {
+        SlaEvaluator evaluator = evaluator("Home:errorRate<50");
+        for (int i = 0; i < 10; i++) {
+            evaluator.record("Home", 100, false, START + i * 100);
+        }
+        List<EventTelemetry> breaches = evaluate(evaluator, START + WINDOW - 1000);
+        assertEquals(1, breaches.size());
+        assertEquals(100, breaches.get(0).getMetrics().get("Value"), 0);
+        assertEquals(10, breaches.get(0).getMetrics().get("Samples"), 0);
+
+        // The failures leave the window, and the threshold is met again
+        long later = START + 2 * WINDOW;
+        for (int i = 0; i < 10; i++) {
+            evaluator.record("Home", 100, true, later + i * 100);
+        }
+        assertTrue(evaluate(evaluator, later + 1000).isEmpty());
+        for (int i = 0; i < 20; i++) {
+            evaluator.record("Home", 100, false, later + 1000 + i * 10);
+        }
+        assertEquals(1, evaluate(evaluator, later + 1500).size());
+    }
+
+    @Test
+    public void testMinSamples() {
+        SlaEvaluator evaluator = evaluator("errorRate<50;throughput>1");
+        for (int i = 0; i < 4; i++) {
+            evaluator.record("Home", 100, false, START + i * 2000);
+        }
+        // Too few samples to judge the error rate, but the throughput is judged
+        List<EventTelemetry> breaches = evaluate(evaluator, START + WINDOW - 500);
+        assertEquals(1, breaches.size());
+        assertEquals("throughput", breaches.get(0).getProperties().get("Statistic"));
+        // Nine slots and half of the current one
+        assertEquals(4 / 9.5, breaches.get(0).getMetrics().get("Value"), 0.001);
+    }
+
+    @Test
+    public void testThresholdsOfOtherLabelsAreIgnored() {
+        SlaEvaluator evaluator = evaluator("Login:avg<100");
+        for (int i = 0; i < 10; i++) {
+            evaluator.record("Home", 500, true, START + i * 100);
+            evaluator.record("Login", 50, true, START + i * 100);
+        }
+        assertTrue(evaluate(evaluator, START + WINDOW).isEmpty());
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.adrianmo.jmeter.backendlistener.azure;
+
+import com.microsoft.applicationinsights.telemetry.MetricTelemetry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestTimingBreakdownTracker {
+
+    private static SampleResult sample(String label, long elapsed, long latency, long connect, long idle) {
+        SampleResult sr = new SampleResult();
+        sr.setSampleLabel(label);
+        sr.setStampAndTime(1000, elapsed);
+        sr.setLatency(latency);
+        sr.setConnectTime(connect);
+        sr.setIdleTime(idle);
+        return sr;
+    }
+
+    private static Map<String, MetricTelemetry> byName(List<MetricTelemetry> metrics, String label) {
+        Map<String, MetricTelemetry> byName = new HashMap<String, MetricTelemetry>();
+        for (MetricTelemetry metric : metrics) {
+            if (label.equals(metric.getProperties().get("SampleLabel"))) {
+                byName.put(metric.getName(), metric);
+            }
+        }
+        return byName;
+    }
+
+    private static List<MetricTelemetry> report(TimingBreakdownTracker tracker) {
+        return tracker.report("jmeter", Collections.<String, String>emptyMap(), new Date());
+    }
+
+    @Test
+    public void testComponents() {
+        TimingBreakdownTracker tracker = new TimingBreakdownTracker();
+        for (int i = 1; i <= 10; i++) {
+            tracker.record(sample("Home", 100 + i, 40, i, 5));
+        }
+
+        Map<String, MetricTelemetry> metrics = byName(report(tracker), "Home");
+        assertEquals(8, metrics.size());
+        MetricTelemetry connect = metrics.get("jmeter.timing.connect");
+        assertEquals(55, connect.getValue(), 0);
+        assertEquals(Integer.valueOf(10), connect.getCount());
+        assertEquals(1, connect.getMin(), 0);
+        assertEquals(10, connect.getMax(), 0);
+        assertEquals(400, metrics.get("jmeter.timing.firstByte").getValue(), 0);
+        assertEquals(40, metrics.get("jmeter.timing.firstByte.p95").getValue(), 0);
+        MetricTelemetry download = metrics.get("jmeter.timing.download");
+        assertEquals(600 + 55, download.getValue(), 0);
+        assertEquals(61, download.getMin(), 0);
+        assertEquals(70, download.getMax(), 0);
+        assertEquals(50, metrics.get("jmeter.timing.idle").getValue(), 0);
+    }
+
+    @Test
+    public void testSamplesWithoutLatency() {
+        TimingBreakdownTracker tracker = new TimingBreakdownTracker();
+        tracker.record(sample("Transaction", 500, 0, 0, 200));
+
+        Map<String, MetricTelemetry> metrics = byName(report(tracker), "Transaction");
+        assertEquals(2, metrics.size());
+        assertEquals(200, metrics.get("jmeter.timing.idle").getValue(), 0);
+        assertEquals(200, metrics.get("jmeter.timing.idle.p95").getValue(), 0);
+    }
+
+    @Test
+    public void testOnlyTheLastIntervalIsReported() {
+        TimingBreakdownTracker tracker = new TimingBreakdownTracker();
+        tracker.record(sample("Home", 100, 40, 10, 0));
+        tracker.record(sample("Search", 100, 40, 10, 0));
+        report(tracker);
+        assertTrue(report(tracker).isEmpty());
+
+        tracker.record(sample("Home", 300, 200, 30, 0));
+        List<MetricTelemetry> metrics = report(tracker);
+        assertTrue(byName(metrics, "Search").isEmpty());
+        MetricTelemetry connect = byName(metrics, "Home").get("jmeter.timing.connect");
+        assertEquals(30, connect.getValue(), 0);
+        assertEquals(Integer.valueOf(1), connect.getCount());
+        assertEquals(30, connect.getMin(), 0);
+    }
+}